@@ -1,11 +1,15 @@
 package client;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.StringReader;
 import java.net.ConnectException;
 import java.net.InetAddress;
 import java.net.Socket;
@@ -14,8 +18,8 @@ import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import shared.*;
@@ -29,6 +33,7 @@ public class ClientMain {
     private static final int MAXTAGS = 5;
     private static final int SUCCESS = 0;
     private static final int FAILURE = 1;
+    private static final int PAGE_SIZE = 20; // Numero di post richiesti per ogni pagina del blog e del feed
 
     // Variabili per connettersi a Winsome
     private static Socket socket = null;
@@ -38,9 +43,18 @@ public class ClientMain {
 
     private static String thisUser = ""; // Nick dell'utente che si logga utilizzando questo client
     private static boolean logged = false; // Flag che indica se un utente è attualmente connesso con questo client
-    private static BufferedReader in = null; // Stream per leggere dal server
-    private static PrintWriter out = null; // Stream per scrivere al server
-    private static Set<String> followers = null; // Follower dell'utente attualmente loggato
+    private static DataInputStream in = null; // Stream per leggere dal server
+    private static DataOutputStream out = null; // Stream per scrivere al server
+    private static int nextRequestId = 0; // Identificativo della prossima richiesta da inviare al server
+    private static ServerReader reader = null; // Thread che legge i messaggi del server e smista risposte e notifiche
+    private static String notificationMode = "rmi"; // Come ricevere le notifiche dei follower: rmi (callback) o push (sulla connessione TCP)
+    private static boolean push = false; // true se il server ha accettato di inviare le notifiche sulla connessione TCP
+    private static String blogCursor = ""; // Cursore restituito dal server per la pagina successiva del blog, vuoto se non ce ne sono altre
+    private static String feedCursor = ""; // Cursore restituito dal server per la pagina successiva del feed, vuoto se non ce ne sono altre
+    private static volatile Set<String> followers = null; // Follower dell'utente attualmente loggato
+    private static String followersOwner = null; // Utente a cui appartengono i follower allineati con RMI, conservati anche dopo il logout
+    private static long followersEpoch = 0; // Epoca del server in cui è valida la versione dei follower
+    private static long followersVersion = FollowerSync.UNKNOWN; // Versione dei follower allineati con RMI
     private static RewardUpdater rewardUpdater = null; // Thread che riceve la notifica del calcolo delle ricompense
     private static ClientNotify stub = null; // Classe che aggiorna i follower quando riceve la notifica
 
@@ -85,6 +99,12 @@ public class ClientMain {
                             System.exit(FAILURE);
                         break;
                     }
+                    case "NOTIFICATIONS":{
+                        notificationMode = new String(token[1]);
+                        if ( !notificationMode.equals("rmi") && !notificationMode.equals("push") )
+                            System.exit(FAILURE);
+                        break;
+                    }
                     case "RETRY_TIME":{
                         retryTime = Long.parseLong(token[1]);
                         if ( retryTime < 1 )
@@ -139,8 +159,12 @@ public class ClientMain {
                 System.exit(FAILURE);
             }
             System.err.println("Connessione con il server stabilita con successo");
-            out = new PrintWriter(socket.getOutputStream(), true); // Flush automatico
-            in = new BufferedReader( new InputStreamReader( socket.getInputStream() ));      
+            out = new DataOutputStream( new BufferedOutputStream( socket.getOutputStream() )); // Il flush avviene alla fine di ogni messaggio
+            in = new DataInputStream( new BufferedInputStream( socket.getInputStream() ));
+            // Da qui in poi legge dal server soltanto il thread reader, che smista risposte e notifiche
+            reader = new ServerReader(in, ClientMain::onNotification);
+            reader.start();
+            negotiate();
 
         } catch ( Exception e ){
             e.printStackTrace();
@@ -302,7 +326,12 @@ public class ClientMain {
                         }
                         switch( req[1] ){
                             case "feed":{
-                                showFeed();
+                                if ( req.length == 2 )
+                                    showFeed(false);
+                                else if ( req.length == 3 && req[2].equals("next") )
+                                    showFeed(true);
+                                else
+                                    System.err.println("Richiesta formulata con sintassi errata, digitare help per visualizzare la forma corretta");
                                 break;
                             }
                             case "post":{
@@ -360,7 +389,12 @@ public class ClientMain {
                         }
                     }
                     case "blog":{
-                        viewBlog();
+                        if ( req.length == 1 )
+                            viewBlog(false);
+                        else if ( req.length == 2 && req[1].equals("next") )
+                            viewBlog(true);
+                        else
+                            System.err.println("Richiesta formulata con sintassi errata, digitare help per visualizzare la forma corretta");
                         break;
                     }
                     case "follow":{
@@ -383,6 +417,15 @@ public class ClientMain {
                         unfollowUser(user);
                         break;
                     }
+                    case "batch":{
+                        if ( req.length != 2 ){
+                            System.err.println("Richiesta formulata con sintassi errata, digitare help per visualizzare la forma corretta");
+                            break;
+                        }
+
+                        batch(req[1]);
+                        break;
+                    }
                     case "help":{
                         helpMessage();
                         break;
@@ -405,13 +448,76 @@ public class ClientMain {
         System.exit(SUCCESS);
     }
 
-    // Formalizza la richiesta per renderla leggibile al server
-    private static String toRequest(ArrayList<String> args){
-        String req = "";
-        for ( String elem : args )
-            req = req + elem + ";";
+    // Invia la richiesta al server e attende la risposta, che viene restituita per essere letta riga per riga
+    private static BufferedReader communicate(byte[] request)
+    throws IOException {
+        return toReader(receive(send(request)));
+    }
+
+    // La risposta è formata dall'esito dell'operazione e dagli attributi, che vengono poi letti riga per riga
+    private static BufferedReader toReader(String[] parts)
+    throws IOException {
+        if ( parts.length < 2 )
+            throw new IOException("Risposta del server non valida");
+
+        return new BufferedReader( new StringReader( parts[0] + "\n" + parts[1] + "\n" ));
+    }
+
+    // Chiede al server di comprimere le risposte più grandi, se il server non lo supporta continuano ad arrivare non compresse,
+    // e se configurato di inviare le notifiche dei follower sulla connessione invece che con la callback RMI
+    private static void negotiate()
+    throws IOException {
+        int requested = Frame.CAPABILITY_COMPRESSION;
+        if ( notificationMode.equals("push") )
+            requested |= Frame.CAPABILITY_PUSH;
 
-        return req;
+        String[] parts = receive(send(RequestCodec.request(Operation.HELLO).putInt(requested).toByteArray()));
+        try{
+            push = parts.length > 1 && ( Integer.parseInt(parts[1]) & Frame.CAPABILITY_PUSH ) != 0;
+        } catch ( NumberFormatException e ){
+            push = false;
+        }
+    }
+
+    // Applica una notifica arrivata sulla connessione, invocato dal thread reader nell'ordine di arrivo
+    private static void onNotification(String notification){
+        Set<String> current = followers;
+        if ( current == null )
+            return;
+
+        // Al login il server invia l'elenco completo dei follower, poi soltanto i cambiamenti
+        if ( notification.startsWith(ClientNotifyInterface.FOLLOWERS + ";") ){
+            String[] token = notification.split(";");
+            synchronized ( current ){
+                current.clear();
+                for ( int i = 1; i < token.length; i++ )
+                    current.add(token[i]);
+            }
+            return;
+        }
+
+        ClientNotify.update(current, notification);
+    }
+
+    // Invia la richiesta al server senza attendere la risposta, restituisce l'identificativo con cui recuperarla
+    // Più richieste possono essere inviate una dopo l'altra, il server le elabora nell'ordine di invio
+    private static int send(byte[] request)
+    throws IOException {
+        int requestId = nextRequestId++;
+        Frame.write(out, requestId, request);
+        return requestId;
+    }
+
+    // Attende la risposta alla richiesta indicata, le risposte ad altre richieste arrivate nel frattempo vengono conservate dal reader
+    private static String[] receive(int requestId)
+    throws IOException {
+        byte[] reply = reader.await(requestId);
+
+        try{
+            return RequestCodec.decodeReply(reply);
+        } catch ( IllegalArgumentException e ){
+            throw new IOException("Risposta del server non valida", e);
+        }
     }
 
     public static boolean register(String username, String password, Set<String> tags){
@@ -446,23 +552,28 @@ public class ClientMain {
         }
 
         // La fase di login viene fatta tramite connessione TCP
-        String request = toRequest(new ArrayList<String>( Arrays.asList(Operation.LOGIN.toString(), username, password)));
+        byte[] request = RequestCodec.request(Operation.LOGIN).putString(username).putString(password).toByteArray();
+        // Con le notifiche sulla connessione l'elenco dei follower arriva prima della risposta al login
+        if ( push ){
+            followers = new HashSet<String>();
+            followersOwner = null;
+        }
 
         try{
-            out.println(request);
-            String reply = in.readLine();
+            BufferedReader response = communicate(request);
+            String reply = response.readLine();
             logged = reply.equals(Communication.Success.toString()) ? true : false;
             
             if ( !logged ){
                 System.out.println(Operation.LOGIN + " fallita: " + reply);
-                in.readLine(); // Leggo gli attributi, ma li ignoro perché non servono
+                response.readLine(); // Leggo gli attributi, ma li ignoro perché non servono
                 return false;
             }
 
             thisUser = username;
             // se il login ha avuto successo, il client si registra al servizio di multicast per la notifica delle ricompense
-            String multicastAddress = in.readLine();
-            int multicastPort = Integer.parseInt(in.readLine());
+            String multicastAddress = response.readLine();
+            int multicastPort = Integer.parseInt(response.readLine());
             
             // Iscrizione al gruppo di multicast per l'aggiornamento delle ricompense
             try{
@@ -474,18 +585,32 @@ public class ClientMain {
                 System.exit(FAILURE);
             }
 
-            // se il login ha avuto successo, il client si registra al servizio di callback tramite RMI
+            // se il login ha avuto successo e le notifiche non arrivano sulla connessione, il client si registra al servizio di callback tramite RMI
             try{
-                if ( serviceRMI == null ){
-                    // L'utente si è registrato su un client diverso da questo dove sta effettuando il login
-                    Registry registry = LocateRegistry.getRegistry(rmiPort);
-                    serviceRMI = ( RMIServiceInterface ) registry.lookup(rmiServiceName);
-                }
-                
-                stub = new ClientNotify(username);
-                synchronized ( stub ){
-                    followers = serviceRMI.registerForCallback(stub);
-                    stub.setFollowers(followers);
+                if ( !push ){
+                    if ( serviceRMI == null ){
+                        // L'utente si è registrato su un client diverso da questo dove sta effettuando il login
+                        Registry registry = LocateRegistry.getRegistry(rmiPort);
+                        serviceRMI = ( RMIServiceInterface ) registry.lookup(rmiServiceName);
+                    }
+
+                    stub = new ClientNotify(username);
+                    synchronized ( stub ){
+                        // Se conosco già i follower di questo utente da un login precedente chiedo solo le modifiche successive
+                        boolean known = username.equals(followersOwner) && followers != null;
+                        FollowerSync sync = serviceRMI.registerForCallback(stub, followersEpoch, known ? followersVersion : FollowerSync.UNKNOWN);
+                        if ( sync != null ){
+                            followers = sync.apply(known ? followers : null);
+                            followersOwner = username;
+                            followersEpoch = sync.getEpoch();
+                            followersVersion = sync.getVersion();
+                        }
+                        else {
+                            followers = null;
+                            followersOwner = null;
+                        }
+                        stub.setFollowers(followers);
+                    }
                 }
             } catch ( NotBoundException e ){
                 System.err.println("Errore fatale: " + e.getMessage() + ", terminazione");
@@ -511,12 +636,12 @@ public class ClientMain {
         }
 
         // La fase di logout viene fatta tramite connessione TCP
-        String request = toRequest(new ArrayList<String>( Arrays.asList(Operation.LOGOUT.toString(), thisUser)));
+        byte[] request = RequestCodec.request(Operation.LOGOUT).toByteArray();
         try{
-            out.println(request);
+            BufferedReader response = communicate(request);
 
-            String reply = in.readLine();
-            in.readLine(); // Leggo gli attributi, ma li ignoro perché non servono
+            String reply = response.readLine();
+            response.readLine(); // Leggo gli attributi, ma li ignoro perché non servono
             logged =  reply.equals(Communication.Success.toString()) ? false : true;
             
             if ( logged ){
@@ -529,7 +654,8 @@ public class ClientMain {
             rewardUpdater.stop();
             // Finita la sessione su Winsome, il client si cancella dal servizio di callback
             try{
-                serviceRMI.unregisterForCallback(stub);
+                if ( !push )
+                    serviceRMI.unregisterForCallback(stub);
             } catch (RemoteException e ){
                 System.err.println("Errore fatale: " + e.getMessage() + ", terminazione");
                 System.exit(FAILURE);
@@ -550,19 +676,19 @@ public class ClientMain {
             return false;
         }
         // Preparo la richiesta nel formato che il server riesce a leggere
-        String request = toRequest(new ArrayList<String>(Arrays.asList(Operation.LIST_USERS.toString(), thisUser)));
+        byte[] request = RequestCodec.request(Operation.LIST_USERS).toByteArray();
         try{
-            out.println(request);
+            BufferedReader response = communicate(request);
 
-            String reply = in.readLine();
+            String reply = response.readLine();
             if ( !reply.equals(Communication.Success.toString()) ){
                 System.err.println(Operation.LIST_USERS + " fallita: " + reply);
-                in.readLine(); // Leggo gli attributi, ma li ignoro perché non servono
+                response.readLine(); // Leggo gli attributi, ma li ignoro perché non servono
                 return false;
             }
 
             // Stampo a video gli utenti con almeno un tag in comune a thisUser
-            System.out.println(in.readLine());
+            System.out.println(response.readLine());
 
         } catch ( IOException | NullPointerException e ){
             System.err.println("Errore fatale: " + e.getMessage() + ", terminazione");
@@ -579,11 +705,16 @@ public class ClientMain {
             return false;
         }
 
-        synchronized ( followers ){
-            if ( followers == null || followers.isEmpty() )
+        Set<String> current = followers;
+        if ( current == null ){
+            System.out.println("L'utente non ha follower");
+            return true;
+        }
+        synchronized ( current ){
+            if ( current.isEmpty() )
                 System.out.println("L'utente non ha follower");
             else
-                System.out.println(followers.toString());
+                System.out.println(current.toString());
         }
 
         return true;
@@ -596,19 +727,19 @@ public class ClientMain {
             return false;
         }
 
-        String request = toRequest(new ArrayList<String>(Arrays.asList(Operation.LIST_FOLLOWING.toString(), thisUser)));
+        byte[] request = RequestCodec.request(Operation.LIST_FOLLOWING).toByteArray();
         try{
-            out.println(request);
+            BufferedReader response = communicate(request);
 
-            String reply = in.readLine();
+            String reply = response.readLine();
             if ( !reply.equals(Communication.Success.toString()) ){
                 System.err.println(Operation.LIST_FOLLOWING + " fallita: " + reply);
-                in.readLine(); // Leggo gli attributi, ma li ignoro perché non servono
+                response.readLine(); // Leggo gli attributi, ma li ignoro perché non servono
                 return false;
             }
 
             // Stampo a video la lista degli utenti che thisUser segue
-            System.out.println(in.readLine());
+            System.out.println(response.readLine());
 
         } catch ( IOException | NullPointerException e ){
             System.err.println("Errore fatale: " + e.getMessage() + ", terminazione");
@@ -625,11 +756,11 @@ public class ClientMain {
             return false;
         }
         
-        String request = toRequest(new ArrayList<String>(Arrays.asList(Operation.FOLLOW_USER.toString(), thisUser, idUser)));
+        byte[] request = RequestCodec.request(Operation.FOLLOW_USER).putString(idUser).toByteArray();
         try{
-            out.println(request);
-            String reply = in.readLine();
-            in.readLine(); // Leggo gli attributi, ma li ignoro perché non servono
+            BufferedReader response = communicate(request);
+            String reply = response.readLine();
+            response.readLine(); // Leggo gli attributi, ma li ignoro perché non servono
 
             if ( !reply.equals(Communication.Success.toString()) ){
                 System.err.println(Operation.FOLLOW_USER + " fallita: " + reply);
@@ -652,11 +783,11 @@ public class ClientMain {
             return false;
         }
 
-        String request = toRequest(new ArrayList<String>(Arrays.asList(Operation.UNFOLLOW_USER.toString(), thisUser, idUser)));
+        byte[] request = RequestCodec.request(Operation.UNFOLLOW_USER).putString(idUser).toByteArray();
         try{
-            out.println(request);
-            String reply = in.readLine();
-            in.readLine(); // Leggo gli attributi, ma li ignoro perché non servono
+            BufferedReader response = communicate(request);
+            String reply = response.readLine();
+            response.readLine(); // Leggo gli attributi, ma li ignoro perché non servono
 
             if ( !reply.equals(Communication.Success.toString()) ){
                 System.err.println(Operation.UNFOLLOW_USER + " fallita: " + reply);
@@ -672,29 +803,39 @@ public class ClientMain {
         return true;
     }
 
-    public static boolean viewBlog(){
+    public static boolean viewBlog(boolean next){
         if ( !logged || thisUser.equals("") ){
             // Questo utente non aveva effettuato il login (con questo client)
             System.err.println(Operation.VIEW_BLOG + " fallita: Nessun utente si era loggato con questo client");
             return false;
         }
+        if ( next && blogCursor.equals("") ){
+            System.err.println(Operation.VIEW_BLOG + " fallita: Non ci sono altri post da visualizzare");
+            return false;
+        }
 
-        String request = toRequest(new ArrayList<String>(Arrays.asList(Operation.VIEW_BLOG.toString(), thisUser)));
+        // Il blog arriva una pagina alla volta, il cursore indica al server da dove riprendere
+        byte[] request = RequestCodec.request(Operation.VIEW_BLOG).putInt(PAGE_SIZE).putString(next ? blogCursor : "").toByteArray();
         try{
-            out.println(request);
-            String reply = in.readLine();
+            String[] parts = receive(send(request));
+            BufferedReader response = toReader(parts);
+            String reply = response.readLine();
             if ( !reply.equals(Communication.Success.toString()) ){
                 System.err.println(Operation.VIEW_BLOG + " fallita: " + reply);
-                in.readLine(); // Leggo gli attributi, ma li ignoro perché non servono
+                response.readLine(); // Leggo gli attributi, ma li ignoro perché non servono
+                blogCursor = "";
                 return false;
             }
 
             String blog = "", s = "";
-            while ( !( s = in.readLine() ).equals(";") )
+            while ( !( s = response.readLine() ).equals(";") )
                 blog = blog + s + "\n";
             
             // Stampo a video il blog di thisUser
             System.out.println(blog);
+            blogCursor = parts.length > 2 ? parts[2] : "";
+            if ( !blogCursor.equals("") )
+                System.out.println("Altri post disponibili, digitare blog next per visualizzarli");
 
         } catch ( IOException | NullPointerException e ){
             System.err.println("Errore fatale: " + e.getMessage() + ", terminazione");
@@ -711,11 +852,11 @@ public class ClientMain {
             return false;
         }
 
-        String request = toRequest(new ArrayList<String>(Arrays.asList(Operation.CREATE_POST.toString(), thisUser, title, content)));
+        byte[] request = RequestCodec.request(Operation.CREATE_POST).putString(title).putString(content).toByteArray();
         try{
-            out.println(request);
-            String reply = in.readLine();
-            in.readLine(); // Leggo gli attributi, ma li ignoro perché non servono
+            BufferedReader response = communicate(request);
+            String reply = response.readLine();
+            response.readLine(); // Leggo gli attributi, ma li ignoro perché non servono
 
             if ( !reply.equals(Communication.Success.toString()) ){
                 System.err.println(Operation.CREATE_POST + " fallita: " + reply);
@@ -731,29 +872,39 @@ public class ClientMain {
         return true;
     }
 
-    public static boolean showFeed(){
+    public static boolean showFeed(boolean next){
         if ( !logged || thisUser.equals("") ){
             // Questo utente non aveva effettuato il login (con questo client)
             System.err.println(Operation.SHOW_FEED + " fallita: Nessun utente si era loggato con questo client");
             return false;
         }
+        if ( next && feedCursor.equals("") ){
+            System.err.println(Operation.SHOW_FEED + " fallita: Non ci sono altri post da visualizzare");
+            return false;
+        }
 
-        String request = toRequest(new ArrayList<String>(Arrays.asList(Operation.SHOW_FEED.toString(), thisUser)));
+        // Il feed arriva una pagina alla volta, il cursore indica al server da dove riprendere
+        byte[] request = RequestCodec.request(Operation.SHOW_FEED).putInt(PAGE_SIZE).putString(next ? feedCursor : "").toByteArray();
         try{
-            out.println(request);
+            String[] parts = receive(send(request));
+            BufferedReader response = toReader(parts);
 
-            String reply = in.readLine();
+            String reply = response.readLine();
             if ( !reply.equals(Communication.Success.toString()) ){
                 System.err.println(Operation.SHOW_FEED + " fallita: " + reply);
-                in.readLine(); // Leggo gli attributi, ma li ignoro perché non servono
+                response.readLine(); // Leggo gli attributi, ma li ignoro perché non servono
+                feedCursor = "";
                 return false;
             }
             String feed = "", s = "";
-            while ( !( s = in.readLine() ).equals(";") )
+            while ( !( s = response.readLine() ).equals(";") )
                 feed = feed + s + "\n";
 
             // Stampo a video il feed di thisUser
             System.out.println(feed);
+            feedCursor = parts.length > 2 ? parts[2] : "";
+            if ( !feedCursor.equals("") )
+                System.out.println("Altri post disponibili, digitare show feed next per visualizzarli");
 
         } catch ( IOException | NullPointerException e ){
             System.err.println("Errore fatale: " + e.getMessage() + ", terminazione");
@@ -770,19 +921,19 @@ public class ClientMain {
             return false;
         }
 
-        String request = toRequest(new ArrayList<String>(Arrays.asList(Operation.SHOW_POST.toString(), thisUser, idPost.toString())));
+        byte[] request = RequestCodec.request(Operation.SHOW_POST).putInt(idPost).toByteArray();
         try{
-            out.println(request);
+            BufferedReader response = communicate(request);
 
-            String reply = in.readLine();
+            String reply = response.readLine();
             if ( !reply.equals(Communication.Success.toString()) ){
                 System.err.println(Operation.SHOW_POST + " fallita: " + reply);
-                in.readLine(); // Leggo gli attributi, ma li ignoro perché non servono
+                response.readLine(); // Leggo gli attributi, ma li ignoro perché non servono
                 return false;
             }
 
             String post = "", s = "";
-            while ( !( s = in.readLine() ).equals(";") )
+            while ( !( s = response.readLine() ).equals(";") )
                 post = post + s + "\n";
 
             // Stampo a video il post richiesto
@@ -803,11 +954,11 @@ public class ClientMain {
             return false;
         }
 
-        String request = toRequest(new ArrayList<String>(Arrays.asList(Operation.DELETE_POST.toString(), thisUser, idPost.toString())));
+        byte[] request = RequestCodec.request(Operation.DELETE_POST).putInt(idPost).toByteArray();
         try{
-            out.println(request);
-            String reply = in.readLine();
-            in.readLine(); // Leggo gli attributi, ma li ignoro perché non servono
+            BufferedReader response = communicate(request);
+            String reply = response.readLine();
+            response.readLine(); // Leggo gli attributi, ma li ignoro perché non servono
 
             if ( !reply.equals(Communication.Success.toString()) ){
                 System.err.println(Operation.DELETE_POST + " fallita: " + reply);
@@ -830,11 +981,11 @@ public class ClientMain {
             return false;
         }
 
-        String request = toRequest(new ArrayList<String>(Arrays.asList(Operation.REWIN_POST.toString(), thisUser, idPost.toString())));
+        byte[] request = RequestCodec.request(Operation.REWIN_POST).putInt(idPost).toByteArray();
         try{
-            out.println(request);
-            String reply = in.readLine();
-            in.readLine(); // Leggo gli attributi, ma li ignoro perché non servono
+            BufferedReader response = communicate(request);
+            String reply = response.readLine();
+            response.readLine(); // Leggo gli attributi, ma li ignoro perché non servono
 
             if ( !reply.equals(Communication.Success.toString()) ){
                 System.err.println(Operation.REWIN_POST + " fallita: " + reply);
@@ -857,11 +1008,11 @@ public class ClientMain {
             return false;
         }
 
-        String request = toRequest(new ArrayList<String>(Arrays.asList(Operation.RATE_POST.toString(), thisUser, idPost.toString(), vote.toString())));
+        byte[] request = RequestCodec.request(Operation.RATE_POST).putInt(idPost).putInt(vote).toByteArray();
         try{
-            out.println(request);
-            String reply = in.readLine();
-            in.readLine(); // Leggo gli attributi, ma li ignoro perché non servono
+            BufferedReader response = communicate(request);
+            String reply = response.readLine();
+            response.readLine(); // Leggo gli attributi, ma li ignoro perché non servono
 
             if ( !reply.equals(Communication.Success.toString()) ){
                 System.err.println(Operation.RATE_POST + " fallita: " + reply);
@@ -884,11 +1035,11 @@ public class ClientMain {
             return false;
         }
 
-        String request = toRequest(new ArrayList<String>(Arrays.asList(Operation.ADD_COMMENT.toString(), thisUser, idPost.toString(), content)));
+        byte[] request = RequestCodec.request(Operation.ADD_COMMENT).putInt(idPost).putString(content).toByteArray();
         try{
-            out.println(request);
-            String reply = in.readLine();
-            in.readLine(); // Leggo gli attributi, ma li ignoro perché non servono
+            BufferedReader response = communicate(request);
+            String reply = response.readLine();
+            response.readLine(); // Leggo gli attributi, ma li ignoro perché non servono
 
             if ( !reply.equals(Communication.Success.toString()) ){
                 System.err.println(Operation.ADD_COMMENT + " fallita: " + reply);
@@ -911,19 +1062,19 @@ public class ClientMain {
             return false;
         }
 
-        String request = toRequest(new ArrayList<String>(Arrays.asList(Operation.GET_WALLET.toString(), thisUser)));
+        byte[] request = RequestCodec.request(Operation.GET_WALLET).toByteArray();
         try{
-            out.println(request);
+            BufferedReader response = communicate(request);
 
-            String reply = in.readLine();
+            String reply = response.readLine();
             if ( !reply.equals(Communication.Success.toString()) ){
                 System.err.println(Operation.GET_WALLET + " fallita: " + reply);
-                in.readLine(); // Leggo gli attributi, ma li ignoro perché non servono
+                response.readLine(); // Leggo gli attributi, ma li ignoro perché non servono
                 return false;
             }
 
             String wallet = "", s = "";
-            while ( !( s = in.readLine() ).equals(";") )
+            while ( !( s = response.readLine() ).equals(";") )
                 wallet = wallet + s + "\n";
 
             // Stampo a video il wallet di thisUser
@@ -944,19 +1095,19 @@ public class ClientMain {
             return false;
         }
 
-        String request = toRequest(new ArrayList<String>(Arrays.asList(Operation.GET_WALLET_BITCOIN.toString(), thisUser)));
+        byte[] request = RequestCodec.request(Operation.GET_WALLET_BITCOIN).toByteArray();
         try{
-            out.println(request);
+            BufferedReader response = communicate(request);
 
-            String reply = in.readLine();
+            String reply = response.readLine();
             if ( !reply.equals(Communication.Success.toString()) ){
                 System.err.println(Operation.GET_WALLET_BITCOIN + " fallita: " + reply);
-                in.readLine(); // Leggo gli attributi, ma li ignoro perché non servono
+                response.readLine(); // Leggo gli attributi, ma li ignoro perché non servono
                 return false;
             }
 
             String walletbtc = "", s = "";
-            while ( !( s = in.readLine() ).equals(";") )
+            while ( !( s = response.readLine() ).equals(";") )
                 walletbtc = walletbtc + s + "\n";
 
             // Stampo a video il wallet di thisUser
@@ -970,6 +1121,115 @@ public class ClientMain {
         return true;
     }
 
+    public static boolean batch(String fileName){
+        if ( !logged || thisUser.equals("") ){
+            // Questo utente non aveva effettuato il login (con questo client)
+            System.err.println(Operation.BATCH + " fallita: Nessun utente si era loggato con questo client");
+            return false;
+        }
+
+        // Traduco ogni riga del file nella richiesta corrispondente, le righe non valide vengono scartate
+        List<String> commands = new ArrayList<>();
+        RequestCodec.Builder batch = RequestCodec.request(Operation.BATCH);
+        List<byte[]> requests = new ArrayList<>();
+        try (
+            BufferedReader file = new BufferedReader(new FileReader(fileName));
+        ){
+            for ( String line = file.readLine(); line != null; line = file.readLine() ){
+                if ( line.isBlank() )
+                    continue;
+                byte[] request = toBatchRequest(line.trim().split(" "));
+                if ( request == null ){
+                    System.err.println("Comando non valido in un batch, ignorato: " + line);
+                    continue;
+                }
+                commands.add(line.trim());
+                requests.add(request);
+            }
+        } catch ( IOException e ){
+            System.err.println(Operation.BATCH + " fallita: Impossibile leggere il file " + fileName);
+            return false;
+        }
+
+        batch.putInt(requests.size());
+        for ( byte[] request : requests )
+            batch.putRequest(request);
+
+        try{
+            String[] parts = receive(send(batch.toByteArray()));
+            if ( !parts[0].equals(Communication.Success.toString()) ){
+                System.err.println(Operation.BATCH + " fallita: " + parts[0]);
+                return false;
+            }
+            if ( parts.length != 1 + 2 * commands.size() )
+                throw new IOException("Risposta del server non valida");
+
+            // Stampo l'esito di ogni comando, nell'ordine del file
+            for ( int i = 0; i < commands.size(); i++ ){
+                String reply = parts[1 + 2 * i];
+                String attr = parts[2 + 2 * i];
+                if ( !reply.equals(Communication.Success.toString()) )
+                    System.err.println(commands.get(i) + " fallita: " + reply);
+                else if ( commands.get(i).startsWith("show") )
+                    System.out.println(commands.get(i) + ":\n" + attr);
+                else
+                    System.out.println(commands.get(i) + " eseguita con successo");
+            }
+
+        } catch ( IOException | NullPointerException | ArrayIndexOutOfBoundsException e ){
+            System.err.println("Errore fatale: " + e.getMessage() + ", terminazione");
+            System.exit(FAILURE);
+        }
+
+        return true;
+    }
+
+    // Traduce un comando nella richiesta da inserire in un batch, null se il comando non è valido o non è ammesso in un batch
+    private static byte[] toBatchRequest(String[] req){
+        try{
+            switch ( req[0] ){
+                case "follow":
+                    if ( req.length != 2 ) return null;
+                    return RequestCodec.request(Operation.FOLLOW_USER).putString(req[1]).toByteArray();
+                case "unfollow":
+                    if ( req.length != 2 ) return null;
+                    return RequestCodec.request(Operation.UNFOLLOW_USER).putString(req[1]).toByteArray();
+                case "rate":{
+                    if ( req.length != 3 || !( req[2].equals("+1") || req[2].equals("-1") ) ) return null;
+                    int vote = req[2].equals("+1") ? 1 : -1;
+                    return RequestCodec.request(Operation.RATE_POST).putInt(Integer.parseInt(req[1])).putInt(vote).toByteArray();
+                }
+                case "comment":{
+                    if ( req.length < 3 ) return null;
+                    StringBuilder content = new StringBuilder(req[2]);
+                    for ( int i = 3; i < req.length; i++ )
+                        content.append(" " + req[i]);
+                    return RequestCodec.request(Operation.ADD_COMMENT).putInt(Integer.parseInt(req[1])).putString(content.toString()).toByteArray();
+                }
+                case "post":{
+                    if ( req.length < 3 ) return null;
+                    StringBuilder content = new StringBuilder(req[2]);
+                    for ( int i = 3; i < req.length; i++ )
+                        content.append(" " + req[i]);
+                    return RequestCodec.request(Operation.CREATE_POST).putString(req[1]).putString(content.toString()).toByteArray();
+                }
+                case "delete":
+                    if ( req.length != 2 ) return null;
+                    return RequestCodec.request(Operation.DELETE_POST).putInt(Integer.parseInt(req[1])).toByteArray();
+                case "rewin":
+                    if ( req.length != 2 ) return null;
+                    return RequestCodec.request(Operation.REWIN_POST).putInt(Integer.parseInt(req[1])).toByteArray();
+                case "show":
+                    if ( req.length != 3 || !req[1].equals("post") ) return null;
+                    return RequestCodec.request(Operation.SHOW_POST).putInt(Integer.parseInt(req[2])).toByteArray();
+                default:
+                    return null;
+            }
+        } catch ( NumberFormatException e ){
+            return null;
+        }
+    }
+
     public static void helpMessage(){
         System.out.println(
             "\nregister <username> <password> <tags>:\t Effettua la registrazione dell'utente" +
@@ -980,9 +1240,11 @@ public class ClientMain {
             "\nlist following:\t\t\t\t Restituisce la lista degli utenti seguiti" +
             "\nfollow <username>:\t\t\t Permette di seguire un utente" +
             "\nunfollow <username>:\t\t\t Permette di smettere di seguire un utente" +
-            "\nblog:\t\t\t\t\t Visualizza i post di cui l'utente è autore" +
+            "\nblog:\t\t\t\t\t Visualizza i post di cui l'utente è autore, dal più recente" +
+            "\nblog next:\t\t\t\t Visualizza la pagina successiva del blog" +
             "\npost <title> <content>:\t\t\t Crea un post" +
-            "\nshow feed:\t\t\t\t Visualizza il feed dell'utente" +
+            "\nshow feed:\t\t\t\t Visualizza il feed dell'utente, dal post più recente" +
+            "\nshow feed next:\t\t\t\t Visualizza la pagina successiva del feed" +
             "\nshow post <id>:\t\t\t\t Visualizza il post" +
             "\ndelete <idPost>:\t\t\t Elimina il post" +
             "\nrewin <idPost>:\t\t\t\t Effettua il rewin del post" +
@@ -990,6 +1252,7 @@ public class ClientMain {
             "\ncomment <idPost> <comment>:\t\t Aggiunge un commento al post" +
             "\nwallet:\t\t\t\t\t Visualizza il portafoglio dell'utente" +
             "\nwallet btc:\t\t\t\t Visualizza il portafoglio dell'utente in bitcoin" +
+            "\nbatch <file>:\t\t\t\t Esegue con un solo scambio di messaggi i comandi contenuti nel file, uno per riga" +
             "\nhelp:\t\t\t\t\t Visualizza questo messaggio"
         );
     }
@@ -2,6 +2,7 @@ package client;
 
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.List;
 import java.util.Set;
 
 import shared.ClientNotifyInterface;
@@ -28,6 +29,29 @@ public class ClientNotify extends UnicastRemoteObject implements ClientNotifyInt
     // Sincronizzo perché la registrazione è già avvenuta, potrebbe capitare che un utente inizi a seguirmi mentre inizializzo la struttura dei follower
     public synchronized boolean notify(String notify)
     throws RemoteException{
+        return update(followers, notify);
+    }
+
+    public synchronized boolean notifyBatch(List<String> notifications)
+    throws RemoteException{
+        if ( notifications == null )
+            return false;
+
+        boolean applied = true;
+        for ( String notify : notifications )
+            applied &= update(followers, notify);
+
+        return applied;
+    }
+
+    /**
+     * Aggiorna i follower in base a una notifica, arrivata con la callback RMI o sulla connessione TCP
+     * 
+     * @param followers Follower dell'utente, null se non sono ancora noti
+     * @param notify Notifica nella forma FOLLOW/UNFOLLOW;NomeFollower;
+     * @return true se la notifica è stata applicata, false altrimenti
+     */
+    protected static boolean update(Set<String> followers, String notify){
         if ( notify == null )
             return false;
 
@@ -0,0 +1,87 @@
+package client;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.zip.Inflater;
+
+import shared.Frame;
+import shared.RequestCodec;
+
+/**
+ * Thread che legge tutti i messaggi in arrivo dal server e li smista: le risposte vengono conservate
+ * finché il thread principale non le chiede, le notifiche vengono passate subito al gestore,
+ * anche mentre il thread principale è fermo in attesa di un comando da terminale
+ */
+public class ServerReader extends Thread {
+    private DataInputStream in; // Stream per leggere dal server
+    private Consumer<String> notifications; // Gestore delle notifiche, invocato da questo thread nell'ordine di arrivo
+    private Inflater inflater; // Decompressore riutilizzato per tutti i messaggi compressi
+    private Map<Integer, byte[]> replies; // Risposte arrivate e non ancora lette, per identificativo della richiesta
+    private IOException error; // Errore che ha interrotto la lettura, null finché la connessione è aperta
+
+    public ServerReader(DataInputStream in, Consumer<String> notifications){
+        if ( in == null || notifications == null )
+            throw new NullPointerException();
+
+        this.in = in;
+        this.notifications = notifications;
+        this.inflater = new Inflater();
+        this.replies = new HashMap<Integer, byte[]>();
+        this.error = null;
+        setDaemon(true);
+    }
+
+    /**
+     * Attende la risposta alla richiesta indicata
+     * 
+     * @param requestId Identificativo della richiesta
+     * @return Il contenuto della risposta, già decompresso
+     * @throws IOException Se la connessione con il server si è interrotta prima dell'arrivo della risposta
+     */
+    public synchronized byte[] await(int requestId)
+    throws IOException {
+        byte[] reply = replies.remove(requestId);
+        while ( reply == null ){
+            if ( error != null )
+                throw error;
+            try{
+                wait();
+            } catch ( InterruptedException e ){
+                throw new IOException("Attesa della risposta interrotta", e);
+            }
+            reply = replies.remove(requestId);
+        }
+        return reply;
+    }
+
+    public void run(){
+        try{
+            while ( true ){
+                Frame frame = Frame.read(in);
+                byte[] payload = frame.getPayload(inflater);
+                if ( frame.isPush() ){
+                    try{
+                        for ( String notification : RequestCodec.decodeReply(payload) )
+                            notifications.accept(notification);
+                    } catch ( IllegalArgumentException e ){
+                        System.err.println("Notifica del server non valida");
+                    }
+                    continue;
+                }
+
+                synchronized ( this ){
+                    replies.put(frame.getRequestId(), payload);
+                    notifyAll();
+                }
+            }
+        } catch ( IOException e ){
+            synchronized ( this ){
+                error = e;
+                notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package server;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * Thread che accetta le nuove connessioni TCP e le distribuisce
+ * in round-robin tra i worker, ognuno con il proprio selettore
+ */
+public class Acceptor extends Thread {
+    private volatile boolean toStop = false; // Variabile per la terminazione del thread
+
+    private ServerSocketChannel serverSocketChannel; // Canale su cui arrivano le richieste di connessione
+    private Selector selector; // Selettore dedicato alle sole accept
+    private Worker[] workers; // Worker a cui passare le connessioni accettate
+    private int next = 0; // Indice del prossimo worker a cui assegnare una connessione
+
+    /**
+     * Crea il thread che accetta le connessioni
+     *
+     * @param serverSocketChannel Canale (non bloccante) su cui il server è in ascolto
+     * @param workers Worker tra cui distribuire le connessioni (almeno uno)
+     * @throws IOException Se non è possibile aprire il selettore
+     * @throws NullPointerException Se serverSocketChannel o workers sono null
+     * @throws IllegalArgumentException Se non è indicato nessun worker
+     */
+    public Acceptor(ServerSocketChannel serverSocketChannel, Worker[] workers)
+    throws IOException, NullPointerException, IllegalArgumentException {
+        if ( serverSocketChannel == null || workers == null )
+            throw new NullPointerException();
+
+        if ( workers.length < 1 )
+            throw new IllegalArgumentException("È necessario almeno un worker");
+
+        this.serverSocketChannel = serverSocketChannel;
+        this.workers = workers;
+        this.selector = Selector.open();
+        // L'unica operazione che interessa a questo selettore è la richiesta di connessione
+        serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    protected void terminate(){
+        toStop = true;
+        selector.wakeup();
+    }
+
+    public void run(){
+        while ( !toStop ){
+            try{
+                selector.select();
+            } catch ( Exception e ){
+                System.err.println(e.getMessage());
+                break;
+            }
+
+            Set<SelectionKey> readyKeys = selector.selectedKeys();
+            Iterator<SelectionKey> iterator = readyKeys.iterator();
+            while ( iterator.hasNext() ){
+                SelectionKey key = iterator.next();
+                iterator.remove();
+                if ( !key.isValid() || !key.isAcceptable() )
+                    continue;
+
+                try{
+                    // Accetto tutte le connessioni in attesa, non solo la prima
+                    for ( SocketChannel client = serverSocketChannel.accept(); client != null; client = serverSocketChannel.accept() ){
+                        client.configureBlocking(false);
+                        // La connessione viene servita interamente dal worker scelto, che la registra sul proprio selettore
+                        workers[next].addConnection(client);
+                        next = ( next + 1 ) % workers.length;
+                    }
+                } catch ( IOException e ){
+                    e.printStackTrace();
+                }
+            }
+        }
+        try{
+            selector.close();
+        } catch ( IOException e ){
+            e.printStackTrace();
+        }
+        System.out.println("ACCEPTOR: Terminazione");
+    }
+}
@@ -0,0 +1,54 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Limite globale al numero di richieste in elaborazione, condiviso da tutti i worker.
+ * Quando il limite è raggiunto le nuove richieste vengono rifiutate subito invece di essere accodate
+ * all'esecutore, così nei picchi di carico la latenza resta limitata e la memoria non cresce senza controllo
+ */
+public class AdmissionControl {
+    private final int maxInFlight; // Numero massimo di richieste in elaborazione contemporaneamente
+    private final AtomicInteger inFlight; // Richieste attualmente in elaborazione
+
+    /**
+     * @param maxInFlight Numero massimo di richieste in elaborazione contemporaneamente
+     * @throws IllegalArgumentException Se maxInFlight non è positivo
+     */
+    public AdmissionControl(int maxInFlight)
+    throws IllegalArgumentException {
+        if ( maxInFlight <= 0 )
+            throw new IllegalArgumentException();
+
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new AtomicInteger(0);
+    }
+
+    /**
+     * Prova ad ammettere una richiesta all'elaborazione
+     *
+     * @return true se la richiesta è ammessa e dovrà essere seguita da release, false se il limite è raggiunto
+     */
+    public boolean tryAcquire(){
+        if ( inFlight.incrementAndGet() <= maxInFlight )
+            return true;
+
+        inFlight.decrementAndGet();
+        return false;
+    }
+
+    /**
+     * Segnala la fine dell'elaborazione di una richiesta ammessa
+     */
+    public void release(){
+        inFlight.decrementAndGet();
+    }
+
+    public int getInFlight(){
+        return inFlight.get();
+    }
+
+    public int getMaxInFlight(){
+        return maxInFlight;
+    }
+}
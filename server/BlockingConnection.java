@@ -0,0 +1,252 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.zip.Deflater;
+
+import shared.*;
+
+/**
+ * Connessione client servita in modalità bloccante da un thread dedicato (un virtual thread, se disponibili):
+ * legge una richiesta, la elabora con il RequestDispatcher condiviso e scrive la risposta, una richiesta alla volta.
+ * Applica gli stessi limiti del worker NIO: frequenza delle richieste, richieste in elaborazione e inattività.
+ * Le notifiche vengono accodate e scritte da un thread dedicato, avviato alla prima notifica: chi le invia non si blocca
+ * su un client lento, e oltre MAX_PENDING_PUSH notifiche in coda la connessione viene considerata congestionata
+ */
+public class BlockingConnection implements Runnable, ClientConnection {
+    private final static int MAX_PENDING_PUSH = 1024; // Numero massimo di notifiche in attesa di essere scritte
+
+    private BlockingServer server; // Server che ha accettato la connessione, a cui segnalarne la chiusura
+    private Socket socket; // Socket del client
+    private RequestDispatcher dispatcher; // Elaborazione delle richieste
+    private AdmissionControl admission; // Limite globale alle richieste in elaborazione
+    private RateLimiter limiter; // Limite di frequenza delle richieste per utente e per indirizzo
+    private int compressionThreshold; // Dimensione in byte oltre la quale le risposte vengono compresse, 0 se disabilitata
+    private Deflater deflater; // Compressore delle risposte, creato quando il client chiede la compressione
+    private Session session; // Sessione del client, a cui viene legato l'utente dopo il login
+    private volatile boolean compression; // true se il client ha chiesto con HELLO di ricevere le risposte compresse
+    private volatile DataOutputStream out; // Stream verso il client, condiviso con il thread delle notifiche e quindi usato in mutua esclusione
+    private BlockingQueue<String> pushes; // Notifiche in attesa di essere scritte
+    private Semaphore pushSignal; // Segnala al thread delle notifiche che ce ne sono di nuove in coda
+    private Thread pushWriter; // Thread che scrive le notifiche, null finché non ne arriva una
+    private boolean closed; // true se la connessione è stata chiusa, non vengono avviati altri thread
+
+    /**
+     * @param server Server che ha accettato la connessione
+     * @param socket Socket del client, con il timeout di inattività già impostato
+     * @param dispatcher Elaborazione delle richieste
+     * @param admission Limite globale alle richieste in elaborazione
+     * @param limiter Limite di frequenza delle richieste
+     * @param compressionThreshold Dimensione in byte oltre la quale le risposte vengono compresse, 0 per non comprimerle mai
+     */
+    public BlockingConnection(BlockingServer server, Socket socket, RequestDispatcher dispatcher, AdmissionControl admission,
+                              RateLimiter limiter, int compressionThreshold){
+        if ( server == null || socket == null || dispatcher == null || admission == null || limiter == null )
+            throw new NullPointerException();
+
+        this.server = server;
+        this.socket = socket;
+        this.dispatcher = dispatcher;
+        this.admission = admission;
+        this.limiter = limiter;
+        this.compressionThreshold = compressionThreshold;
+        this.deflater = null;
+        this.session = new Session();
+        this.compression = false;
+        this.out = null;
+        this.pushes = new ArrayBlockingQueue<String>(MAX_PENDING_PUSH);
+        this.pushSignal = new Semaphore(0);
+        this.pushWriter = null;
+        this.closed = false;
+    }
+
+    public Session getSession(){
+        return session;
+    }
+
+    /**
+     * Abilita la compressione delle risposte se il client la richiede e il server la supporta
+     * 
+     * @param requested Funzionalità richieste dal client
+     * @return Le funzionalità che verranno utilizzate
+     */
+    public int negotiate(int requested){
+        compression = ( requested & Frame.CAPABILITY_COMPRESSION ) != 0 && compressionThreshold > 0;
+        return compression ? Frame.CAPABILITY_COMPRESSION : 0;
+    }
+
+    /**
+     * Accoda la notifica, che verrà scritta dal thread delle notifiche o prima della prossima risposta
+     * 
+     * @param notification Contenuto della notifica
+     * @return true se la notifica è stata accodata, false se la connessione è congestionata o chiusa
+     */
+    public boolean push(String notification){
+        if ( out == null || !pushes.offer(notification) )
+            return false;
+
+        synchronized ( this ){
+            if ( closed )
+                return false;
+            if ( pushWriter == null ){
+                pushWriter = server.newThread(this::writePushes);
+                pushWriter.start();
+            }
+        }
+        pushSignal.release();
+        return true;
+    }
+
+    /**
+     * Corpo del thread delle notifiche: a ogni segnale scrive tutte le notifiche in coda
+     */
+    private void writePushes(){
+        try{
+            while ( true ){
+                pushSignal.acquire();
+                DataOutputStream stream = out;
+                synchronized ( stream ){
+                    flushPushes(stream);
+                }
+            }
+        } catch ( InterruptedException e ){
+            // La connessione è stata chiusa
+        } catch ( IOException e ){
+            // Il client non è più raggiungibile, il thread della connessione se ne accorgerà alla prossima lettura
+            close();
+        }
+    }
+
+    /**
+     * Scrive le notifiche in coda, va invocato con il lock dello stream.
+     * Il thread della connessione lo invoca anche prima di ogni risposta, così le notifiche accodate
+     * durante l'elaborazione di una richiesta arrivano prima della sua risposta
+     * 
+     * @param stream Stream verso il client
+     * @throws IOException Se la scrittura fallisce
+     */
+    private void flushPushes(DataOutputStream stream)
+    throws IOException {
+        for ( String notification = pushes.poll(); notification != null; notification = pushes.poll() )
+            Frame.write(stream, 0, RequestCodec.encodeReply(new String[]{ notification }), false, true);
+    }
+
+    /**
+     * Chiude il socket, sbloccando il thread della connessione se è in attesa di una richiesta
+     */
+    protected void close(){
+        try{
+            socket.close();
+        } catch ( IOException e ){
+            System.err.println(e.getMessage());
+        }
+    }
+
+    public void run(){
+        try (
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))
+        ){
+            this.out = out;
+            while ( true ){
+                Frame request;
+                try{
+                    request = Frame.read(in);
+                } catch ( EOFException e ){
+                    // Il client ha chiuso la connessione
+                    break;
+                } catch ( SocketTimeoutException e ){
+                    WinsomeUser user = session.getUser();
+                    System.out.println("WORKER: Chiusa connessione inattiva" + ( user != null ? " dell'utente " + user.getNickname() : "" ));
+                    break;
+                }
+
+                String[] reply = process(request.getPayload());
+                byte[] payload = RequestCodec.encodeReply(reply);
+                boolean compressed = false;
+                if ( compression && payload.length >= compressionThreshold ){
+                    byte[] deflated = deflate(payload);
+                    if ( deflated.length < payload.length ){
+                        payload = deflated;
+                        compressed = true;
+                    }
+                }
+                synchronized ( out ){
+                    flushPushes(out);
+                    Frame.write(out, request.getRequestId(), payload, compressed);
+                }
+            }
+        } catch ( IOException e ){
+            // Connessione chiusa dal client o dal server in chiusura
+        } finally {
+            close();
+            synchronized ( this ){
+                closed = true;
+                if ( pushWriter != null )
+                    pushWriter.interrupt();
+            }
+            WinsomeUser user = session.close();
+            if ( user != null )
+                dispatcher.logout(user, this);
+            if ( deflater != null )
+                deflater.end();
+            server.removeConnection(this);
+        }
+    }
+
+    /**
+     * Elabora una richiesta nel thread della connessione, dopo aver verificato i limiti
+     * 
+     * @param payload Contenuto della richiesta
+     * @return La risposta da inviare al client
+     */
+    private String[] process(byte[] payload){
+        WinsomeUser user = session.getUser();
+        if ( !limiter.tryAcquire(socket.getInetAddress().getHostAddress(), user != null ? user.getNickname() : null, limiter.getCost(payload)) )
+            return dispatcher.reject(payload, Communication.RateLimited);
+        if ( !admission.tryAcquire() )
+            return dispatcher.reject(payload, Communication.ServerBusy);
+
+        try{
+            return dispatcher.processRequest(ByteBuffer.wrap(payload), this);
+        } finally {
+            admission.release();
+        }
+    }
+
+    /**
+     * Comprime il contenuto di una risposta nel formato descritto da Frame
+     * 
+     * @param payload Contenuto originale
+     * @return La lunghezza originale seguita dai dati compressi
+     */
+    private byte[] deflate(byte[] payload){
+        if ( deflater == null )
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        deflater.reset();
+        deflater.setInput(payload);
+        deflater.finish();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(payload.length / 2);
+        bytes.write(payload.length >>> 24);
+        bytes.write(payload.length >>> 16);
+        bytes.write(payload.length >>> 8);
+        bytes.write(payload.length);
+        byte[] chunk = new byte[8 * 1024];
+        while ( !deflater.finished() )
+            bytes.write(chunk, 0, deflater.deflate(chunk));
+
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,143 @@
+package server;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Alternativa bloccante ad Acceptor e Worker: accetta le connessioni e serve ognuna con un thread dedicato
+ * che legge e scrive con stream bloccanti. Con java 21 i thread sono virtual thread, quindi una connessione
+ * in attesa non occupa un thread del sistema operativo; con versioni precedenti si ripiega su thread normali.
+ * Le richieste vengono elaborate dallo stesso RequestDispatcher dei worker NIO
+ */
+public class BlockingServer extends Thread {
+    private final static long JOIN_TIMEOUT = 5000; // Millisecondi massimi di attesa della terminazione di ogni connessione
+
+    private volatile boolean toStop = false; // Variabile per la terminazione del thread
+
+    private ServerSocket serverSocket; // Socket su cui arrivano le richieste di connessione
+    private RequestDispatcher dispatcher; // Elaborazione delle richieste
+    private AdmissionControl admission; // Limite globale alle richieste in elaborazione
+    private RateLimiter limiter; // Limite di frequenza delle richieste per utente e per indirizzo
+    private int idleTimeout; // Millisecondi di inattività dopo cui una connessione viene chiusa, 0 per non chiuderle mai
+    private int compressionThreshold; // Dimensione in byte oltre la quale le risposte vengono compresse, 0 se disabilitata
+    private ThreadFactory threads; // Crea i thread delle connessioni
+    private Map<BlockingConnection, Thread> connections; // Connessioni aperte con il thread che le serve
+
+    /**
+     * @param serverSocket Socket su cui il server è in ascolto
+     * @param dispatcher Elaborazione delle richieste
+     * @param admission Limite globale alle richieste in elaborazione
+     * @param limiter Limite di frequenza delle richieste
+     * @param idleTimeout Millisecondi di inattività dopo cui una connessione viene chiusa, 0 per non chiuderle mai
+     * @param compressionThreshold Dimensione in byte oltre la quale le risposte vengono compresse, 0 per non comprimerle mai
+     * @throws IllegalArgumentException Se idleTimeout o compressionThreshold sono negativi
+     */
+    public BlockingServer(ServerSocket serverSocket, RequestDispatcher dispatcher, AdmissionControl admission, RateLimiter limiter,
+                          long idleTimeout, int compressionThreshold)
+    throws IllegalArgumentException {
+        if ( serverSocket == null || dispatcher == null || admission == null || limiter == null )
+            throw new NullPointerException();
+        if ( idleTimeout < 0 || idleTimeout > Integer.MAX_VALUE || compressionThreshold < 0 )
+            throw new IllegalArgumentException();
+
+        this.serverSocket = serverSocket;
+        this.dispatcher = dispatcher;
+        this.admission = admission;
+        this.limiter = limiter;
+        this.idleTimeout = ( int ) idleTimeout;
+        this.compressionThreshold = compressionThreshold;
+        this.threads = createThreadFactory();
+        this.connections = new ConcurrentHashMap<BlockingConnection, Thread>();
+    }
+
+    /**
+     * Crea i thread delle connessioni: virtual thread se disponibili (java 21), altrimenti thread normali
+     * 
+     * @return La fabbrica dei thread delle connessioni
+     */
+    private static ThreadFactory createThreadFactory(){
+        try{
+            // Invocato per riflessione perché il server deve compilare anche con versioni di java precedenti alla 21
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return ( ThreadFactory ) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch ( ReflectiveOperationException e ){
+            System.err.println("SERVER: Virtual thread non disponibili, ogni connessione avrà un thread di sistema");
+            return Thread::new;
+        }
+    }
+
+    public int getConnections(){
+        return connections.size();
+    }
+
+    /**
+     * Rimuove una connessione chiusa, invocato dal suo thread
+     * 
+     * @param connection Connessione chiusa
+     */
+    protected void removeConnection(BlockingConnection connection){
+        connections.remove(connection);
+    }
+
+    protected void terminate(){
+        toStop = true;
+        // La accept si sblocca sollevando eccezione
+        try{
+            serverSocket.close();
+        } catch ( IOException e ){
+            System.err.println(e.getMessage());
+        }
+    }
+
+    /**
+     * Crea un thread dello stesso tipo di quelli delle connessioni, per chi scrive le notifiche
+     * 
+     * @param task Attività del thread
+     * @return Il thread, non ancora avviato
+     */
+    protected Thread newThread(Runnable task){
+        return threads.newThread(task);
+    }
+
+    public void run(){
+        while ( !toStop ){
+            Socket client = null;
+            try{
+                client = serverSocket.accept();
+                client.setSoTimeout(idleTimeout);
+                client.setTcpNoDelay(true);
+
+                BlockingConnection connection = new BlockingConnection(this, client, dispatcher, admission, limiter, compressionThreshold);
+                Thread thread = threads.newThread(connection);
+                connections.put(connection, thread);
+                thread.start();
+            } catch ( IOException e ){
+                if ( !toStop )
+                    e.printStackTrace();
+                if ( client != null ){
+                    try{
+                        client.close();
+                    } catch ( IOException ex ){
+                        System.err.println(ex.getMessage());
+                    }
+                }
+            }
+        }
+
+        // Chiudo le connessioni ancora aperte, i loro thread effettuano il logout e terminano
+        for ( BlockingConnection connection : connections.keySet() )
+            connection.close();
+        for ( Thread thread : connections.values() ){
+            try{
+                thread.join(JOIN_TIMEOUT);
+            } catch ( InterruptedException e ){
+                break;
+            }
+        }
+        System.out.println("ACCEPTOR: Terminazione");
+    }
+}
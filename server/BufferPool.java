@@ -0,0 +1,93 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Insieme di buffer diretti riutilizzabili, tutti della stessa dimensione.
+ * Ogni worker ha il proprio pool, che quindi viene usato da un solo thread e non è sincronizzato;
+ * soltanto i contatori possono essere letti da altri thread
+ */
+public class BufferPool {
+    private final int bufferSize; // Dimensione di ogni buffer del pool
+    private final int maxPooled; // Numero massimo di buffer liberi conservati, quelli in eccesso vengono lasciati al garbage collector
+    private final ArrayDeque<ByteBuffer> free; // Buffer liberi pronti per essere riutilizzati
+
+    private final LongAdder hits; // Richieste soddisfatte con un buffer già presente nel pool
+    private final LongAdder misses; // Richieste che hanno richiesto l'allocazione di un nuovo buffer
+
+    /**
+     * Crea un pool di buffer diretti
+     *
+     * @param bufferSize Dimensione di ogni buffer
+     * @param maxPooled Numero massimo di buffer liberi conservati
+     * @throws IllegalArgumentException Se bufferSize o maxPooled non sono positivi
+     */
+    public BufferPool(int bufferSize, int maxPooled)
+    throws IllegalArgumentException {
+        if ( bufferSize <= 0 || maxPooled <= 0 )
+            throw new IllegalArgumentException();
+
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+        this.free = new ArrayDeque<ByteBuffer>();
+        this.hits = new LongAdder();
+        this.misses = new LongAdder();
+    }
+
+    /**
+     * Restituisce un buffer libero (in modalità scrittura), allocandone uno nuovo se il pool è vuoto
+     *
+     * @return Un buffer della dimensione del pool
+     */
+    public ByteBuffer acquire(){
+        ByteBuffer buffer = free.poll();
+        if ( buffer != null ){
+            hits.increment();
+            return buffer;
+        }
+
+        misses.increment();
+        return ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    /**
+     * Alloca un buffer più grande di quelli del pool, che non verrà riutilizzato
+     *
+     * @param capacity Dimensione del buffer
+     * @return Un nuovo buffer (in modalità scrittura)
+     */
+    public ByteBuffer allocate(int capacity){
+        if ( capacity <= bufferSize )
+            return acquire();
+
+        misses.increment();
+        return ByteBuffer.allocateDirect(capacity);
+    }
+
+    /**
+     * Restituisce un buffer al pool. I buffer di dimensione diversa da quella del pool vengono scartati
+     *
+     * @param buffer Buffer da restituire, non deve più essere utilizzato dal chiamante
+     */
+    public void release(ByteBuffer buffer){
+        if ( buffer == null || !buffer.isDirect() || buffer.capacity() != bufferSize || free.size() >= maxPooled )
+            return;
+
+        buffer.clear();
+        free.push(buffer);
+    }
+
+    public int getBufferSize(){
+        return bufferSize;
+    }
+
+    public long getHits(){
+        return hits.sum();
+    }
+
+    public long getMisses(){
+        return misses.sum();
+    }
+}
@@ -0,0 +1,85 @@
+package server;
+
+/**
+ * Thread che aggiorna periodicamente il tasso di conversione da un'altra fonte e lo conserva in memoria.
+ * getRate restituisce sempre l'ultimo valore ottenuto con successo, senza attendere la fonte:
+ * se un aggiornamento fallisce resta valido il precedente, anche oltre la sua durata
+ */
+public class CachedRateProvider extends Thread implements RateProvider {
+    private final static long RETRY_PERIOD = 1000; // Millisecondi di attesa dopo il primo aggiornamento fallito, raddoppiano a ogni fallimento successivo
+
+    private final RateProvider source; // Fonte del tasso di conversione, può effettuare operazioni di rete
+    private final long ttl; // Millisecondi dopo cui il tasso viene aggiornato
+
+    private volatile boolean toStop = false; // Variabile per la terminazione del thread
+    private volatile Double rate = null; // Ultimo tasso ottenuto con successo, null se non ancora disponibile
+    private volatile long updated = 0; // Istante in millisecondi dell'ultimo aggiornamento riuscito
+
+    /**
+     * @param source Fonte del tasso di conversione
+     * @param ttl Millisecondi dopo cui il tasso viene aggiornato
+     * @throws NullPointerException Se source è null
+     * @throws IllegalArgumentException Se ttl non è positivo
+     */
+    public CachedRateProvider(RateProvider source, long ttl)
+    throws NullPointerException, IllegalArgumentException {
+        if ( source == null )
+            throw new NullPointerException();
+        if ( ttl <= 0 )
+            throw new IllegalArgumentException();
+
+        this.source = source;
+        this.ttl = ttl;
+        setDaemon(true);
+    }
+
+    public double getRate()
+    throws WinsomeException {
+        Double current = rate;
+        if ( current == null )
+            throw new WinsomeException("Tasso di conversione non ancora disponibile, riprovare più tardi");
+
+        return current;
+    }
+
+    /**
+     * Indica da quanto tempo il tasso non viene aggiornato
+     * 
+     * @return I millisecondi trascorsi dall'ultimo aggiornamento riuscito, -1 se non ce ne sono stati
+     */
+    public long getAge(){
+        return rate == null ? -1 : System.currentTimeMillis() - updated;
+    }
+
+    /**
+     * Funzione che permette al thread di terminare correttamente
+     */
+    public void terminate(){
+        toStop = true;
+        this.interrupt();
+    }
+
+    public void run(){
+        long retry = RETRY_PERIOD;
+        while ( !toStop ){
+            long wait = ttl;
+            try{
+                rate = source.getRate();
+                updated = System.currentTimeMillis();
+                retry = RETRY_PERIOD;
+            } catch ( WinsomeException e ){
+                // Continuo a restituire l'ultimo tasso valido e riprovo prima della scadenza normale
+                System.err.println("RATE: " + e.getMessage());
+                wait = Math.min(ttl, retry);
+                retry = Math.min(ttl, retry * 2);
+            }
+
+            try{
+                Thread.sleep(wait);
+            } catch ( InterruptedException e ){
+                break;
+            }
+        }
+        System.out.println("RATE: Terminazione");
+    }
+}
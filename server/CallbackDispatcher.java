@@ -0,0 +1,341 @@
+package server;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import shared.ClientNotifyInterface;
+
+/**
+ * Invio asincrono delle notifiche con le callback RMI: chi elabora una richiesta accoda la notifica e prosegue,
+ * così un client lento o non più raggiungibile non ritarda la risposta né occupa i thread delle richieste.
+ * Le notifiche di ogni destinatario formano una coda servita da un solo thread alla volta; destinatari diversi
+ * vengono serviti in parallelo dal pool.
+ * Le notifiche di un destinatario vengono raccolte per una breve finestra e inviate con una sola chiamata notifyBatch:
+ * nella coda resta solo l'ultimo evento di ogni follower, un FOLLOW seguito da un UNFOLLOW (o viceversa) si annullano
+ * se entrambi sono successivi ai follower inviati al client quando si è registrato, altrimenti resta il più recente.
+ * Un invio fallito viene ritentato dopo un'attesa che raddoppia a ogni tentativo: esauriti i tentativi lo stub
+ * viene rimosso dal servizio e le notifiche ancora in coda per quel destinatario vengono scartate.
+ * Il numero di notifiche in coda è limitato, oltre il limite le nuove notifiche vengono scartate
+ */
+public class CallbackDispatcher {
+    private final WinsomeRMIService service; // Servizio RMI in cui sono registrati gli stub dei client
+    private final ScheduledThreadPoolExecutor executor; // Pool che invia le notifiche e pianifica i nuovi tentativi
+    private final Map<String, Lane> lanes; // Code delle notifiche indicizzate per destinatario, presenti solo se non vuote
+    private final AtomicInteger queued; // Notifiche in coda in tutte le code, comprese quelle in corso di invio
+    private final int capacity; // Numero massimo di notifiche in coda
+    private final int maxAttempts; // Tentativi di invio dopo cui lo stub viene rimosso
+    private final long retryDelay; // Millisecondi di attesa dopo il primo tentativo fallito
+    private final long window; // Millisecondi durante cui si raccolgono le notifiche prima di inviarle
+    private final int maxBatch; // Numero massimo di notifiche inviate con una sola chiamata
+
+    /**
+     * Evento in attesa di essere notificato
+     */
+    private static class Pending {
+        private final String event; // FOLLOW o UNFOLLOW
+        private final long version; // Versione dei follower del destinatario che contiene l'evento
+
+        private Pending(String event, long version){
+            this.event = event;
+            this.version = version;
+        }
+    }
+
+    /**
+     * Coda delle notifiche di un destinatario, eseguita dal pool finché non si svuota.
+     * La coda viene rimossa dalla mappa quando si svuota e non accetta più notifiche:
+     * chi la trova chiusa ne crea una nuova
+     */
+    private class Lane implements Runnable {
+        private final String username; // Destinatario delle notifiche
+        private final Map<String, Pending> pending; // Ultimo evento di ogni follower ancora da inviare, nell'ordine di arrivo
+        private boolean started; // true se la coda è già stata passata al pool
+        private boolean closed; // true se la coda è stata rimossa dalla mappa
+        private int attempts; // Tentativi falliti per il gruppo di notifiche in corso di invio
+        private int inFlight; // Notifiche tolte dalla coda e non ancora consegnate o scartate
+
+        private Lane(String username){
+            this.username = username;
+            this.pending = new LinkedHashMap<String, Pending>();
+            this.started = false;
+            this.closed = false;
+            this.attempts = 0;
+            this.inFlight = 0;
+        }
+
+        /**
+         * Aggiunge un evento alla coda, annullandolo con l'evento opposto dello stesso follower se presente.
+         * Va invocato con la coda bloccata
+         *
+         * @param follower Utente che ha iniziato o smesso di seguire
+         * @param event Evento, più recente di quello eventualmente in coda per lo stesso follower
+         * @return Variazione del numero di notifiche in coda
+         */
+        private int merge(String follower, Pending event){
+            Pending previous = pending.get(follower);
+            if ( previous == null ){
+                pending.put(follower, event);
+                return 1;
+            }
+
+            if ( previous.event.equals(event.event) ){
+                // Evento ripetuto, il client lo riceverebbe due volte senza alcun effetto
+                pending.put(follower, event);
+                return 0;
+            }
+
+            if ( previous.version <= service.getSnapshotVersion(username) ){
+                // I follower inviati al client alla registrazione comprendono già l'evento in coda:
+                // annullandolo con quello opposto il client non saprebbe mai di quest'ultimo
+                pending.put(follower, event);
+                return 0;
+            }
+
+            // Gli eventi opposti si annullano, lo stato del client resta quello precedente
+            pending.remove(follower);
+            return -1;
+        }
+
+        public void run(){
+            try{
+                deliver();
+            } catch ( RuntimeException e ){
+                // Qualunque errore imprevisto chiude la coda, altrimenti resterebbe nella mappa senza essere più eseguita
+                System.err.println("CALLBACK: Errore nell'invio delle notifiche a " + username + ": " + e);
+                abandon();
+            }
+        }
+
+        /**
+         * Invia le notifiche in coda finché la coda non si svuota o un invio fallito non viene ripianificato
+         */
+        private void deliver(){
+            while ( true ){
+                Map<String, Pending> batch = new LinkedHashMap<String, Pending>();
+                synchronized ( this ){
+                    if ( pending.isEmpty() ){
+                        closed = true;
+                        lanes.remove(username, this);
+                        return;
+                    }
+
+                    Iterator<Map.Entry<String, Pending>> it = pending.entrySet().iterator();
+                    while ( it.hasNext() && batch.size() < maxBatch ){
+                        Map.Entry<String, Pending> entry = it.next();
+                        batch.put(entry.getKey(), entry.getValue());
+                        it.remove();
+                    }
+                    inFlight = batch.size();
+                }
+
+                ClientNotifyInterface stub = service.getCallback(username);
+                if ( stub == null ){
+                    // Il destinatario non è registrato: le notifiche non hanno più nessuno a cui arrivare
+                    release();
+                    discard();
+                    continue;
+                }
+
+                List<String> notifications = new ArrayList<String>(batch.size());
+                for ( Map.Entry<String, Pending> entry : batch.entrySet() )
+                    notifications.add(entry.getValue().event + ";" + entry.getKey() + ";");
+
+                try{
+                    stub.notifyBatch(notifications);
+                } catch ( RemoteException | RuntimeException e ){
+                    // RMI restituisce così com'è anche un'eccezione unchecked sollevata dal client: la tratto come un invio fallito
+                    if ( ++attempts < maxAttempts ){
+                        // Le notifiche tornano in coda davanti a quelle arrivate nel frattempo, con cui possono annullarsi
+                        inFlight = 0;
+                        requeue(batch);
+                        // Riprovo più tardi, senza occupare un thread del pool durante l'attesa
+                        schedule(retryDelay << ( attempts - 1 ));
+                        return;
+                    }
+
+                    System.err.println("CALLBACK: Client di " + username + " non raggiungibile, rimozione della callback");
+                    service.removeCallback(username, stub);
+                    release();
+                    discard();
+                    continue;
+                }
+
+                attempts = 0;
+                release();
+                synchronized ( this ){
+                    // Un gruppo completo viene inviato subito, altrimenti si attende la finestra per raccogliere altre notifiche
+                    if ( pending.size() >= maxBatch )
+                        continue;
+                    if ( !pending.isEmpty() ){
+                        schedule(window);
+                        return;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Toglie dal conteggio le notifiche in corso di invio, consegnate o scartate
+         */
+        private void release(){
+            queued.addAndGet(-inFlight);
+            inFlight = 0;
+        }
+
+        /**
+         * Chiude la coda dopo un errore imprevisto, scartando le notifiche in coda e quelle in corso di invio
+         */
+        private void abandon(){
+            release();
+            synchronized ( this ){
+                queued.addAndGet(-pending.size());
+                pending.clear();
+                closed = true;
+                lanes.remove(username, this);
+            }
+            attempts = 0;
+        }
+
+        /**
+         * Rimette in coda le notifiche di un invio fallito
+         *
+         * @param batch Notifiche non consegnate
+         */
+        private void requeue(Map<String, Pending> batch){
+            synchronized ( this ){
+                Map<String, Pending> later = new LinkedHashMap<String, Pending>(pending);
+                pending.clear();
+                pending.putAll(batch);
+                int delta = 0;
+                for ( Map.Entry<String, Pending> entry : later.entrySet() )
+                    delta += merge(entry.getKey(), entry.getValue()) - 1;
+                queued.addAndGet(delta);
+            }
+        }
+
+        /**
+         * Scarta tutte le notifiche in coda
+         */
+        private void discard(){
+            synchronized ( this ){
+                queued.addAndGet(-pending.size());
+                pending.clear();
+            }
+            attempts = 0;
+        }
+
+        /**
+         * Passa la coda al pool
+         *
+         * @param delay Millisecondi di attesa prima dell'esecuzione
+         */
+        private void schedule(long delay){
+            try{
+                executor.schedule(this, delay, TimeUnit.MILLISECONDS);
+            } catch ( RejectedExecutionException e ){
+                // Il dispatcher è in chiusura, le notifiche in coda vengono perse
+            }
+        }
+    }
+
+    /**
+     * @param service Servizio RMI in cui sono registrati gli stub dei client
+     * @param threads Numero di thread che inviano le notifiche
+     * @param capacity Numero massimo di notifiche in coda
+     * @param maxAttempts Tentativi di invio dopo cui lo stub viene rimosso
+     * @param retryDelay Millisecondi di attesa dopo il primo tentativo fallito, raddoppiano a ogni tentativo successivo
+     * @param window Millisecondi durante cui si raccolgono le notifiche di un destinatario prima di inviarle
+     * @param maxBatch Numero massimo di notifiche inviate con una sola chiamata
+     * @throws NullPointerException Se service è null
+     * @throws IllegalArgumentException Se threads, capacity, maxAttempts o maxBatch non sono positivi o retryDelay o window sono negativi
+     */
+    public CallbackDispatcher(WinsomeRMIService service, int threads, int capacity, int maxAttempts, long retryDelay, long window, int maxBatch)
+    throws NullPointerException, IllegalArgumentException {
+        if ( service == null )
+            throw new NullPointerException();
+        if ( threads <= 0 || capacity <= 0 || maxAttempts <= 0 || retryDelay < 0 || window < 0 || maxBatch <= 0 )
+            throw new IllegalArgumentException();
+
+        this.service = service;
+        this.capacity = capacity;
+        this.maxAttempts = maxAttempts;
+        this.retryDelay = retryDelay;
+        this.window = window;
+        this.maxBatch = maxBatch;
+        this.lanes = new ConcurrentHashMap<String, Lane>();
+        this.queued = new AtomicInteger(0);
+        this.executor = new ScheduledThreadPoolExecutor(threads, runnable -> {
+            Thread thread = new Thread(runnable, "callback");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Accoda una notifica per un utente senza attenderne l'invio
+     *
+     * @param username Utente da notificare
+     * @param event Evento da notificare, FOLLOW o UNFOLLOW
+     * @param follower Utente che ha iniziato o smesso di seguire
+     * @param version Versione dei follower di username che contiene l'evento
+     * @return true se la notifica è stata accodata, false se è stata scartata perché la coda è piena
+     */
+    public boolean submit(String username, String event, String follower, long version){
+        if ( username == null || event == null || follower == null )
+            throw new NullPointerException();
+
+        if ( queued.incrementAndGet() > capacity ){
+            queued.decrementAndGet();
+            System.err.println("CALLBACK: Coda delle notifiche piena, notifica per " + username + " scartata");
+            return false;
+        }
+
+        while ( true ){
+            Lane lane = lanes.computeIfAbsent(username, Lane::new);
+            synchronized ( lane ){
+                // La coda si è svuotata ed è stata rimossa nel frattempo, ne serve una nuova
+                if ( lane.closed )
+                    continue;
+
+                // Il conteggio è già stato incrementato di uno
+                queued.addAndGet(lane.merge(follower, new Pending(event, version)) - 1);
+                // La prima notifica avvia la finestra di raccolta, poi la coda resta al pool finché non si svuota
+                if ( !lane.started ){
+                    lane.started = true;
+                    lane.schedule(window);
+                }
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Restituisce il numero di notifiche in coda
+     *
+     * @return Le notifiche accodate e non ancora inviate
+     */
+    public int getQueued(){
+        return queued.get();
+    }
+
+    /**
+     * Termina il pool, le notifiche ancora in coda non vengono inviate
+     *
+     * @param timeout Millisecondi massimi di attesa degli invii in corso
+     * @throws InterruptedException Se l'attesa viene interrotta
+     */
+    public void terminate(long timeout)
+    throws InterruptedException {
+        executor.shutdownNow();
+        executor.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,32 @@
+package server;
+
+/**
+ * Connessione di un client vista da RequestDispatcher, indipendentemente dal modo in cui viene servita
+ * (worker NIO o thread dedicato in modalità bloccante)
+ */
+public interface ClientConnection {
+
+    /**
+     * Restituisce la sessione del client
+     * 
+     * @return La sessione, a cui viene legato l'utente dopo il login
+     */
+    public Session getSession();
+
+    /**
+     * Abilita le funzionalità richieste dal client con HELLO che il server supporta
+     * 
+     * @param requested Funzionalità richieste dal client, bit definiti in Frame
+     * @return Le funzionalità che verranno utilizzate
+     */
+    public int negotiate(int requested);
+
+    /**
+     * Accoda al client una notifica senza che l'abbia richiesta, può essere invocato da qualsiasi thread e non si blocca.
+     * Le notifiche accodate da uno stesso thread arrivano nell'ordine di invio, anche rispetto alle risposte
+     * 
+     * @param notification Contenuto della notifica
+     * @return true se la notifica è stata accodata, false se la connessione è congestionata
+     */
+    public boolean push(String notification);
+}
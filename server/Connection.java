@@ -0,0 +1,311 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+
+import shared.Frame;
+
+/**
+ * Stato di una connessione client gestita da un worker: raccoglie i byte letti finché
+ * non formano messaggi completi, accoda le richieste da elaborare in ordine e conserva
+ * le risposte finché non sono state scritte per intero.
+ * Viene allegata alla chiave della connessione e usata solo dal thread del worker.
+ * I buffer provengono dal pool del worker: quello di lettura viene restituito appena non contiene
+ * più byte da consumare, quelli delle risposte appena sono stati inviati
+ */
+public class Connection implements ClientConnection {
+    private static final int MAX_GATHER = 16; // Numero massimo di buffer inviati con una sola scrittura
+
+    private FrameCodec codec; // Codifica e buffer del worker che serve la connessione
+    private ByteBuffer input; // Byte ricevuti e non ancora consumati (sempre in modalità scrittura), null se non ce ne sono
+    private Queue<ByteBuffer> output; // Buffer con le risposte ancora da inviare al client, in ordine
+    private ByteBuffer[] gather; // Array riutilizzato per passare i buffer in coda a un'unica scrittura
+    private volatile long outputBytes; // Byte in coda e non ancora inviati al client, letto anche da chi invia notifiche
+    private Queue<Frame> pending; // Richieste ricevute e non ancora elaborate, nell'ordine di arrivo
+    private boolean processing; // true se una richiesta di questa connessione è in elaborazione
+    private long lastActivity; // Istante in millisecondi dell'ultima lettura o scrittura sulla connessione
+    private Session session; // Sessione del client, a cui viene legato l'utente dopo il login
+    private volatile boolean compression; // true se il client ha chiesto con HELLO di ricevere le risposte compresse
+    private String address; // Indirizzo del client, null se non è noto
+    private Worker worker; // Worker che serve la connessione, a cui passare le notifiche da inviare
+    private SelectionKey key; // Chiave della connessione sul selettore del worker
+
+    /**
+     * @param worker Worker che serve la connessione
+     * @param codec Codifica e buffer del worker che serve la connessione
+     * @param address Indirizzo del client, null se non è noto
+     */
+    public Connection(Worker worker, FrameCodec codec, String address){
+        if ( worker == null || codec == null )
+            throw new NullPointerException();
+
+        this.worker = worker;
+        this.codec = codec;
+        this.address = address;
+        this.key = null;
+        input = null;
+        output = new ArrayDeque<ByteBuffer>();
+        gather = new ByteBuffer[MAX_GATHER];
+        outputBytes = 0;
+        pending = new ArrayDeque<Frame>();
+        processing = false;
+        lastActivity = System.currentTimeMillis();
+        session = new Session();
+        compression = false;
+    }
+
+    /**
+     * Registra un'attività sulla connessione. Costa un solo assegnamento:
+     * la ruota dei timeout confronta questo istante solo quando la scadenza della connessione arriva
+     *
+     * @param now Istante corrente in millisecondi
+     */
+    protected void touch(long now){
+        lastActivity = now;
+    }
+
+    protected long getLastActivity(){
+        return lastActivity;
+    }
+
+    /**
+     * Indica se la connessione non ha lavoro in corso: nessuna richiesta in elaborazione o in attesa
+     * e nessuna risposta da inviare. Un client che attende una risposta lenta non è inattivo
+     *
+     * @return true se la connessione non ha lavoro in corso
+     */
+    protected boolean isIdle(){
+        return !processing && pending.isEmpty() && output.isEmpty();
+    }
+
+    /**
+     * Associa la connessione alla sua chiave, appena registrata sul selettore del worker
+     * 
+     * @param key Chiave della connessione
+     */
+    protected void setKey(SelectionKey key){
+        this.key = key;
+    }
+
+    protected String getAddress(){
+        return address;
+    }
+
+    public Session getSession(){
+        return session;
+    }
+
+    /**
+     * Abilita la compressione delle risposte se il client la richiede e il worker la supporta,
+     * invocato dal thread che elabora la richiesta HELLO
+     * 
+     * @param requested Funzionalità richieste dal client
+     * @return Le funzionalità che verranno utilizzate
+     */
+    public int negotiate(int requested){
+        compression = ( requested & Frame.CAPABILITY_COMPRESSION ) != 0 && codec.supportsCompression();
+        return compression ? Frame.CAPABILITY_COMPRESSION : 0;
+    }
+
+    /**
+     * Passa la notifica al worker, che la codifica e la invia nel proprio thread come le risposte
+     * 
+     * @param notification Contenuto della notifica
+     * @return true se la notifica è stata accodata, false se la connessione è congestionata
+     */
+    public boolean push(String notification){
+        return worker.push(key, this, notification);
+    }
+
+    /**
+     * Accoda una notifica dopo le risposte non ancora inviate, senza modificare lo stato delle richieste in elaborazione
+     * 
+     * @param notification Contenuto della notifica
+     */
+    protected void addPush(String notification){
+        outputBytes += codec.encode(0, new String[]{ notification }, output, compression, true);
+    }
+
+    /**
+     * Restituisce il buffer in cui leggere dal canale
+     *
+     * @return Il buffer di lettura della connessione
+     */
+    protected ByteBuffer getInput(){
+        if ( input == null )
+            input = codec.getPool().acquire();
+        // Se il buffer è pieno lo raddoppio, altrimenti la read restituirebbe 0 all'infinito
+        else if ( !input.hasRemaining() )
+            grow(input.capacity() * 2);
+
+        return input;
+    }
+
+    /**
+     * Sposta nella coda delle richieste da elaborare tutti i messaggi arrivati per intero
+     *
+     * @throws IOException Se un'intestazione non è valida
+     */
+    protected void collectFrames()
+    throws IOException {
+        for ( Frame frame = nextFrame(); frame != null; frame = nextFrame() )
+            pending.add(frame);
+
+        // Se non sono rimasti byte di un messaggio incompleto, il buffer può servire ad altre connessioni
+        if ( input != null && input.position() == 0 ){
+            codec.getPool().release(input);
+            input = null;
+        }
+    }
+
+    /**
+     * Restituisce la prossima richiesta da elaborare, a patto che non ce ne sia già una in elaborazione:
+     * le richieste di una stessa connessione vengono elaborate una alla volta, nell'ordine di arrivo
+     *
+     * @return La richiesta da elaborare, null se non ce ne sono o se ce n'è già una in elaborazione
+     */
+    protected Frame nextRequest(){
+        if ( processing || pending.isEmpty() )
+            return null;
+
+        processing = true;
+        return pending.poll();
+    }
+
+    /**
+     * Accoda la risposta a una richiesta, che può così essere seguita dall'elaborazione della successiva
+     *
+     * @param requestId Identificativo della richiesta a cui si risponde
+     * @param reply Stringhe che compongono la risposta
+     */
+    protected void addReply(int requestId, String[] reply){
+        processing = false;
+        // La risposta viene codificata direttamente nei buffer del pool, dopo quelle non ancora inviate
+        outputBytes += codec.encode(requestId, reply, output, compression, false);
+    }
+
+    /**
+     * Restituisce il numero di richieste ricevute e non ancora passate all'elaborazione
+     *
+     * @return Le richieste in attesa
+     */
+    protected int getPendingRequests(){
+        return pending.size();
+    }
+
+    /**
+     * Indica se ci sono risposte ancora da inviare al client
+     *
+     * @return true se la coda delle risposte non è vuota
+     */
+    protected boolean hasOutput(){
+        return !output.isEmpty();
+    }
+
+    /**
+     * Restituisce il numero di byte in coda e non ancora inviati al client
+     *
+     * @return I byte ancora da inviare
+     */
+    protected long getOutputBytes(){
+        return outputBytes;
+    }
+
+    /**
+     * Invia al client quanto più possibile delle risposte in coda, restituendo al pool i buffer inviati per intero
+     *
+     * @param channel Canale della connessione
+     * @return true se non c'è più nulla da inviare, false altrimenti
+     * @throws IOException Se si verificano errori di scrittura
+     */
+    protected boolean write(SocketChannel channel)
+    throws IOException {
+        while ( !output.isEmpty() ){
+            // Passo al canale più buffer alla volta, così una risposta spezzata su più buffer
+            // (o più risposte accodate) richiede una sola chiamata di sistema
+            int count = 0;
+            for ( ByteBuffer buffer : output ){
+                gather[count++] = buffer;
+                if ( count == MAX_GATHER )
+                    break;
+            }
+            outputBytes -= channel.write(gather, 0, count);
+            boolean full = gather[count - 1].hasRemaining();
+            Arrays.fill(gather, 0, count, null);
+
+            // Restituisco al pool i buffer inviati per intero
+            for ( ByteBuffer buffer = output.peek(); buffer != null && !buffer.hasRemaining(); buffer = output.peek() ){
+                output.poll();
+                codec.getPool().release(buffer);
+            }
+            if ( full )
+                // Il buffer del socket è pieno, riprenderò dalla stessa posizione
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Restituisce al pool tutti i buffer della connessione, da invocare alla chiusura
+     */
+    protected void release(){
+        codec.getPool().release(input);
+        input = null;
+        for ( ByteBuffer buffer = output.poll(); buffer != null; buffer = output.poll() )
+            codec.getPool().release(buffer);
+    }
+
+    /**
+     * Estrae dal buffer di lettura il prossimo messaggio completo, se c'è
+     *
+     * @return Il messaggio, null se non è ancora arrivato per intero
+     * @throws IOException Se l'intestazione non è valida
+     */
+    private Frame nextFrame()
+    throws IOException {
+        if ( input.position() < Frame.HEADER_SIZE )
+            return null;
+
+        int length = input.getInt(0);
+        if ( length < 0 || length > Frame.MAX_PAYLOAD )
+            throw new IOException("Lunghezza del messaggio non valida: " + length);
+
+        if ( input.position() < Frame.HEADER_SIZE + length ){
+            // Il messaggio non è completo, mi assicuro che ci sia spazio per riceverlo tutto
+            if ( input.capacity() < Frame.HEADER_SIZE + length )
+                grow(Math.max(input.capacity() * 2, Frame.HEADER_SIZE + length));
+            return null;
+        }
+
+        int requestId = input.getInt(Integer.BYTES);
+        input.flip();
+        input.position(Frame.HEADER_SIZE);
+        // Copio il contenuto in un array che verrà letto dal thread dell'esecutore,
+        // le stringhe vengono decodificate solo quando e se l'operazione le usa
+        byte[] payload = new byte[length];
+        input.get(payload);
+        // Tengo i byte successivi, che appartengono ai messaggi seguenti
+        input.compact();
+
+        return new Frame(requestId, payload);
+    }
+
+    /**
+     * Sostituisce il buffer di lettura con uno più grande, mantenendo i byte già ricevuti
+     *
+     * @param capacity Nuova dimensione del buffer
+     */
+    private void grow(int capacity){
+        ByteBuffer bigger = codec.getPool().allocate(capacity);
+        input.flip();
+        bigger.put(input);
+        codec.getPool().release(input);
+        input = bigger;
+    }
+}
@@ -0,0 +1,24 @@
+package server;
+
+/**
+ * Tasso di conversione costante, per i test e per le installazioni senza accesso alla rete
+ */
+public class FixedRateProvider implements RateProvider {
+    private final double rate; // Tasso di conversione restituito
+
+    /**
+     * @param rate Tasso di conversione da restituire
+     * @throws IllegalArgumentException Se rate è negativo
+     */
+    public FixedRateProvider(double rate)
+    throws IllegalArgumentException {
+        if ( rate < 0 )
+            throw new IllegalArgumentException();
+
+        this.rate = rate;
+    }
+
+    public double getRate(){
+        return rate;
+    }
+}
@@ -0,0 +1,222 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.zip.Deflater;
+
+import shared.Frame;
+
+/**
+ * Codifica delle risposte di un worker nel formato descritto da Frame e RequestCodec.
+ * Le risposte vengono codificate direttamente nei buffer del pool, senza passare da array di byte intermedi.
+ * Le risposte più grandi della soglia, per i client che lo hanno richiesto, vengono poi compresse
+ * in altri buffer del pool con un Deflater riutilizzato per tutte le risposte.
+ * Come il pool, viene usato soltanto dal thread del worker a cui appartiene
+ */
+public class FrameCodec {
+    private BufferPool pool; // Pool da cui prendere i buffer per le risposte
+    private CharsetEncoder encoder; // Encoder riutilizzato per tutte le risposte
+    private Deflater deflater; // Compressore riutilizzato per tutte le risposte, null se la compressione è disabilitata
+    private int compressionThreshold; // Dimensione in byte oltre la quale le risposte vengono compresse, 0 se disabilitata
+
+    private List<ByteBuffer> frame; // Buffer della risposta corrente, riutilizzato
+    private List<ByteBuffer> compressed; // Buffer della versione compressa della risposta corrente, riutilizzato
+    private List<ByteBuffer> target; // Lista in cui si sta scrivendo, una delle due precedenti
+    private ByteBuffer current; // Buffer in cui si sta scrivendo
+
+    /**
+     * @param pool Pool da cui prendere i buffer per le risposte
+     * @param compressionThreshold Dimensione in byte oltre la quale le risposte vengono compresse, 0 per non comprimerle mai
+     * @throws IllegalArgumentException Se compressionThreshold è negativa
+     */
+    public FrameCodec(BufferPool pool, int compressionThreshold)
+    throws IllegalArgumentException {
+        if ( pool == null )
+            throw new NullPointerException();
+        if ( compressionThreshold < 0 )
+            throw new IllegalArgumentException();
+
+        this.pool = pool;
+        this.compressionThreshold = compressionThreshold;
+        this.deflater = compressionThreshold > 0 ? new Deflater(Deflater.DEFAULT_COMPRESSION) : null;
+        this.frame = new ArrayList<ByteBuffer>();
+        this.compressed = new ArrayList<ByteBuffer>();
+        // Come String.getBytes, i caratteri non validi vengono sostituiti invece di sollevare eccezione
+        this.encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    public BufferPool getPool(){
+        return pool;
+    }
+
+    /**
+     * Indica se questo codec può comprimere le risposte
+     *
+     * @return true se la compressione è abilitata
+     */
+    public boolean supportsCompression(){
+        return deflater != null;
+    }
+
+    /**
+     * Codifica una risposta, intestazione compresa, in uno o più buffer del pool e li accoda a quelli da inviare
+     *
+     * @param requestId Identificativo della richiesta a cui si risponde
+     * @param reply Stringhe che compongono la risposta
+     * @param output Coda dei buffer da inviare al client
+     * @param compress true se il client accetta risposte compresse
+     * @param push true se il messaggio è una notifica e non una risposta
+     * @return Il numero di byte accodati, intestazione compresa
+     */
+    public int encode(int requestId, String[] reply, Queue<ByteBuffer> output, boolean compress, boolean push){
+        // Riservo lo spazio dell'intestazione, la lunghezza si conosce solo alla fine della codifica
+        target = frame;
+        ByteBuffer first = pool.acquire();
+        first.position(Frame.HEADER_SIZE);
+        current = first;
+
+        current.putInt(reply.length);
+        int length = Integer.BYTES;
+        for ( String part : reply ){
+            // Anche la lunghezza di ogni stringa si conosce solo dopo averla codificata
+            if ( current.remaining() < Integer.BYTES )
+                next();
+            ByteBuffer slot = current;
+            int slotPosition = current.position();
+            current.position(slotPosition + Integer.BYTES);
+
+            int partLength = encodeString(part);
+            slot.putInt(slotPosition, partLength);
+            length += Integer.BYTES + partLength;
+        }
+        current.flip();
+        frame.add(current);
+        current = null;
+
+        int sent = Frame.HEADER_SIZE + length;
+        if ( compress && deflater != null && length >= compressionThreshold ){
+            int compressedLength = deflate(length);
+            if ( compressedLength < length ){
+                // Invio la versione compressa e restituisco al pool i buffer dell'originale
+                for ( ByteBuffer buffer : frame )
+                    pool.release(buffer);
+                frame.clear();
+                first = compressed.get(0);
+                length = compressedLength;
+                sent = Frame.HEADER_SIZE + length;
+                target = compressed;
+            }
+            else {
+                // La compressione non conviene, invio l'originale
+                for ( ByteBuffer buffer : compressed )
+                    pool.release(buffer);
+                compressed.clear();
+                target = frame;
+            }
+        }
+
+        // Ora che la lunghezza è nota completo l'intestazione nel primo buffer
+        if ( target == compressed )
+            length |= Frame.COMPRESSED;
+        if ( push )
+            length |= Frame.PUSH;
+        first.putInt(0, length);
+        first.putInt(Integer.BYTES, requestId);
+
+        output.addAll(target);
+        target.clear();
+        target = null;
+        return sent;
+    }
+
+    /**
+     * Comprime il contenuto della risposta appena codificata in nuovi buffer del pool
+     *
+     * @param length Lunghezza del contenuto originale
+     * @return La lunghezza del contenuto compresso, compresa la lunghezza originale che lo precede
+     */
+    private int deflate(int length){
+        target = compressed;
+        current = pool.acquire();
+        current.position(Frame.HEADER_SIZE);
+        current.putInt(length);
+        int compressedLength = Integer.BYTES;
+
+        deflater.reset();
+        for ( int i = 0; i < frame.size(); i++ ){
+            // Il primo buffer contiene anche l'intestazione, che non va compressa
+            ByteBuffer input = frame.get(i).duplicate();
+            if ( i == 0 )
+                input.position(Frame.HEADER_SIZE);
+            deflater.setInput(input);
+            while ( !deflater.needsInput() )
+                compressedLength += deflateInto();
+        }
+        deflater.finish();
+        while ( !deflater.finished() )
+            compressedLength += deflateInto();
+
+        current.flip();
+        compressed.add(current);
+        current = null;
+        return compressedLength;
+    }
+
+    /**
+     * Scrive nel buffer corrente l'output disponibile del compressore, passando a un nuovo buffer se è pieno
+     *
+     * @return Il numero di byte scritti
+     */
+    private int deflateInto(){
+        if ( !current.hasRemaining() )
+            next();
+        return deflater.deflate(current);
+    }
+
+    /**
+     * Codifica una stringa in UTF-8 a partire dalla posizione corrente, proseguendo in nuovi buffer se necessario
+     *
+     * @param value Stringa da codificare
+     * @return Il numero di byte scritti
+     */
+    private int encodeString(String value){
+        CharBuffer in = CharBuffer.wrap(value);
+        int length = 0;
+        encoder.reset();
+        boolean flushing = false;
+        while ( true ){
+            int start = current.position();
+            CoderResult result = flushing ? encoder.flush(current) : encoder.encode(in, current, true);
+            length += current.position() - start;
+
+            if ( result.isOverflow() ){
+                // Il buffer è pieno, continuo la codifica in un altro buffer del pool
+                next();
+                continue;
+            }
+            if ( flushing )
+                break;
+            flushing = true;
+        }
+
+        return length;
+    }
+
+    /**
+     * Aggiunge il buffer corrente, ormai pieno, a quelli della risposta e ne prende uno nuovo dal pool
+     */
+    private void next(){
+        current.flip();
+        target.add(current);
+        current = pool.acquire();
+    }
+}
@@ -0,0 +1,141 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/**
+ * Istogramma delle latenze con intervalli log-lineari, come HdrHistogram: ogni potenza di due è divisa in
+ * SUB_BUCKETS / 2 intervalli della stessa ampiezza, quindi l'errore relativo dei percentili è al più di 1 / HALF (circa il 6%)
+ * su tutto l'intervallo di valori, da pochi nanosecondi a MAX_VALUE, con una memoria fissa.
+ * Più thread registrano contemporaneamente: i contatori sono divisi in strisce e ogni thread usa
+ * quella del proprio identificativo, così due thread raramente aggiornano lo stesso contatore.
+ * Le strisce sono fisse invece che una per thread perché con i virtual thread ogni richiesta ha un thread nuovo
+ */
+public class LatencyHistogram {
+    private final static int SUB_BITS = 5; // Bit di precisione di ogni intervallo
+    private final static int SUB_BUCKETS = 1 << SUB_BITS; // Valori registrati esattamente, da 0 a SUB_BUCKETS - 1
+    private final static int HALF = SUB_BUCKETS / 2; // Intervalli in cui è divisa ogni potenza di due successiva
+    private final static long MAX_VALUE = 1L << 40; // Valore massimo distinto (circa 18 minuti in nanosecondi), i maggiori vengono accorpati
+    private final static int BUCKETS = index(MAX_VALUE) + 1; // Numero di intervalli
+
+    private final AtomicLongArray[] stripes; // Contatori per intervallo, una copia per striscia
+    private final int mask; // Maschera per scegliere la striscia dall'identificativo del thread
+    private final LongAccumulator max; // Valore massimo registrato
+
+    public LatencyHistogram(){
+        // Numero di strisce: la potenza di due successiva al numero di processori
+        int count = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() - 1)) << 1;
+        this.stripes = new AtomicLongArray[count];
+        for ( int i = 0; i < count; i++ )
+            this.stripes[i] = new AtomicLongArray(BUCKETS);
+        this.mask = count - 1;
+        this.max = new LongAccumulator(Math::max, 0);
+    }
+
+    /**
+     * Restituisce l'intervallo di un valore, visibile nel package per i test
+     * 
+     * @param value Valore non negativo
+     * @return L'indice dell'intervallo
+     */
+    static int index(long value){
+        if ( value < SUB_BUCKETS )
+            return ( int ) value;
+        if ( value > MAX_VALUE )
+            value = MAX_VALUE;
+
+        // Tengo i SUB_BITS bit più significativi: il primo, sempre a uno, insieme allo scorrimento indica la potenza di due
+        int shift = 63 - Long.numberOfLeadingZeros(value) - ( SUB_BITS - 1 );
+        return shift * HALF + ( int ) ( value >>> shift );
+    }
+
+    /**
+     * Restituisce il valore massimo compreso in un intervallo
+     * 
+     * @param index Indice dell'intervallo
+     * @return Il valore più alto che cade nell'intervallo
+     */
+    static long highest(int index){
+        if ( index < SUB_BUCKETS )
+            return index;
+
+        int shift = index / HALF - 1;
+        long mantissa = index % HALF + HALF;
+        return ( ( mantissa + 1 ) << shift ) - 1;
+    }
+
+    /**
+     * Registra un valore
+     * 
+     * @param value Valore da registrare, in nanosecondi; i valori negativi vengono registrati come 0
+     */
+    public void record(long value){
+        if ( value < 0 )
+            value = 0;
+        stripes[( int ) Thread.currentThread().getId() & mask].incrementAndGet(index(value));
+        max.accumulate(value);
+    }
+
+    /**
+     * Restituisce una copia dei contatori, sommando le strisce
+     * 
+     * @return Un'istantanea dell'istogramma
+     */
+    public Snapshot snapshot(){
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for ( AtomicLongArray stripe : stripes ){
+            for ( int i = 0; i < BUCKETS; i++ ){
+                long count = stripe.get(i);
+                counts[i] += count;
+                total += count;
+            }
+        }
+        return new Snapshot(counts, total, max.get());
+    }
+
+    /**
+     * Istantanea dell'istogramma su cui calcolare i percentili.
+     * Le strisce vengono lette mentre altri thread registrano, quindi l'istantanea non è atomica
+     * ma ogni valore registrato prima della sua creazione è compreso
+     */
+    public static class Snapshot {
+        private final long[] counts; // Valori registrati per intervallo
+        private final long total; // Numero di valori registrati
+        private final long max; // Valore massimo registrato
+
+        private Snapshot(long[] counts, long total, long max){
+            this.counts = counts;
+            this.total = total;
+            this.max = max;
+        }
+
+        public long getCount(){
+            return total;
+        }
+
+        public long getMax(){
+            return max;
+        }
+
+        /**
+         * Restituisce un percentile dei valori registrati
+         * 
+         * @param percentile Percentile da calcolare, tra 0 e 100
+         * @return Il valore più alto dell'intervallo che contiene il percentile (non oltre il massimo registrato), 0 se non ci sono valori
+         */
+        public long getPercentile(double percentile){
+            if ( total == 0 )
+                return 0;
+
+            long rank = Math.max(1, ( long ) Math.ceil(percentile / 100 * total));
+            long seen = 0;
+            for ( int i = 0; i < counts.length; i++ ){
+                seen += counts[i];
+                if ( seen >= rank )
+                    return Math.min(highest(i), max);
+            }
+            return max;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package server;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import shared.Communication;
+import shared.Operation;
+
+/**
+ * Metriche delle richieste elaborate dal server: per ogni operazione il numero di richieste,
+ * il numero di esiti per ogni Communication e l'istogramma delle latenze di elaborazione.
+ * Viene aggiornata da tutti i thread che elaborano richieste, quindi i contatori sono LongAdder
+ * e gli istogrammi sono divisi in strisce: registrare costa pochi incrementi senza lock né contesa
+ */
+public class Metrics {
+    private final static Operation[] OPERATIONS = Operation.values(); // Operazioni indicizzate per ordinale
+    private final static Communication[] RESULTS = Communication.values(); // Esiti indicizzati per ordinale
+    private final static int OTHER = RESULTS.length; // Indice degli esiti che non sono una Communication (i messaggi di WinsomeException)
+    private final static Map<String, Integer> INDEXES = new HashMap<String, Integer>(); // Indice di ogni esito a partire dalla sua descrizione
+
+    static {
+        for ( Communication result : RESULTS )
+            INDEXES.put(result.toString(), result.ordinal());
+    }
+
+    private final long started; // Istante di creazione in millisecondi, per calcolare le richieste al secondo
+    private final LongAdder[] requests; // Richieste elaborate per operazione
+    private final LongAdder[][] results; // Esiti per operazione, indicizzati per ordinale di Communication più OTHER
+    private final LatencyHistogram[] latencies; // Latenze di elaborazione in nanosecondi per operazione
+    private final LongAdder invalid; // Richieste con un'operazione sconosciuta o vuote
+
+    public Metrics(){
+        started = System.currentTimeMillis();
+        requests = new LongAdder[OPERATIONS.length];
+        results = new LongAdder[OPERATIONS.length][RESULTS.length + 1];
+        latencies = new LatencyHistogram[OPERATIONS.length];
+        for ( int i = 0; i < OPERATIONS.length; i++ ){
+            requests[i] = new LongAdder();
+            for ( int j = 0; j <= RESULTS.length; j++ )
+                results[i][j] = new LongAdder();
+            latencies[i] = new LatencyHistogram();
+        }
+        invalid = new LongAdder();
+    }
+
+    /**
+     * Registra una richiesta elaborata
+     * 
+     * @param operation Operazione richiesta, null se la richiesta non indicava un'operazione valida
+     * @param result Descrizione dell'esito restituita al client
+     * @param nanos Durata dell'elaborazione in nanosecondi
+     */
+    public void record(Operation operation, String result, long nanos){
+        if ( operation == null ){
+            invalid.increment();
+            return;
+        }
+
+        int i = operation.ordinal();
+        requests[i].increment();
+        Integer index = INDEXES.get(result);
+        results[i][index != null ? index : OTHER].increment();
+        latencies[i].record(nanos);
+    }
+
+    /**
+     * Registra una richiesta rifiutata prima dell'elaborazione, che non ha quindi una latenza
+     * 
+     * @param operation Operazione richiesta, null se la richiesta non indicava un'operazione valida
+     * @param reason Motivo del rifiuto
+     */
+    public void recordRejection(Operation operation, Communication reason){
+        if ( operation == null ){
+            invalid.increment();
+            return;
+        }
+
+        requests[operation.ordinal()].increment();
+        results[operation.ordinal()][reason.ordinal()].increment();
+    }
+
+    public long getRequests(Operation operation){
+        return requests[operation.ordinal()].sum();
+    }
+
+    public long getResults(Operation operation, Communication result){
+        return results[operation.ordinal()][result.ordinal()].sum();
+    }
+
+    /**
+     * Restituisce il numero di esiti di un'operazione che non corrispondono a nessuna Communication,
+     * cioè gli errori descritti da una WinsomeException
+     * 
+     * @param operation Operazione
+     * @return Il numero di esiti
+     */
+    public long getOtherResults(Operation operation){
+        return results[operation.ordinal()][OTHER].sum();
+    }
+
+    public long getInvalidRequests(){
+        return invalid.sum();
+    }
+
+    public LatencyHistogram.Snapshot getLatencies(Operation operation){
+        return latencies[operation.ordinal()].snapshot();
+    }
+
+    public long getStarted(){
+        return started;
+    }
+
+    /**
+     * Restituisce un riepilogo leggibile delle metriche, una riga per ogni operazione richiesta almeno una volta
+     * 
+     * @return Il riepilogo
+     */
+    public String report(){
+        double seconds = Math.max(1, System.currentTimeMillis() - started) / 1000.0;
+        StringBuilder s = new StringBuilder();
+        for ( Operation operation : OPERATIONS ){
+            long count = getRequests(operation);
+            if ( count == 0 )
+                continue;
+
+            LatencyHistogram.Snapshot latency = getLatencies(operation);
+            s.append(String.format("%-18s richieste %d (%.1f/s) latenza us p50 %.1f p99 %.1f p999 %.1f max %.1f",
+                operation, count, count / seconds,
+                latency.getPercentile(50) / 1000.0, latency.getPercentile(99) / 1000.0,
+                latency.getPercentile(99.9) / 1000.0, latency.getMax() / 1000.0));
+            for ( Communication result : RESULTS ){
+                long n = getResults(operation, result);
+                if ( n > 0 && result != Communication.Success )
+                    s.append(" | ").append(result).append(": ").append(n);
+            }
+            long other = getOtherResults(operation);
+            if ( other > 0 )
+                s.append(" | Altri errori: ").append(other);
+            s.append("\n");
+        }
+        if ( getInvalidRequests() > 0 )
+            s.append("Richieste non valide: ").append(getInvalidRequests()).append("\n");
+        if ( s.length() == 0 )
+            s.append("Nessuna richiesta elaborata\n");
+
+        return s.toString();
+    }
+}
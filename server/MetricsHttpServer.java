@@ -0,0 +1,67 @@
+package server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Endpoint HTTP locale che espone le metriche del server nel formato testuale di Prometheus all'indirizzo /metrics.
+ * È in ascolto soltanto sull'interfaccia di loopback: le metriche non sono pensate per essere pubbliche
+ */
+public class MetricsHttpServer {
+    private HttpServer server; // Server HTTP del JDK, con un unico thread per le richieste
+    private ServerStatus status; // Stato del server da esportare
+
+    /**
+     * @param port Porta locale su cui restare in ascolto
+     * @param status Stato del server da esportare
+     * @throws IOException Se non è possibile aprire la porta
+     */
+    public MetricsHttpServer(int port, ServerStatus status)
+    throws IOException {
+        if ( status == null )
+            throw new NullPointerException();
+
+        this.status = status;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        this.server.createContext("/metrics", this::handle);
+    }
+
+    public void start(){
+        server.start();
+    }
+
+    public void terminate(){
+        server.stop(0);
+    }
+
+    /**
+     * Risponde a una richiesta di raccolta delle metriche
+     * 
+     * @param exchange Richiesta e risposta HTTP
+     * @throws IOException Se si verificano errori di scrittura
+     */
+    private void handle(HttpExchange exchange)
+    throws IOException {
+        try{
+            if ( !exchange.getRequestMethod().equals("GET") ){
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            byte[] body = status.prometheus().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try ( OutputStream out = exchange.getResponseBody() ){
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+}
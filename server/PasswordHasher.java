@@ -0,0 +1,156 @@
+package server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import server.bcrypt.src.BCrypt;
+import server.bcrypt.src.FastBCrypt;
+import shared.Communication;
+
+/**
+ * Calcolo e verifica degli hash BCrypt delle password su un pool dedicato.
+ * Il numero di hash calcolati contemporaneamente è limitato dai thread del pool e quelli in attesa dalla coda:
+ * quando la coda è piena la richiesta viene rifiutata subito, così una raffica di login non occupa tutti i thread
+ * che elaborano le richieste con l'espansione della chiave di Blowfish.
+ * Il costo degli hash è configurabile; un hash con un costo diverso viene ricalcolato al login successivo.
+ * Gli hash sono calcolati con FastBCrypt, identico a BCrypt ma senza allocazioni per ogni hash
+ */
+public class PasswordHasher {
+    private final ThreadPoolExecutor executor; // Pool che calcola gli hash
+    private final int logRounds; // Logaritmo in base 2 del numero di iterazioni di BCrypt per i nuovi hash
+
+    /**
+     * @param threads Numero di hash calcolati contemporaneamente
+     * @param capacity Numero massimo di hash in attesa di un thread
+     * @param logRounds Logaritmo in base 2 del numero di iterazioni di BCrypt, tra 4 e 30
+     * @throws IllegalArgumentException Se threads o capacity non sono positivi o logRounds è fuori dall'intervallo
+     */
+    public PasswordHasher(int threads, int capacity, int logRounds)
+    throws IllegalArgumentException {
+        if ( threads <= 0 || capacity <= 0 || logRounds < 4 || logRounds > 30 )
+            throw new IllegalArgumentException();
+
+        this.logRounds = logRounds;
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                                               new ArrayBlockingQueue<Runnable>(capacity), runnable -> {
+            Thread thread = new Thread(runnable, "hasher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Calcola l'hash di una password con il costo configurato
+     *
+     * @param password Password in chiaro
+     * @return L'hash della password
+     * @throws WinsomeException Se il pool è saturo
+     * @throws NullPointerException Se password è null
+     */
+    public String hash(String password)
+    throws WinsomeException, NullPointerException {
+        if ( password == null )
+            throw new NullPointerException();
+
+        return await(() -> FastBCrypt.hashpw(password, BCrypt.gensalt(logRounds)));
+    }
+
+    /**
+     * Verifica una password rispetto al suo hash
+     *
+     * @param password Password in chiaro
+     * @param hashed Hash salvato della password
+     * @return true se la password corrisponde, false altrimenti
+     * @throws WinsomeException Se il pool è saturo
+     * @throws NullPointerException Se password o hashed sono null
+     */
+    public boolean check(String password, String hashed)
+    throws WinsomeException, NullPointerException {
+        if ( password == null || hashed == null )
+            throw new NullPointerException();
+
+        return await(() -> FastBCrypt.checkpw(password, hashed));
+    }
+
+    /**
+     * Indica se un hash è stato calcolato con un costo diverso da quello configurato
+     *
+     * @param hashed Hash salvato della password
+     * @return true se l'hash va ricalcolato, false altrimenti
+     */
+    public boolean needsRehash(String hashed){
+        // L'hash è nella forma $2a$NN$..., dove NN è il costo
+        int start = hashed.indexOf('$', 1) + 1;
+        if ( start == 0 || start + 2 > hashed.length() )
+            return false;
+
+        try{
+            return Integer.parseInt(hashed.substring(start, start + 2)) != logRounds;
+        } catch ( NumberFormatException e ){
+            return false;
+        }
+    }
+
+    /**
+     * Ricalcola in background l'hash di una password con il costo configurato, senza attenderne il risultato.
+     * Se il pool è saturo il ricalcolo viene rimandato al login successivo
+     *
+     * @param password Password in chiaro, già verificata
+     * @param onHashed Azione che salva il nuovo hash
+     */
+    public void rehash(String password, Consumer<String> onHashed){
+        try{
+            executor.execute(() -> onHashed.accept(FastBCrypt.hashpw(password, BCrypt.gensalt(logRounds))));
+        } catch ( RejectedExecutionException e ){
+            // Il vecchio hash resta valido
+        }
+    }
+
+    /**
+     * Esegue un calcolo sul pool e ne attende il risultato
+     *
+     * @param task Calcolo da eseguire
+     * @return Il risultato del calcolo
+     * @throws WinsomeException Se il pool è saturo o l'attesa viene interrotta
+     */
+    private <T> T await(Callable<T> task)
+    throws WinsomeException {
+        Future<T> result;
+        try{
+            result = executor.submit(task);
+        } catch ( RejectedExecutionException e ){
+            throw new WinsomeException(Communication.ServerBusy.toString());
+        }
+
+        try{
+            return result.get();
+        } catch ( InterruptedException e ){
+            result.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new WinsomeException(Communication.Failure.toString());
+        } catch ( ExecutionException e ){
+            // BCrypt solleva solo eccezioni unchecked, ad esempio per un hash salvato non valido
+            if ( e.getCause() instanceof RuntimeException )
+                throw ( RuntimeException ) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Termina il pool, gli hash in attesa non vengono calcolati
+     *
+     * @param timeout Millisecondi massimi di attesa dei calcoli in corso
+     * @throws InterruptedException Se l'attesa viene interrotta
+     */
+    public void terminate(long timeout)
+    throws InterruptedException {
+        executor.shutdownNow();
+        executor.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+    }
+}
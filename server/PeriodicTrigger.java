@@ -0,0 +1,40 @@
+package server;
+
+/**
+ * Attesa di un thread periodico che può essere anticipata su richiesta, ad esempio dalla console del server.
+ * Come Thread.sleep, l'attesa termina con InterruptedException se il thread viene interrotto,
+ * quindi la terminazione dei thread che la usano non cambia
+ */
+public class PeriodicTrigger {
+    private final long period; // Millisecondi tra due esecuzioni
+    private boolean triggered; // true se è stata richiesta un'esecuzione immediata, protetto dal monitor dell'oggetto
+
+    /**
+     * @param period Millisecondi tra due esecuzioni
+     */
+    public PeriodicTrigger(long period){
+        this.period = period;
+        this.triggered = false;
+    }
+
+    /**
+     * Attende il periodo oppure una richiesta di esecuzione immediata, se arriva prima
+     * 
+     * @throws InterruptedException Se il thread viene interrotto durante l'attesa
+     */
+    public synchronized void await()
+    throws InterruptedException {
+        long deadline = System.currentTimeMillis() + period;
+        for ( long remaining = period; !triggered && remaining > 0; remaining = deadline - System.currentTimeMillis() )
+            wait(remaining);
+        triggered = false;
+    }
+
+    /**
+     * Richiede un'esecuzione immediata, il thread in attesa viene svegliato
+     */
+    public synchronized void trigger(){
+        triggered = true;
+        notifyAll();
+    }
+}
@@ -0,0 +1,51 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.net.URLConnection;
+
+/**
+ * Tasso di conversione ottenuto come decimale casuale da random.org.
+ * Ogni invocazione di getRate effettua una richiesta HTTP, quindi va utilizzato attraverso CachedRateProvider
+ */
+public class RandomOrgRateProvider implements RateProvider {
+    private final static String randomURL = "https://www.random.org/decimal-fractions/?num=1&dec=4&col=1&format=plain&rnd=new"; // URL a cui connettersi per recuperare un numero casuale
+
+    private final int timeout; // Millisecondi massimi di attesa per la connessione e per la risposta
+
+    /**
+     * @param timeout Millisecondi massimi di attesa per la connessione e per la risposta
+     * @throws IllegalArgumentException Se timeout non è positivo
+     */
+    public RandomOrgRateProvider(int timeout)
+    throws IllegalArgumentException {
+        if ( timeout <= 0 )
+            throw new IllegalArgumentException();
+
+        this.timeout = timeout;
+    }
+
+    /**
+     * Ottiene un decimale random collegandosi all'URL
+     * 
+     * @return un decimale random
+     * @throws WinsomeException Se random.org non risponde entro il timeout o la risposta non è valida
+     */
+    public double getRate()
+    throws WinsomeException {
+        try{
+            URLConnection urlConn = new URL(randomURL).openConnection();
+            urlConn.setConnectTimeout(timeout);
+            urlConn.setReadTimeout(timeout);
+            try (
+                BufferedReader buf = new BufferedReader(new InputStreamReader(urlConn.getInputStream()));
+            ){
+                return Double.parseDouble(buf.readLine());
+            }
+        } catch ( IOException | NumberFormatException | NullPointerException e ){
+            throw new WinsomeException("Tasso di conversione non disponibile: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import shared.Operation;
+import shared.RequestCodec;
+
+/**
+ * Limita la frequenza delle richieste per utente e per indirizzo del client, con un secchio di gettoni
+ * per ogni utente e per ogni indirizzo. Ogni operazione ha un costo in gettoni, più alto per quelle
+ * più onerose come il login (che calcola BCrypt) o il feed.
+ * Viene condiviso da tutti i worker e non utilizza lock. Per limitare la memoria i secchi tornati pieni
+ * vengono scartati periodicamente, e oltre il numero massimo di secchi i nuovi client vengono rifiutati
+ * finché non se ne libera qualcuno
+ */
+public class RateLimiter {
+    private final static long SWEEP_PERIOD = 10_000_000_000L; // Nanosecondi tra due rimozioni dei secchi inutilizzati
+    private final static long EVICT_PERIOD = 100_000_000L; // Nanosecondi tra due rimozioni forzate quando i secchi sono al limite
+
+    private final int userCapacity; // Gettoni di ogni utente, 0 se il limite per utente è disabilitato
+    private final double userRate; // Gettoni ricaricati ogni secondo per ogni utente
+    private final int addressCapacity; // Gettoni di ogni indirizzo, 0 se il limite per indirizzo è disabilitato
+    private final double addressRate; // Gettoni ricaricati ogni secondo per ogni indirizzo
+    private final int maxBuckets; // Numero massimo di secchi conservati per ognuna delle due mappe
+    private final int[] costs; // Costo in gettoni di ogni operazione, indicizzato per ordinale
+
+    private final Map<String, TokenBucket> users; // Secchi degli utenti
+    private final Map<String, TokenBucket> addresses; // Secchi degli indirizzi
+    private final AtomicLong lastSweep; // Istante dell'ultima rimozione dei secchi inutilizzati
+    private final AtomicLong lastEvict; // Istante dell'ultima rimozione forzata, fatta quando un nuovo client trova i secchi al limite
+
+    /**
+     * @param userCapacity Gettoni di ogni utente, 0 per disabilitare il limite per utente
+     * @param userRate Gettoni ricaricati ogni secondo per ogni utente
+     * @param addressCapacity Gettoni di ogni indirizzo, 0 per disabilitare il limite per indirizzo
+     * @param addressRate Gettoni ricaricati ogni secondo per ogni indirizzo
+     * @param maxBuckets Numero massimo di secchi conservati per gli utenti e per gli indirizzi
+     * @param costs Costo in gettoni di ogni operazione, indicizzato per ordinale
+     * @throws IllegalArgumentException Se i parametri non sono validi
+     */
+    public RateLimiter(int userCapacity, double userRate, int addressCapacity, double addressRate, int maxBuckets, int[] costs)
+    throws IllegalArgumentException {
+        if ( userCapacity < 0 || addressCapacity < 0 || maxBuckets <= 0 || costs.length != Operation.values().length )
+            throw new IllegalArgumentException();
+        if ( ( userCapacity > 0 && userRate <= 0 ) || ( addressCapacity > 0 && addressRate <= 0 ) )
+            throw new IllegalArgumentException();
+
+        this.userCapacity = userCapacity;
+        this.userRate = userRate;
+        this.addressCapacity = addressCapacity;
+        this.addressRate = addressRate;
+        this.maxBuckets = maxBuckets;
+        this.costs = costs.clone();
+        this.users = new ConcurrentHashMap<String, TokenBucket>();
+        this.addresses = new ConcurrentHashMap<String, TokenBucket>();
+        this.lastSweep = new AtomicLong(System.nanoTime());
+        this.lastEvict = new AtomicLong(System.nanoTime() - EVICT_PERIOD);
+    }
+
+    /**
+     * Restituisce i costi predefiniti delle operazioni
+     * 
+     * @return Il costo in gettoni di ogni operazione, indicizzato per ordinale
+     */
+    public static int[] defaultCosts(){
+        int[] costs = new int[Operation.values().length];
+        for ( Operation operation : Operation.values() ){
+            switch ( operation ){
+                case LOGIN: costs[operation.ordinal()] = 10; break; // BCrypt
+                case SHOW_FEED: costs[operation.ordinal()] = 5; break;
+                case VIEW_BLOG: costs[operation.ordinal()] = 3; break;
+                case LIST_USERS: costs[operation.ordinal()] = 3; break;
+                case HELLO: costs[operation.ordinal()] = 0; break;
+                case BATCH: costs[operation.ordinal()] = 0; break; // Si pagano le richieste contenute
+                default: costs[operation.ordinal()] = 1; break;
+            }
+        }
+        return costs;
+    }
+
+    /**
+     * Restituisce il costo di un'operazione
+     * 
+     * @param operation Operazione richiesta
+     * @return Il costo in gettoni
+     */
+    public int getCost(Operation operation){
+        return costs[operation.ordinal()];
+    }
+
+    /**
+     * Calcola il costo di una richiesta senza consumarla: una richiesta BATCH costa quanto le richieste che contiene
+     * 
+     * @param request Contenuto della richiesta
+     * @return Il costo in gettoni, quello di un'operazione semplice se la richiesta non è ben formata
+     *         (verrà comunque rifiutata da chi la elabora)
+     */
+    public int getCost(byte[] request){
+        ByteBuffer buffer = ByteBuffer.wrap(request);
+        try{
+            Operation operation = RequestCodec.readOperation(buffer);
+            if ( operation == null )
+                return 1;
+            if ( operation != Operation.BATCH )
+                return getCost(operation);
+
+            int count = RequestCodec.readInt(buffer);
+            int cost = 0;
+            for ( int i = 0; i < count; i++ ){
+                Operation inner = RequestCodec.readOperation(RequestCodec.readRequest(buffer));
+                // Le operazioni rifiutate dentro un BATCH costano quanto un'operazione semplice
+                cost += inner == null || !RequestDispatcher.isAllowedInBatch(inner) ? 1 : getCost(inner);
+            }
+            return Math.max(cost, 1);
+        } catch ( IllegalArgumentException e ){
+            return 1;
+        }
+    }
+
+    /**
+     * Prova a consumare i gettoni di una richiesta dal secchio dell'indirizzo e da quello dell'utente
+     * 
+     * @param address Indirizzo del client
+     * @param username Utente della sessione, null se non ha ancora effettuato il login
+     * @param cost Costo in gettoni della richiesta
+     * @return true se la richiesta può essere elaborata, false se supera il limite
+     */
+    public boolean tryAcquire(String address, String username, int cost){
+        if ( cost <= 0 )
+            return true;
+
+        long now = System.nanoTime();
+        sweep(now);
+        TokenBucket addressBucket = null;
+        if ( addressCapacity > 0 && address != null ){
+            addressBucket = consume(addresses, address, addressCapacity, addressRate, cost, now);
+            if ( addressBucket == null )
+                return false;
+        }
+        if ( userCapacity > 0 && username != null && consume(users, username, userCapacity, userRate, cost, now) == null ){
+            // La richiesta non viene elaborata: i gettoni tornano all'indirizzo, altrimenti un utente oltre il limite
+            // esaurirebbe anche quelli degli altri client con lo stesso indirizzo
+            if ( addressBucket != null )
+                addressBucket.refund(cost);
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Consuma i gettoni dal secchio della chiave, creandolo pieno se non esiste.
+     * Una richiesta più costosa della capacità del secchio viene sempre rifiutata: un BATCH
+     * non può costare meno delle richieste che contiene, altrimenti aggirerebbe il limite
+     * 
+     * @return Il secchio da cui sono stati consumati i gettoni, null se la richiesta supera il limite
+     */
+    private TokenBucket consume(Map<String, TokenBucket> buckets, String key, int capacity, double rate, int cost, long now){
+        TokenBucket bucket = buckets.get(key);
+        if ( bucket == null ){
+            // Oltre il limite di memoria non creo nuovi secchi: meglio rifiutare un nuovo client che esaurire la memoria
+            if ( buckets.size() >= maxBuckets && !tryEvict(buckets, now) )
+                return null;
+            bucket = buckets.computeIfAbsent(key, k -> new TokenBucket(capacity, rate, now));
+        }
+
+        return bucket.tryConsume(cost, now) ? bucket : null;
+    }
+
+    /**
+     * Rimuove i secchi pieni quando un nuovo client trova i secchi al limite.
+     * La scansione riguarda tutta la mappa, quindi viene fatta al più una volta ogni EVICT_PERIOD
+     * e da un solo thread: nel frattempo i nuovi client vengono rifiutati
+     * 
+     * @param buckets Secchi da esaminare
+     * @param now Istante corrente in nanosecondi
+     * @return true se è stato rimosso almeno un secchio
+     */
+    private boolean tryEvict(Map<String, TokenBucket> buckets, long now){
+        long last = lastEvict.get();
+        if ( now - last < EVICT_PERIOD || !lastEvict.compareAndSet(last, now) )
+            return false;
+
+        return evict(buckets, now);
+    }
+
+    /**
+     * Rimuove periodicamente i secchi tornati pieni, soltanto un thread alla volta se ne occupa
+     * 
+     * @param now Istante corrente in nanosecondi
+     */
+    private void sweep(long now){
+        long last = lastSweep.get();
+        if ( now - last < SWEEP_PERIOD || !lastSweep.compareAndSet(last, now) )
+            return;
+
+        evict(users, now);
+        evict(addresses, now);
+    }
+
+    /**
+     * Rimuove i secchi pieni: un secchio pieno equivale a uno nuovo, quindi rimuoverlo non cambia i limiti
+     * 
+     * @param buckets Secchi da esaminare
+     * @param now Istante corrente in nanosecondi
+     * @return true se è stato rimosso almeno un secchio
+     */
+    private boolean evict(Map<String, TokenBucket> buckets, long now){
+        boolean removed = false;
+        for ( Iterator<TokenBucket> iterator = buckets.values().iterator(); iterator.hasNext(); ){
+            if ( iterator.next().isFull(now) ){
+                iterator.remove();
+                removed = true;
+            }
+        }
+        return removed;
+    }
+}
@@ -0,0 +1,17 @@
+package server;
+
+/**
+ * Fonte del tasso di conversione in bitcoin utilizzato da GET_WALLET_BITCOIN.
+ * Le implementazioni utilizzate dai worker non devono effettuare operazioni di rete durante getRate
+ */
+public interface RateProvider {
+
+    /**
+     * Restituisce il tasso di conversione corrente
+     * 
+     * @return Il tasso di conversione
+     * @throws WinsomeException Se il tasso di conversione non è disponibile
+     */
+    public double getRate()
+    throws WinsomeException;
+}
@@ -0,0 +1,480 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import shared.*;
+
+/**
+ * Elaborazione delle richieste dei client, indipendente da come vengono lette e scritte sulla connessione:
+ * viene condivisa dai worker NIO e dai thread della modalità bloccante, che le passano la richiesta
+ * già estratta dal messaggio e la connessione da cui proviene.
+ * Non ha stato proprio oltre ai riferimenti ai servizi del server, quindi può essere usata da più thread insieme
+ */
+public class RequestDispatcher {
+    private final static int MAX_BATCH = 10000; // Numero massimo di richieste contenute in una richiesta BATCH
+    private final static int MAX_PAGE = 1000; // Numero massimo di post restituiti in una pagina del blog o del feed
+
+    private String multicastAddress; // Indirizzo per il multicast da comunicare al client al momento del login
+    private int multicastPort; // Porta per il multicast da comunicare al client al momento del login
+    private WinsomeDB database; // Puntatore al database di Winsome
+    private CallbackDispatcher callbacks; // Invio asincrono delle notifiche con le callback RMI
+    private RateProvider rates; // Fonte del tasso di conversione in bitcoin, non effettua operazioni di rete durante la richiesta
+    private PasswordHasher hasher; // Pool che verifica le password al login
+    private Metrics metrics; // Metriche delle richieste elaborate
+    private boolean pushEnabled; // true se i client possono ricevere le notifiche sulla connessione TCP invece che con RMI
+    private Map<String, ClientConnection> subscribers; // Connessioni su cui notificare gli utenti che ricevono le notifiche via TCP
+
+    public RequestDispatcher(WinsomeDB database, String multicastAddress, int multicastPort, CallbackDispatcher callbacks, RateProvider rates,
+                             PasswordHasher hasher, Metrics metrics, boolean pushEnabled){
+        if ( database == null || callbacks == null || rates == null || hasher == null || metrics == null )
+            throw new NullPointerException();
+
+        this.database = database;
+        this.multicastAddress = multicastAddress;
+        this.multicastPort = multicastPort;
+        this.callbacks = callbacks;
+        this.rates = rates;
+        this.hasher = hasher;
+        this.metrics = metrics;
+        this.pushEnabled = pushEnabled;
+        this.subscribers = new ConcurrentHashMap<String, ClientConnection>();
+    }
+
+    public Metrics getMetrics(){
+        return metrics;
+    }
+
+    /**
+     * Rifiuta una richiesta senza elaborarla, registrando il rifiuto nelle metriche
+     * 
+     * @param request Contenuto della richiesta
+     * @param reason Motivo del rifiuto
+     * @return La risposta da inviare al client
+     */
+    protected String[] reject(byte[] request, Communication reason){
+        metrics.recordRejection(RequestCodec.peekOperation(ByteBuffer.wrap(request)), reason);
+        return new String[]{ reason.toString(), "" };
+    }
+
+    /**
+     * Effettua il logout dell'utente di una sessione chiusa insieme alla sua connessione
+     * 
+     * @param user Utente di cui effettuare il logout
+     * @param connection Connessione chiusa
+     */
+    protected void logout(WinsomeUser user, ClientConnection connection){
+        subscribers.remove(user.getNickname(), connection);
+        try{
+            database.logout(user);
+        } catch ( WinsomeException e ){
+            // L'utente ha già effettuato il logout
+        }
+    }
+
+    /**
+     * Registra la connessione di un utente appena collegato per ricevere le notifiche e gli invia l'elenco dei suoi follower.
+     * L'elenco viene letto e inviato con il lock della connessione, lo stesso con cui vengono inviate le notifiche:
+     * un follow avvenuto dopo la lettura viene notificato dopo l'elenco, quindi il client non perde aggiornamenti
+     * 
+     * @param user Utente che ha effettuato il login
+     * @param connection Connessione dell'utente
+     */
+    private void subscribe(WinsomeUser user, ClientConnection connection){
+        synchronized ( connection ){
+            subscribers.put(user.getNickname(), connection);
+            StringBuilder notification = new StringBuilder(ClientNotifyInterface.FOLLOWERS + ";");
+            for ( String follower : user.getFollower() )
+                notification.append(follower).append(";");
+            connection.push(notification.toString());
+        }
+    }
+
+    /**
+     * Notifica un utente: sulla sua connessione se riceve le notifiche via TCP, altrimenti con la callback RMI.
+     * In entrambi i casi la notifica viene solo accodata, la risposta al client che ha effettuato l'operazione non attende l'invio
+     * 
+     * @param username Utente da notificare
+     * @param event Evento da notificare, FOLLOW o UNFOLLOW
+     * @param follower Utente che ha iniziato o smesso di seguire
+     * @param version Versione dei follower di username che contiene la modifica
+     */
+    private void notify(String username, String event, String follower, long version){
+        ClientConnection connection = subscribers.get(username);
+        if ( connection != null ){
+            synchronized ( connection ){
+                if ( connection.push(event + ";" + follower + ";") )
+                    return;
+            }
+            // La connessione è congestionata: la notifica passa dalle callback, che la scartano se il client non le usa
+        }
+
+        callbacks.submit(username, event, follower, version);
+    }
+
+    /**
+     * Restituisce una stringa che indica per ogni post il titolo, l'autore e l'identificativo
+     * 
+     * @param tmp L'insieme dei post
+     * @return Una stringa che indica per ogni post il titolo, l'autore e l'identificativo
+     */
+    private String toSimplePost(Collection<WinsomePost> tmp){
+        StringBuilder s = new StringBuilder();
+
+        for ( WinsomePost post : tmp )
+            s = s.append("\tId: " + post.getIdPost() + "\n\tAutore: " + post.getAuthor() + "\n\tTitolo: " + post.getTitle() + "\n");
+
+        if ( s.length() == 0 )
+            s.append("Nessun post presente\n");
+
+        return s.toString();
+    }
+
+    /**
+     * Decodifica il cursore di una pagina del blog o del feed. Per il client il cursore è opaco,
+     * il server vi scrive l'id dell'ultimo post della pagina precedente
+     * 
+     * @param cursor Cursore restituito con la pagina precedente, vuoto per la prima pagina
+     * @return L'id dell'ultimo post già restituito, 0 per la prima pagina
+     * @throws IllegalArgumentException Se il cursore non è valido
+     */
+    private int decodeCursor(String cursor)
+    throws IllegalArgumentException {
+        if ( cursor.isEmpty() )
+            return 0;
+
+        int idPost = Integer.parseInt(cursor); // NumberFormatException è una IllegalArgumentException
+        if ( idPost <= 0 )
+            throw new IllegalArgumentException("Cursore non valido: " + cursor);
+        return idPost;
+    }
+
+    /**
+     * Indica se un'operazione può essere contenuta in una richiesta BATCH.
+     * Non sono ammesse richieste BATCH annidate, le operazioni paginate, il cui cursore
+     * non trova posto nella risposta che contiene solo esito e attributi di ogni richiesta,
+     * né il login, che calcola BCrypt e non deve poter essere ripetuto migliaia di volte con una sola richiesta
+     * 
+     * @param operation Operazione contenuta nella richiesta BATCH
+     * @return true se l'operazione viene elaborata, false se viene rifiutata
+     */
+    protected static boolean isAllowedInBatch(Operation operation){
+        return operation != Operation.BATCH && operation != Operation.SHOW_FEED && operation != Operation.VIEW_BLOG
+            && operation != Operation.LOGIN;
+    }
+
+    /**
+     * Elabora una dopo l'altra le richieste contenute in una richiesta BATCH, all'interno della stessa elaborazione
+     * 
+     * @param request Buffer posizionato dopo l'operazione BATCH
+     * @param connection Connessione da cui proviene la richiesta
+     * @return L'esito complessivo seguito da esito e attributi di ogni richiesta, nello stesso ordine
+     * @throws IllegalArgumentException Se la richiesta non è ben formata
+     */
+    private String[] processBatch(ByteBuffer request, ClientConnection connection)
+    throws IllegalArgumentException {
+        int count = RequestCodec.readInt(request);
+        if ( count < 0 || count > MAX_BATCH )
+            throw new IllegalArgumentException("Numero di richieste non valido: " + count);
+
+        // Separo tutte le richieste prima di eseguirne qualcuna: una richiesta mal formata fa fallire il BATCH
+        // prima che le precedenti abbiano modificato lo stato, senza che il client ne conosca l'esito
+        ByteBuffer[] requests = new ByteBuffer[count];
+        for ( int i = 0; i < count; i++ )
+            requests[i] = RequestCodec.readRequest(request);
+
+        String[] reply = new String[1 + 2 * count];
+        reply[0] = Communication.Success.toString();
+        for ( int i = 0; i < count; i++ ){
+            ByteBuffer inner = requests[i];
+            String[] innerReply;
+            if ( !isAllowedInBatch(RequestCodec.peekOperation(inner)) )
+                innerReply = new String[]{ Communication.OperationNotSupported.toString(), "" };
+            else
+                innerReply = processRequest(inner, connection);
+
+            reply[1 + 2 * i] = innerReply[0];
+            reply[2 + 2 * i] = innerReply[1];
+        }
+
+        return reply;
+    }
+
+    /**
+     * Riceve una richiesta da un client e la soddisfa restituendo l'esito, registrandone durata ed esito nelle metriche
+     * 
+     * @param request Richiesta client codificata come indicato da RequestCodec
+     * @param connection Connessione da cui proviene la richiesta, a cui viene associato l'utente dopo il login
+     * @return L'esito dell'operazione e gli eventuali attributi
+     */
+    public String[] processRequest(ByteBuffer request, ClientConnection connection){
+        Operation operation = RequestCodec.peekOperation(request);
+        long start = System.nanoTime();
+        String[] reply = execute(request, connection);
+        metrics.record(operation, reply[0], System.nanoTime() - start);
+        return reply;
+    }
+
+    /**
+     * Soddisfa una richiesta
+     * 
+     * @param request Richiesta client codificata come indicato da RequestCodec
+     * @param connection Connessione da cui proviene la richiesta, a cui viene associato l'utente dopo il login
+     * @return L'esito dell'operazione e gli eventuali attributi
+     */
+    private String[] execute(ByteBuffer request, ClientConnection connection){
+        String description = Communication.Success.toString(); // Descrizione dell'esito dell'operazione
+        String attr = ""; // Eventuali attributi da restituire al client
+        String next = null; // Cursore della pagina successiva per le operazioni paginate, vuoto se non ce ne sono altre
+        
+        try{
+            // La richiesta è nel formato OPERATION ATTRIBUTI, i campi vengono letti
+            // direttamente dal buffer e ogni operazione legge soltanto gli attributi che le servono
+            Operation operation = RequestCodec.readOperation(request);
+            if ( operation == null )
+                return new String[]{ Communication.OperationNotSupported.toString(), attr };
+            // Le richieste contenute in una richiesta BATCH vengono elaborate nella stessa sessione
+            if ( operation == Operation.BATCH )
+                return processBatch(request, connection);
+            // Tranne che per il login, l'utente è quello legato alla sessione della connessione e non viaggia nella richiesta
+            Session session = connection.getSession();
+            WinsomeUser user = session.getUser();
+            if ( user == null && operation != Operation.LOGIN && operation != Operation.SHOW_POST && operation != Operation.HELLO )
+                return new String[]{ Communication.NotLogged.toString(), attr };
+
+            switch ( operation ){
+                case ADD_COMMENT:{
+                    // l'operazione restituisce true o solleva eccezione, ma gestisco comunque un fallimento per future modifiche
+                    int idPost = RequestCodec.readInt(request);
+                    String comment = RequestCodec.readString(request);
+                    description = database.addComment(user, idPost, comment) ? Communication.Success.toString() : Communication.Failure.toString();
+                    break;
+                }
+                case CREATE_POST:{
+                    // l'operazione restituisce true o solleva eccezione, ma gestisco comunque un fallimento per future modifiche
+                    String title = RequestCodec.readString(request);
+                    String content = RequestCodec.readString(request);
+                    description = database.createPost(user, title, content) ? Communication.Success.toString() : Communication.Failure.toString();
+                    break;
+                }
+                case DELETE_POST:{
+                    description = database.deletePost(user, RequestCodec.readInt(request)) ? Communication.Success.toString() : Communication.Failure.toString();
+                    break;
+                }
+                case FOLLOW_USER:{
+                    // user inizia a seguire
+                    // l'operazione restituisce true o solleva eccezione, ma gestisco comunque un fallimento per future modifiche
+                    String toFollow = RequestCodec.readString(request);
+                    long version = database.followUser(user, toFollow);
+                    if ( version != FollowerSync.UNKNOWN ){
+                        description = Communication.Success.toString();
+                        // notifico all'utente che viene seguito che user ha iniziato a seguirlo
+                        notify(toFollow, ClientNotifyInterface.FOLLOW, user.getNickname(), version);
+                    }
+                    else 
+                        description = Communication.Failure.toString();
+
+                    break;
+                }
+                case GET_WALLET:{
+                    attr = "";
+                    double wallet = 0;
+                    Queue<WinsomeWallet> queue = database.getWallet(user);
+                    if ( queue == null || queue.isEmpty() ){ // Non solleva NullPointerException perché java ha la Short-circuit evaluation
+                        description = Communication.EmptySet.toString();
+                        break;
+                    }
+                    // Salvo lo storico del portafoglio in formato leggibile
+                    for ( WinsomeWallet w : queue ){
+                        attr = attr + w.getDate() + " " + w.getValue() + "\n";
+                        wallet = wallet + w.getValue(); // Aggiorno il valore complessivo del portafoglio
+                    }
+
+                    attr += "Valore del portafoglio : " + wallet + "\n;";
+
+                    break;
+                }
+                case GET_WALLET_BITCOIN:{
+                    Queue<WinsomeWallet> queue = database.getWallet(user);
+                    if ( queue == null || queue.isEmpty() ){ // Non solleva NullPointerException perché java ha la Short-circuit evaluation
+                        description = Communication.EmptySet.toString();
+                        break;
+                    }
+                    double n = rates.getRate(); // Solleva eccezione se il tasso non è ancora disponibile
+                    double walletbtc = 0;
+                    attr = "";
+                    // Salvo lo storico del portafoglio in formato leggibile
+                    for ( WinsomeWallet w : queue ){
+                        attr = attr + w.getDate() + " " + w.getValue()*n + "\n";
+                        walletbtc = walletbtc + w.getValue()*n; // Aggiorno il valore complessivo del portafoglio in bitcoin
+                    }
+
+                    attr += "Valore del portafoglio in bitcoin : " + walletbtc + " (Tasso di conversione: " + n + ")\n;";
+
+                    break;
+                }
+                case LIST_FOLLOWING:{
+                    Set<String> following = database.listFollowing(user);
+                    if ( following == null || following.isEmpty() ){ // Non solleva NullPointerException perché java ha la Short-circuit evaluation
+                        description = Communication.EmptySet.toString();
+                        break;
+                    }
+                    attr = Arrays.toString( following.toArray() );
+                    break;
+                }
+                case LIST_USERS:{
+                    Set<String> users = database.listUsers(user);
+                    if ( users == null || users.isEmpty() ){ // Non solleva NullPointerException perché java ha la Short-circuit evaluation
+                        description = Communication.EmptySet.toString();
+                        break;
+                    }
+                    attr = Arrays.toString( users.toArray());
+                    break;
+                }
+                case HELLO:{
+                    // Il client indica le funzionalità che supporta, rispondo con quelle che verranno utilizzate
+                    int requested = RequestCodec.readInt(request);
+                    int accepted = connection.negotiate(requested);
+                    // Le notifiche sulla connessione sostituiscono le callback RMI, che richiedono una porta aperta sul client
+                    boolean push = pushEnabled && ( requested & Frame.CAPABILITY_PUSH ) != 0;
+                    session.setPush(push);
+                    attr = String.valueOf(push ? accepted | Frame.CAPABILITY_PUSH : accepted);
+                    break;
+                }
+                case LOGIN:{
+                    // l'operazione restituisce l'utente o solleva eccezione
+                    String username = RequestCodec.readString(request);
+                    String password = RequestCodec.readString(request);
+                    // Una sessione può avere un solo utente alla volta
+                    if ( user != null ){
+                        description = Communication.AlreadyLogged.toString();
+                        break;
+                    }
+                    WinsomeUser logged = database.login(username, password, hasher);
+                    if ( !session.bind(logged) ){
+                        // La connessione è stata chiusa durante il login, nessuno potrà effettuare il logout
+                        database.logout(logged);
+                        description = Communication.Failure.toString();
+                        break;
+                    }
+                    if ( session.isPush() )
+                        subscribe(logged, connection);
+                    description = Communication.Success.toString();
+                    attr = multicastAddress + "\n" + multicastPort; // Invio l'indirizzo e la porta per permettere al client di registrarsi al servizio di multicast
+                    break;
+                }
+                case LOGOUT:{
+                    // l'operazione restituisce true o solleva eccezione, ma gestisco comunque un fallimento per future modifiche
+                    if ( database.logout(user) ){
+                        description = Communication.Success.toString();
+                        subscribers.remove(user.getNickname(), connection);
+                        session.unbind();
+                    }
+                    else
+                        description = Communication.Failure.toString();
+                    break;
+                }
+                case RATE_POST:{
+                    // l'operazione restituisce true o solleva eccezione, ma gestisco comunque un fallimento per future modifiche
+                    int idPost = RequestCodec.readInt(request);
+                    int vote = RequestCodec.readInt(request);
+                    description = database.ratePost(user, idPost, vote) ? Communication.Success.toString() : Communication.Failure.toString();
+                    break;
+                }
+                case REWIN_POST:{
+                    // l'operazione restituisce true o solleva eccezione, ma gestisco comunque un fallimento per future modifiche
+                    description = database.rewinPost(user, RequestCodec.readInt(request)) ? Communication.Success.toString() : Communication.Failure.toString();
+                    break;
+                }
+                case SHOW_FEED:{
+                    // La richiesta indica quanti post restituire e il cursore restituito con la pagina precedente
+                    int limit = RequestCodec.readInt(request);
+                    int cursor = decodeCursor(RequestCodec.readString(request));
+                    if ( limit <= 0 || limit > MAX_PAGE )
+                        throw new IllegalArgumentException("Dimensione della pagina non valida: " + limit);
+
+                    List<WinsomePost> page = database.showFeed(user, cursor, limit);
+                    if ( page.isEmpty() ){
+                        description = Communication.EmptySet.toString();
+                        break;
+                    }
+                    description = Communication.Success.toString();
+                    attr = toSimplePost(page) + ";";
+                    // Se la pagina è piena potrebbero esserci altri post, il client li chiede con il cursore
+                    next = page.size() == limit ? String.valueOf(page.get(page.size() - 1).getIdPost()) : "";
+
+                    break;
+                }
+                case SHOW_POST:{
+                    attr = database.showPost(RequestCodec.readInt(request)) + "\n;";
+                    description = Communication.Success.toString();
+                    break;
+                }
+                case UNFOLLOW_USER:{
+                    // user smette di seguire
+                    // l'operazione restituisce true o solleva eccezione, ma gestisco comunque un fallimento per future modifiche
+                    String toUnfollow = RequestCodec.readString(request);
+                    long version = database.unfollowUser(user, toUnfollow);
+                    if ( version != FollowerSync.UNKNOWN ){
+                        description = Communication.Success.toString();
+                        // notifico all'utente che viene seguito che user ha smesso di seguirlo
+                        notify(toUnfollow, ClientNotifyInterface.UNFOLLOW, user.getNickname(), version);
+                    }
+                    else 
+                        description = Communication.Failure.toString();
+
+                    break;
+                }
+                case VIEW_BLOG:{
+                    // La richiesta indica quanti post restituire e il cursore restituito con la pagina precedente
+                    int limit = RequestCodec.readInt(request);
+                    int cursor = decodeCursor(RequestCodec.readString(request));
+                    if ( limit <= 0 || limit > MAX_PAGE )
+                        throw new IllegalArgumentException("Dimensione della pagina non valida: " + limit);
+
+                    List<WinsomePost> page = database.viewBlog(user, cursor, limit);
+                    if ( page.isEmpty() ){
+                        description = Communication.EmptySet.toString();
+                        break;
+                    }
+                    description = Communication.Success.toString();
+                    attr = toSimplePost(page) + ";";
+                    // Se la pagina è piena potrebbero esserci altri post, il client li chiede con il cursore
+                    next = page.size() == limit ? String.valueOf(page.get(page.size() - 1).getIdPost()) : "";
+
+                    break;
+                }
+                default:{
+                    description = Communication.OperationNotSupported.toString();
+                    
+                    return new String[]{ description, attr };
+                }
+            }
+        } catch ( WinsomeException e ){
+            attr = "";
+            next = null;
+            description = e.getMessage();
+        } catch ( NullPointerException | IllegalArgumentException e ){
+            attr = "";
+            next = null;
+            description = Communication.Failure.toString();
+        }
+        catch ( Exception e ){
+            attr = "";
+            next = null;
+            description = Communication.Failure.toString();
+            e.printStackTrace();
+        }
+        
+        // Le operazioni paginate aggiungono alla risposta il cursore della pagina successiva
+        if ( next != null )
+            return new String[]{ description, attr, next };
+        return new String[]{ description, attr };
+    }
+}
@@ -14,7 +14,7 @@ import java.util.Set;
  */
 public class RewardCalculator extends Thread {
 
-    private int period; // Periodo ogni quanto viene effettuato il calcolo delle ricompense
+    private PeriodicTrigger trigger; // Attesa del prossimo calcolo delle ricompense, anticipabile dalla console del server
     private double percAuth; // Percentuale della ricompensa che spetta all'autore del post
     private double percCur; // Percentuale della ricompensa che spetta ai curatori
     private int port; // Porta su cui inviare in multicast la notifica che le ricompense sono state calcolate
@@ -44,7 +44,7 @@ public class RewardCalculator extends Thread {
         if ( percAuth < 0 || percAuth > 1 )
             throw new IllegalArgumentException("La percentuale autore deve essere un numero compreso tra 0 e 1");
 
-        this.period = period;
+        this.trigger = new PeriodicTrigger(period);
         this.percAuth = percAuth;
         this.percCur = 1 - percAuth;
         this.port = port;
@@ -60,6 +60,13 @@ public class RewardCalculator extends Thread {
         this.database = db;
     }
     
+    /**
+     * Richiede un calcolo immediato delle ricompense, effettuato dal thread come quelli periodici
+     */
+    public void calculateNow(){
+        trigger.trigger();
+    }
+
     /**
      * Funzione che permette al thread di terminare correttamente
      */
@@ -88,8 +95,8 @@ public class RewardCalculator extends Thread {
             while ( !toStop ){
                 // Itera finché il server non invoca la terminazione
                 try{
-                    // Si sospende fino alla prossima esecuzione del calcolo delle ricompense
-                    Thread.sleep(period);
+                    // Si sospende fino alla prossima esecuzione del calcolo delle ricompense, o finché non viene richiesta
+                    trigger.await();
                 } catch ( InterruptedException e ){
                     // Terminazione corretta del thread
                     System.out.println("REWARD: Thread interrotto, in chiusura...");
@@ -6,14 +6,16 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.InetSocketAddress;
+import java.net.ServerSocket;
 import java.net.UnknownHostException;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import shared.*;
 
@@ -31,6 +33,37 @@ public class ServerMain {
     private static int rewardPeriod = -1; // Periodo ogni quanto viene effettuato il calcolo delle ricompense
     private static int autosavePeriod = -1; // Periodo ogni quanto viene effettuato il salvataggio dello stato
     private static float percAuth = -1; // Percentuale di ricompensa che spetta all'autore del post
+    private static int metricsPort = 0; // Porta locale dell'endpoint HTTP delle metriche, 0 per disabilitarlo
+    private static boolean pushNotifications = true; // true se i client possono ricevere le notifiche sulla connessione TCP invece che con RMI
+    private static String serverMode = "nio"; // Modalità di gestione delle connessioni: nio (worker con selettore) o blocking (un thread per connessione)
+    private static int workerThreads = Runtime.getRuntime().availableProcessors(); // Numero di worker (ognuno con il proprio selettore) che servono i client
+    private static String requestExecutor = "fixed"; // Tipo di esecutore delle richieste: fixed (pool di thread) o virtual (un virtual thread per richiesta)
+    private static int executorThreads = 2 * Runtime.getRuntime().availableProcessors(); // Numero di thread del pool fixed
+    private static long idleTimeout = 0; // Millisecondi di inattività dopo cui una connessione client viene chiusa, 0 per non chiuderle mai
+    private static int maxPendingRequests = 64; // Richieste in attesa oltre le quali il server smette di leggere da una connessione
+    private static long maxOutboundBytes = 4 * 1024 * 1024; // Byte di risposte non inviate oltre i quali il server smette di leggere da una connessione
+    private static int maxInFlight = 1024; // Numero massimo di richieste in elaborazione, oltre il quale si risponde che il server è sovraccarico
+    private static String rateProvider = "random"; // Fonte del tasso di conversione in bitcoin: random (random.org) o fixed (valore costante)
+    private static long rateTtl = 60000; // Millisecondi dopo cui il tasso di conversione ottenuto da random.org viene aggiornato
+    private static int rateTimeout = 2000; // Millisecondi massimi di attesa della risposta di random.org
+    private static double rateFixed = 1; // Tasso di conversione utilizzato con la fonte fixed
+    private static int compressionThreshold = 8 * 1024; // Dimensione in byte oltre la quale le risposte vengono compresse per i client che lo richiedono, 0 per non comprimerle mai
+    private static int limitUserCapacity = 100; // Gettoni di ogni utente per il limite di frequenza delle richieste, 0 per disabilitarlo
+    private static double limitUserRefill = 50; // Gettoni ricaricati ogni secondo per ogni utente
+    private static int limitAddressCapacity = 200; // Gettoni di ogni indirizzo per il limite di frequenza delle richieste, 0 per disabilitarlo
+    private static double limitAddressRefill = 100; // Gettoni ricaricati ogni secondo per ogni indirizzo
+    private static int limitMaxBuckets = 100000; // Numero massimo di utenti e di indirizzi di cui si conserva il limite di frequenza
+    private static int[] limitCosts = RateLimiter.defaultCosts(); // Costo in gettoni di ogni operazione, modificabile con COST_<OPERAZIONE>
+    private static int callbackThreads = 2; // Numero di thread che inviano le notifiche con le callback RMI
+    private static int callbackQueue = 10000; // Numero massimo di notifiche RMI in coda, oltre il quale vengono scartate
+    private static int callbackAttempts = 3; // Tentativi di invio di una notifica RMI dopo cui la callback del client viene rimossa
+    private static long callbackRetry = 500; // Millisecondi di attesa dopo il primo invio fallito, raddoppiano a ogni tentativo
+    private static int callbackTimeout = 5000; // Millisecondi massimi di attesa della risposta di un client a una callback RMI
+    private static long callbackWindow = 200; // Millisecondi durante cui si raccolgono le notifiche RMI di un utente prima di inviarle
+    private static int callbackBatch = 1000; // Numero massimo di notifiche RMI inviate a un utente con una sola chiamata
+    private static int hashThreads = Runtime.getRuntime().availableProcessors(); // Numero di hash delle password calcolati contemporaneamente
+    private static int hashQueue = 256; // Numero massimo di hash in attesa, oltre il quale login e registrazioni vengono rifiutati
+    private static int hashLogRounds = 10; // Costo di BCrypt per le nuove password, gli hash con un costo diverso vengono ricalcolati al login
 
     public static void main (String[] args){
 
@@ -98,7 +131,194 @@ public class ServerMain {
                         filename = new String(token[1]);
                         break;
                     }
+                    case "METRICS_PORT":{
+                        metricsPort = Integer.parseInt(token[1]);
+                        if ( metricsPort < 0 || metricsPort > 65535 )
+                            System.exit(FAILURE);
+                        break;
+                    }
+                    case "PUSH_NOTIFICATIONS":{
+                        if ( !token[1].equals("true") && !token[1].equals("false") )
+                            System.exit(FAILURE);
+                        pushNotifications = Boolean.parseBoolean(token[1]);
+                        break;
+                    }
+                    case "SERVER_MODE":{
+                        serverMode = new String(token[1]);
+                        if ( !serverMode.equals("nio") && !serverMode.equals("blocking") )
+                            System.exit(FAILURE);
+                        break;
+                    }
+                    case "WORKER_THREADS":{
+                        workerThreads = Integer.parseInt(token[1]);
+                        if ( workerThreads < 1 )
+                            System.exit(FAILURE);
+                        break;
+                    }
+                    case "REQUEST_EXECUTOR":{
+                        requestExecutor = new String(token[1]);
+                        if ( !requestExecutor.equals("fixed") && !requestExecutor.equals("virtual") )
+                            System.exit(FAILURE);
+                        break;
+                    }
+                    case "EXECUTOR_THREADS":{
+                        executorThreads = Integer.parseInt(token[1]);
+                        if ( executorThreads < 1 )
+                            System.exit(FAILURE);
+                        break;
+                    }
+                    case "IDLE_TIMEOUT":{
+                        idleTimeout = Long.parseLong(token[1]);
+                        if ( idleTimeout < 0 )
+                            System.exit(FAILURE);
+                        break;
+                    }
+                    case "MAX_PENDING_REQUESTS":{
+                        maxPendingRequests = Integer.parseInt(token[1]);
+                        if ( maxPendingRequests < 1 )
+                            System.exit(FAILURE);
+                        break;
+                    }
+                    case "MAX_OUTBOUND_BYTES":{
+                        maxOutboundBytes = Long.parseLong(token[1]);
+                        if ( maxOutboundBytes < 1 )
+                            System.exit(FAILURE);
+                        break;
+                    }
+                    case "MAX_IN_FLIGHT":{
+                        maxInFlight = Integer.parseInt(token[1]);
+                        if ( maxInFlight < 1 )
+                            System.exit(FAILURE);
+                        break;
+                    }
+                    case "COMPRESSION_THRESHOLD":{
+                        compressionThreshold = Integer.parseInt(token[1]);
+                        if ( compressionThreshold < 0 )
+                            System.exit(FAILURE);
+                        break;
+                    }
+                    case "RATE_PROVIDER":{
+                        rateProvider = new String(token[1]);
+                        if ( !rateProvider.equals("random") && !rateProvider.equals("fixed") )
+                            System.exit(FAILURE);
+                        break;
+                    }
+                    case "RATE_TTL":{
+                        rateTtl = Long.parseLong(token[1]);
+                        if ( rateTtl < 1 )
+                            System.exit(FAILURE);
+                        break;
+                    }
+                    case "RATE_TIMEOUT":{
+                        rateTimeout = Integer.parseInt(token[1]);
+                        if ( rateTimeout < 1 )
+                            System.exit(FAILURE);
+                        break;
+                    }
+                    case "RATE_FIXED":{
+                        rateFixed = Double.parseDouble(token[1]);
+                        if ( rateFixed < 0 )
+                            System.exit(FAILURE);
+                        break;
+                    }
+                    case "CALLBACK_THREADS":{
+                        callbackThreads = Integer.parseInt(token[1]);
+                        if ( callbackThreads <= 0 )
+                            System.exit(FAILURE);
+                        break;
+                    }
+                    case "CALLBACK_QUEUE":{
+                        callbackQueue = Integer.parseInt(token[1]);
+                        if ( callbackQueue <= 0 )
+                            System.exit(FAILURE);
+                        break;
+                    }
+                    case "CALLBACK_ATTEMPTS":{
+                        callbackAttempts = Integer.parseInt(token[1]);
+                        if ( callbackAttempts <= 0 )
+                            System.exit(FAILURE);
+                        break;
+                    }
+                    case "CALLBACK_RETRY":{
+                        callbackRetry = Long.parseLong(token[1]);
+                        if ( callbackRetry < 0 )
+                            System.exit(FAILURE);
+                        break;
+                    }
+                    case "CALLBACK_TIMEOUT":{
+                        callbackTimeout = Integer.parseInt(token[1]);
+                        if ( callbackTimeout <= 0 )
+                            System.exit(FAILURE);
+                        break;
+                    }
+                    case "CALLBACK_WINDOW":{
+                        callbackWindow = Long.parseLong(token[1]);
+                        if ( callbackWindow < 0 )
+                            System.exit(FAILURE);
+                        break;
+                    }
+                    case "CALLBACK_BATCH":{
+                        callbackBatch = Integer.parseInt(token[1]);
+                        if ( callbackBatch <= 0 )
+                            System.exit(FAILURE);
+                        break;
+                    }
+                    case "HASH_THREADS":{
+                        hashThreads = Integer.parseInt(token[1]);
+                        if ( hashThreads <= 0 )
+                            System.exit(FAILURE);
+                        break;
+                    }
+                    case "HASH_QUEUE":{
+                        hashQueue = Integer.parseInt(token[1]);
+                        if ( hashQueue <= 0 )
+                            System.exit(FAILURE);
+                        break;
+                    }
+                    case "BCRYPT_LOG_ROUNDS":{
+                        hashLogRounds = Integer.parseInt(token[1]);
+                        if ( hashLogRounds < 4 || hashLogRounds > 30 )
+                            System.exit(FAILURE);
+                        break;
+                    }
+                    case "LIMIT_USER_CAPACITY":{
+                        limitUserCapacity = Integer.parseInt(token[1]);
+                        if ( limitUserCapacity < 0 )
+                            System.exit(FAILURE);
+                        break;
+                    }
+                    case "LIMIT_USER_REFILL":{
+                        limitUserRefill = Double.parseDouble(token[1]);
+                        if ( limitUserRefill <= 0 )
+                            System.exit(FAILURE);
+                        break;
+                    }
+                    case "LIMIT_ADDRESS_CAPACITY":{
+                        limitAddressCapacity = Integer.parseInt(token[1]);
+                        if ( limitAddressCapacity < 0 )
+                            System.exit(FAILURE);
+                        break;
+                    }
+                    case "LIMIT_ADDRESS_REFILL":{
+                        limitAddressRefill = Double.parseDouble(token[1]);
+                        if ( limitAddressRefill <= 0 )
+                            System.exit(FAILURE);
+                        break;
+                    }
+                    case "LIMIT_MAX_BUCKETS":{
+                        limitMaxBuckets = Integer.parseInt(token[1]);
+                        if ( limitMaxBuckets < 1 )
+                            System.exit(FAILURE);
+                        break;
+                    }
                     default:{
+                        // Costo di un'operazione per il limite di frequenza, ad esempio COST_LOGIN=10
+                        if ( token[0].startsWith("COST_") ){
+                            int cost = Integer.parseInt(token[1]);
+                            if ( cost < 0 )
+                                System.exit(FAILURE);
+                            limitCosts[Operation.valueOf(token[0].substring(5)).ordinal()] = cost;
+                        }
                         break;
                     }
                 }
@@ -129,9 +349,16 @@ public class ServerMain {
             System.exit(FAILURE);
         }
         
+        // Le password vengono verificate su un pool dedicato, sia al login sia alla registrazione con RMI
+        PasswordHasher hasher = new PasswordHasher(hashThreads, hashQueue, hashLogRounds);
+
         // Preparazione del servizio RMI
+        // Un client che non risponde a una callback non deve occupare per sempre un thread delle notifiche
+        if ( System.getProperty("sun.rmi.transport.tcp.responseTimeout") == null )
+            System.setProperty("sun.rmi.transport.tcp.responseTimeout", String.valueOf(callbackTimeout));
+        WinsomeRMIService serviceRMI = null;
         try {
-            WinsomeRMIService serviceRMI = new WinsomeRMIService(database);
+            serviceRMI = new WinsomeRMIService(database, hasher);
             // Rappresentante del servizio che deve essere reperito in qualche modo dal client
             stub = ( RMIServiceInterface ) UnicastRemoteObject.exportObject(serviceRMI, 0);
             LocateRegistry.createRegistry(rmiPort);
@@ -155,37 +382,120 @@ public class ServerMain {
             System.exit(FAILURE);
         }
 
-        // Apertura della connessione TCP con NIO
+        // Preparo la fonte del tasso di conversione: random.org viene interrogato da un thread in background,
+        // così le richieste dei client non attendono mai la rete
+        RateProvider rates = null;
+        CachedRateProvider rateUpdater = null;
+        if ( rateProvider.equals("fixed") )
+            rates = new FixedRateProvider(rateFixed);
+        else {
+            rateUpdater = new CachedRateProvider(new RandomOrgRateProvider(rateTimeout), rateTtl);
+            rates = rateUpdater;
+        }
+
+        Metrics metrics = new Metrics();
+        CallbackDispatcher callbacks = new CallbackDispatcher(serviceRMI, callbackThreads, callbackQueue, callbackAttempts, callbackRetry,
+                                                              callbackWindow, callbackBatch);
+        RequestDispatcher dispatcher = new RequestDispatcher(database, multicastAddress, multicastPort, callbacks, rates, hasher, metrics, pushNotifications);
+        AdmissionControl admission = new AdmissionControl(maxInFlight);
+        RateLimiter limiter = new RateLimiter(limitUserCapacity, limitUserRefill, limitAddressCapacity, limitAddressRefill, limitMaxBuckets, limitCosts);
+
+        // Apertura della connessione TCP, con NIO oppure con un thread bloccante per connessione
         ServerSocketChannel serverSocketChannel = null;
-        Selector selector = null;
+        Worker[] workers = new Worker[0];
+        Acceptor acceptor = null;
+        ExecutorService executor = null;
+        BlockingServer blockingServer = null;
         try{
-            serverSocketChannel = ServerSocketChannel.open();
-            serverSocketChannel.socket().bind(new InetSocketAddress(tcpPort));
-            serverSocketChannel.configureBlocking(false);
+            if ( serverMode.equals("blocking") ){
+                blockingServer = new BlockingServer(new ServerSocket(tcpPort), dispatcher, admission, limiter, idleTimeout, compressionThreshold);
+            }
+            else {
+                serverSocketChannel = ServerSocketChannel.open();
+                serverSocketChannel.socket().bind(new InetSocketAddress(tcpPort));
+                serverSocketChannel.configureBlocking(false);
 
-            selector = Selector.open();
-            // Prossima volta che si viene risvegliati dalla select dovrà essere una richiesta di connesione
-            serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);   
+                // Creazione dei thread che si occupano di servire le richieste dei client, ognuno con il proprio selettore
+                executor = createRequestExecutor();
+                workers = new Worker[workerThreads];
+                for ( int i = 0; i < workerThreads; i++ )
+                    workers[i] = new Worker(dispatcher, executor, idleTimeout, maxPendingRequests, maxOutboundBytes, admission, limiter, compressionThreshold);
 
+                // Il thread che accetta le connessioni le distribuisce ai worker
+                acceptor = new Acceptor(serverSocketChannel, workers);
+            }
         } catch ( Exception e ){
             e.printStackTrace();
             System.exit(FAILURE);
         }
 
-        // Creazione del thread che si occupa di servire le richieste dei client
-        Worker worker = new Worker(selector, database, multicastAddress, multicastPort, stub);
+        // Stato del server per la console di amministrazione e per l'endpoint delle metriche
+        ServerStatus status = new ServerStatus(metrics, admission, workers, blockingServer, database);
+        MetricsHttpServer metricsServer = null;
+        if ( metricsPort > 0 ){
+            try{
+                metricsServer = new MetricsHttpServer(metricsPort, status);
+            } catch ( IOException e ){
+                e.printStackTrace();
+                System.exit(FAILURE);
+            }
+        }
 
         System.out.println("SERVER: Avvio del server");
         state.start();
         rewardCalculator.start();
-        worker.start();
-        System.out.println("SERVER: Avvio avvenuto con successo");
+        if ( rateUpdater != null )
+            rateUpdater.start();
+        for ( Worker worker : workers )
+            worker.start();
+        if ( acceptor != null )
+            acceptor.start();
+        if ( blockingServer != null )
+            blockingServer.start();
+        if ( metricsServer != null ){
+            metricsServer.start();
+            System.out.println("SERVER: Metriche disponibili su http://localhost:" + metricsPort + "/metrics");
+        }
+        System.out.println("SERVER: Avvio avvenuto con successo (modalità " + serverMode + ")");
 
         // Il server si sospende finché non legge "quit", poi termina
         try(
             BufferedReader input = new BufferedReader(new InputStreamReader(System.in));
         ){
-            for (String line = input.readLine(); !line.equals("quit"); line = input.readLine() ) ;
+            // Nel frattempo esegue i comandi della console di amministrazione
+            for ( String line = input.readLine(); line != null && !line.trim().equals("quit"); line = input.readLine() ){
+                switch ( line.trim() ){
+                    case "":{
+                        break;
+                    }
+                    case "stats":{
+                        System.out.print(status.stats());
+                        break;
+                    }
+                    case "connections":{
+                        System.out.print(status.connections());
+                        break;
+                    }
+                    case "snapshot-now":{
+                        state.saveNow();
+                        System.out.println("SERVER: Salvataggio dello stato richiesto");
+                        break;
+                    }
+                    case "reward-now":{
+                        rewardCalculator.calculateNow();
+                        System.out.println("SERVER: Calcolo delle ricompense richiesto");
+                        break;
+                    }
+                    case "gc-info":{
+                        System.out.print(status.gcInfo());
+                        break;
+                    }
+                    default:{
+                        System.out.println("SERVER: Comando sconosciuto, comandi disponibili: stats, connections, snapshot-now, reward-now, gc-info, quit");
+                        break;
+                    }
+                }
+            }
 
             return;
         } catch ( IOException e ){
@@ -195,11 +505,43 @@ public class ServerMain {
             // Ricevo quit dal terminale, quindi termino i thread, chiudo le connessioni e termino il main
             // Metto la chiusura in un blocco finally per permettere ai thread di terminare anche in caso di eccezioni
             try{
+                if ( metricsServer != null )
+                    metricsServer.terminate();
+
                 rewardCalculator.terminate();
                 rewardCalculator.join();
 
-                worker.terminate();
-                worker.join();
+                // Prima smetto di accettare nuove connessioni, poi termino i worker
+                if ( acceptor != null ){
+                    acceptor.terminate();
+                    acceptor.join();
+                }
+
+                for ( Worker worker : workers )
+                    worker.terminate();
+                for ( Worker worker : workers )
+                    worker.join();
+
+                // Le richieste ancora in elaborazione non hanno più un client a cui rispondere
+                if ( executor != null ){
+                    executor.shutdown();
+                    executor.awaitTermination(5, TimeUnit.SECONDS);
+                }
+
+                // In modalità bloccante la terminazione chiude anche le connessioni aperte
+                if ( blockingServer != null ){
+                    blockingServer.terminate();
+                    blockingServer.join();
+                }
+
+                // Non ci sono più richieste che possano generare notifiche
+                callbacks.terminate(5000);
+                hasher.terminate(5000);
+
+                if ( rateUpdater != null )
+                    rateUpdater.terminate();
+
+                System.out.print("SERVER: Metriche delle richieste\n" + metrics.report());
 
                 state.terminate();
                 state.join();
@@ -210,8 +552,8 @@ public class ServerMain {
             }
             
             try {
-                selector.close();
-                serverSocketChannel.close();
+                if ( serverSocketChannel != null )
+                    serverSocketChannel.close();
             } catch ( IOException e ){
                 e.printStackTrace();
                 System.exit(FAILURE);
@@ -221,4 +563,23 @@ public class ServerMain {
         }
     }
 
+    /**
+     * Crea l'esecutore a cui i worker delegano l'elaborazione delle richieste.
+     * I virtual thread sono disponibili solo da java 21, con una versione precedente si ripiega su un pool di thread
+     * 
+     * @return L'esecutore indicato nel file di configurazione
+     */
+    private static ExecutorService createRequestExecutor(){
+        if ( requestExecutor.equals("virtual") ){
+            try{
+                // Invocato per riflessione perché il server deve compilare anche con versioni di java precedenti alla 21
+                return ( ExecutorService ) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch ( ReflectiveOperationException e ){
+                System.err.println("SERVER: Virtual thread non disponibili, utilizzo un pool di " + executorThreads + " thread");
+            }
+        }
+
+        return Executors.newFixedThreadPool(executorThreads);
+    }
+
 }
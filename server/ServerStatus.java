@@ -0,0 +1,189 @@
+package server;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+
+import shared.Communication;
+import shared.Operation;
+
+/**
+ * Stato del server letto dalla console di amministrazione e dall'endpoint HTTP delle metriche:
+ * metriche delle richieste, connessioni aperte, richieste in elaborazione, memoria e garbage collector.
+ * Legge soltanto contatori già condivisi tra thread, quindi può essere usata mentre il server è in funzione
+ */
+public class ServerStatus {
+    private final static double[] QUANTILES = { 0.5, 0.99, 0.999 }; // Percentili esportati per le latenze
+
+    private Metrics metrics; // Metriche delle richieste
+    private AdmissionControl admission; // Limite globale alle richieste in elaborazione
+    private Worker[] workers; // Worker NIO, vuoto in modalità bloccante
+    private BlockingServer blockingServer; // Server bloccante, null in modalità NIO
+    private WinsomeDB database; // Database di Winsome
+
+    public ServerStatus(Metrics metrics, AdmissionControl admission, Worker[] workers, BlockingServer blockingServer, WinsomeDB database){
+        if ( metrics == null || admission == null || workers == null || database == null )
+            throw new NullPointerException();
+
+        this.metrics = metrics;
+        this.admission = admission;
+        this.workers = workers;
+        this.blockingServer = blockingServer;
+        this.database = database;
+    }
+
+    /**
+     * Restituisce il numero di connessioni client aperte
+     * 
+     * @return Le connessioni aperte, su tutti i worker o sul server bloccante
+     */
+    public int getConnections(){
+        int count = blockingServer != null ? blockingServer.getConnections() : 0;
+        for ( Worker worker : workers )
+            count += worker.getConnections();
+        return count;
+    }
+
+    /**
+     * Restituisce il numero di utenti che hanno effettuato il login
+     * 
+     * @return Gli utenti collegati
+     */
+    public int getLoggedUsers(){
+        int count = 0;
+        for ( WinsomeUser user : database.getUsers().values() ){
+            if ( user.isLogged() )
+                count++;
+        }
+        return count;
+    }
+
+    /**
+     * Riepilogo delle richieste, comando stats della console
+     * 
+     * @return Il riepilogo leggibile
+     */
+    public String stats(){
+        return "Richieste in elaborazione: " + admission.getInFlight() + " su " + admission.getMaxInFlight() + "\n" + metrics.report();
+    }
+
+    /**
+     * Connessioni aperte, comando connections della console
+     * 
+     * @return Il riepilogo leggibile
+     */
+    public String connections(){
+        StringBuilder s = new StringBuilder();
+        for ( int i = 0; i < workers.length; i++ )
+            s.append("Worker ").append(i).append(": ").append(workers[i].getConnections()).append(" connessioni\n");
+        if ( blockingServer != null )
+            s.append("Server bloccante: ").append(blockingServer.getConnections()).append(" connessioni\n");
+        s.append("Totale: ").append(getConnections()).append(" connessioni, ").append(getLoggedUsers()).append(" utenti collegati\n");
+        return s.toString();
+    }
+
+    /**
+     * Memoria, garbage collector e buffer diretti, comando gc-info della console
+     * 
+     * @return Il riepilogo leggibile
+     */
+    public String gcInfo(){
+        StringBuilder s = new StringBuilder();
+        for ( GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans() )
+            s.append("GC ").append(gc.getName()).append(": ").append(gc.getCollectionCount()).append(" raccolte, ")
+             .append(gc.getCollectionTime()).append(" ms\n");
+
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        s.append("Heap: ").append(heap.getUsed() >> 20).append(" MB usati, ").append(heap.getCommitted() >> 20)
+         .append(" MB allocati, ").append(heap.getMax() >> 20).append(" MB massimi\n");
+        for ( BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class) )
+            s.append("Buffer ").append(pool.getName()).append(": ").append(pool.getCount()).append(" buffer, ")
+             .append(pool.getMemoryUsed() >> 10).append(" KB\n");
+
+        long hits = 0;
+        long misses = 0;
+        for ( Worker worker : workers ){
+            hits += worker.getPool().getHits();
+            misses += worker.getPool().getMisses();
+        }
+        if ( workers.length > 0 )
+            s.append("Pool dei worker: ").append(hits).append(" buffer riutilizzati, ").append(misses).append(" allocati\n");
+
+        return s.toString();
+    }
+
+    /**
+     * Metriche nel formato testuale di Prometheus
+     * 
+     * @return Il contenuto da restituire a chi raccoglie le metriche
+     */
+    public String prometheus(){
+        StringBuilder s = new StringBuilder();
+
+        s.append("# HELP winsome_requests_total Richieste ricevute per operazione\n");
+        s.append("# TYPE winsome_requests_total counter\n");
+        for ( Operation operation : Operation.values() )
+            s.append("winsome_requests_total{operation=\"").append(operation).append("\"} ").append(metrics.getRequests(operation)).append("\n");
+
+        s.append("# HELP winsome_results_total Esiti delle richieste per operazione\n");
+        s.append("# TYPE winsome_results_total counter\n");
+        for ( Operation operation : Operation.values() ){
+            for ( Communication result : Communication.values() ){
+                long count = metrics.getResults(operation, result);
+                if ( count > 0 )
+                    s.append("winsome_results_total{operation=\"").append(operation).append("\",result=\"").append(result.name())
+                     .append("\"} ").append(count).append("\n");
+            }
+            long other = metrics.getOtherResults(operation);
+            if ( other > 0 )
+                s.append("winsome_results_total{operation=\"").append(operation).append("\",result=\"Other\"} ").append(other).append("\n");
+        }
+
+        s.append("# HELP winsome_invalid_requests_total Richieste con un'operazione sconosciuta\n");
+        s.append("# TYPE winsome_invalid_requests_total counter\n");
+        s.append("winsome_invalid_requests_total ").append(metrics.getInvalidRequests()).append("\n");
+
+        s.append("# HELP winsome_request_latency_seconds Durata dell'elaborazione delle richieste\n");
+        s.append("# TYPE winsome_request_latency_seconds summary\n");
+        for ( Operation operation : Operation.values() ){
+            LatencyHistogram.Snapshot latency = metrics.getLatencies(operation);
+            if ( latency.getCount() == 0 )
+                continue;
+            for ( double quantile : QUANTILES )
+                s.append("winsome_request_latency_seconds{operation=\"").append(operation).append("\",quantile=\"").append(quantile)
+                 .append("\"} ").append(latency.getPercentile(quantile * 100) / 1e9).append("\n");
+            s.append("winsome_request_latency_seconds_count{operation=\"").append(operation).append("\"} ").append(latency.getCount()).append("\n");
+        }
+
+        s.append("# HELP winsome_in_flight_requests Richieste in elaborazione\n");
+        s.append("# TYPE winsome_in_flight_requests gauge\n");
+        s.append("winsome_in_flight_requests ").append(admission.getInFlight()).append("\n");
+        s.append("# HELP winsome_connections Connessioni client aperte\n");
+        s.append("# TYPE winsome_connections gauge\n");
+        s.append("winsome_connections ").append(getConnections()).append("\n");
+        s.append("# HELP winsome_logged_users Utenti che hanno effettuato il login\n");
+        s.append("# TYPE winsome_logged_users gauge\n");
+        s.append("winsome_logged_users ").append(getLoggedUsers()).append("\n");
+
+        s.append("# HELP jvm_gc_collections_total Raccolte del garbage collector\n");
+        s.append("# TYPE jvm_gc_collections_total counter\n");
+        for ( GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans() )
+            s.append("jvm_gc_collections_total{gc=\"").append(gc.getName()).append("\"} ").append(gc.getCollectionCount()).append("\n");
+        s.append("# HELP jvm_gc_collection_seconds_total Tempo speso dal garbage collector\n");
+        s.append("# TYPE jvm_gc_collection_seconds_total counter\n");
+        for ( GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans() )
+            s.append("jvm_gc_collection_seconds_total{gc=\"").append(gc.getName()).append("\"} ").append(gc.getCollectionTime() / 1000.0).append("\n");
+
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        s.append("# HELP jvm_memory_heap_used_bytes Memoria heap utilizzata\n");
+        s.append("# TYPE jvm_memory_heap_used_bytes gauge\n");
+        s.append("jvm_memory_heap_used_bytes ").append(heap.getUsed()).append("\n");
+        s.append("# HELP jvm_buffer_pool_used_bytes Memoria dei buffer diretti e mappati\n");
+        s.append("# TYPE jvm_buffer_pool_used_bytes gauge\n");
+        for ( BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class) )
+            s.append("jvm_buffer_pool_used_bytes{pool=\"").append(pool.getName()).append("\"} ").append(pool.getMemoryUsed()).append("\n");
+
+        return s.toString();
+    }
+}
@@ -0,0 +1,79 @@
+package server;
+
+/**
+ * Sessione di un client, legata alla sua connessione: dopo il login conserva il riferimento all'utente,
+ * così le richieste successive non devono indicare l'username né cercarlo e validarlo nel database.
+ * Viene letta dai thread che elaborano le richieste della connessione (una alla volta) e chiusa dal worker
+ * quando la connessione termina, per questo i metodi che ne modificano lo stato sono sincronizzati
+ */
+public class Session {
+    private volatile WinsomeUser user; // Utente che ha effettuato il login con questa sessione, null se nessuno
+    private boolean closed; // true se la connessione della sessione è stata chiusa
+    private volatile boolean push; // true se il client riceve le notifiche sulla connessione invece che con RMI
+
+    public Session(){
+        user = null;
+        closed = false;
+        push = false;
+    }
+
+    /**
+     * Restituisce l'utente della sessione
+     *
+     * @return L'utente che ha effettuato il login, null se nessuno
+     */
+    public WinsomeUser getUser(){
+        return user;
+    }
+
+    public boolean isLogged(){
+        return user != null;
+    }
+
+    public boolean isPush(){
+        return push;
+    }
+
+    /**
+     * Indica se il client ha chiesto con HELLO di ricevere le notifiche sulla connessione
+     *
+     * @param push true se le notifiche vengono inviate sulla connessione
+     */
+    public void setPush(boolean push){
+        this.push = push;
+    }
+
+    /**
+     * Lega alla sessione l'utente che ha appena effettuato il login
+     *
+     * @param user Utente che ha effettuato il login
+     * @return true se l'utente è stato legato, false se la connessione è stata chiusa nel frattempo
+     *         e il chiamante deve quindi effettuarne il logout
+     */
+    public synchronized boolean bind(WinsomeUser user){
+        if ( closed )
+            return false;
+
+        this.user = user;
+        return true;
+    }
+
+    /**
+     * Scioglie il legame con l'utente dopo il logout
+     */
+    public synchronized void unbind(){
+        user = null;
+    }
+
+    /**
+     * Chiude la sessione insieme alla sua connessione, nessun utente potrà più esservi legato
+     *
+     * @return L'utente che era legato alla sessione, di cui effettuare il logout, null se nessuno
+     */
+    public synchronized WinsomeUser close(){
+        closed = true;
+        WinsomeUser previous = user;
+        user = null;
+        return previous;
+    }
+}
@@ -0,0 +1,93 @@
+package server;
+
+import java.util.ArrayDeque;
+import java.util.function.Consumer;
+
+/**
+ * Ruota temporizzata (hashed timing wheel): gli elementi vengono inseriti nella posizione
+ * corrispondente alla loro scadenza, modulo il numero di posizioni della ruota.
+ * Inserimento e scadenza costano O(1) per elemento, indipendentemente da quanti elementi sono presenti.
+ * Una scadenza che cade più giri avanti resta nella sua posizione finché il giro giusto non arriva.
+ * Come il selettore, viene usata soltanto dal thread del worker a cui appartiene e non è sincronizzata
+ */
+public class TimerWheel<T> {
+    private final long tickMillis; // Durata in millisecondi di una posizione della ruota
+    private final ArrayDeque<Timeout<T>>[] slots; // Elementi in attesa, indicizzati per scadenza modulo il numero di posizioni
+    private long currentTick; // Prossima posizione (assoluta) da esaminare
+
+    /**
+     * Elemento inserito nella ruota con la sua scadenza
+     */
+    private static class Timeout<T> {
+        private final T item; // Elemento da restituire alla scadenza
+        private final long deadline; // Istante di scadenza in millisecondi
+
+        private Timeout(T item, long deadline){
+            this.item = item;
+            this.deadline = deadline;
+        }
+    }
+
+    /**
+     * Crea una ruota vuota
+     *
+     * @param slots Numero di posizioni della ruota
+     * @param tickMillis Durata di ogni posizione, cioè la precisione delle scadenze
+     * @param now Istante corrente in millisecondi
+     * @throws IllegalArgumentException Se slots o tickMillis non sono positivi
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public TimerWheel(int slots, long tickMillis, long now)
+    throws IllegalArgumentException {
+        if ( slots <= 0 || tickMillis <= 0 )
+            throw new IllegalArgumentException();
+
+        this.tickMillis = tickMillis;
+        this.slots = ( ArrayDeque<Timeout<T>>[] ) new ArrayDeque[slots];
+        for ( int i = 0; i < slots; i++ )
+            this.slots[i] = new ArrayDeque<Timeout<T>>();
+        this.currentTick = now / tickMillis;
+    }
+
+    public long getTickMillis(){
+        return tickMillis;
+    }
+
+    /**
+     * Inserisce un elemento che scadrà all'istante indicato
+     *
+     * @param item Elemento da inserire
+     * @param deadline Istante di scadenza in millisecondi
+     */
+    public void schedule(T item, long deadline){
+        // Una scadenza già passata viene esaminata alla prossima posizione
+        long tick = Math.max(deadline / tickMillis, currentTick);
+        slots[( int ) ( tick % slots.length )].add(new Timeout<T>(item, deadline));
+    }
+
+    /**
+     * Fa avanzare la ruota fino all'istante corrente, passando all'azione gli elementi scaduti
+     *
+     * @param now Istante corrente in millisecondi
+     * @param expired Azione da eseguire su ogni elemento scaduto, può inserire nuovamente l'elemento
+     */
+    public void advance(long now, Consumer<T> expired){
+        // Esamino soltanto le posizioni interamente trascorse
+        long target = now / tickMillis;
+        // Se è trascorso più di un giro basta esaminare ogni posizione una volta sola
+        long ticks = Math.min(target - currentTick, slots.length);
+        for ( long i = 0; i < ticks; i++ ){
+            ArrayDeque<Timeout<T>> slot = slots[( int ) ( ( currentTick + i ) % slots.length )];
+            // Gli elementi reinseriti durante l'esame finiscono in fondo e non vengono riesaminati
+            for ( int size = slot.size(); size > 0; size-- ){
+                Timeout<T> timeout = slot.poll();
+                if ( timeout.deadline <= now )
+                    expired.accept(timeout.item);
+                else
+                    // Scade in un giro successivo
+                    slot.add(timeout);
+            }
+        }
+        currentTick = Math.max(currentTick, target);
+    }
+}
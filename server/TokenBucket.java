@@ -0,0 +1,74 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Secchio di gettoni senza lock: i gettoni si ricaricano a velocità costante fino alla capacità
+ * e ogni richiesta ne consuma un numero che dipende dall'operazione.
+ * Lo stato è un solo AtomicLong, l'istante in cui il secchio tornerà pieno (theoretical arrival time):
+ * i gettoni disponibili si ricavano dalla distanza tra quell'istante e quello corrente,
+ * così consumare gettoni è un compareAndSet e non serve aggiornare periodicamente il secchio
+ */
+public class TokenBucket {
+    private final long nanosPerToken; // Nanosecondi necessari per ricaricare un gettone
+    private final long capacityNanos; // Capacità del secchio espressa come tempo di ricarica da vuoto a pieno
+    private final AtomicLong fullAt; // Istante in nanosecondi in cui il secchio tornerà pieno
+
+    /**
+     * Crea un secchio pieno
+     * 
+     * @param capacity Numero massimo di gettoni
+     * @param tokensPerSecond Gettoni ricaricati ogni secondo
+     * @param now Istante corrente in nanosecondi
+     * @throws IllegalArgumentException Se capacity o tokensPerSecond non sono positivi
+     */
+    public TokenBucket(int capacity, double tokensPerSecond, long now)
+    throws IllegalArgumentException {
+        if ( capacity <= 0 || tokensPerSecond <= 0 )
+            throw new IllegalArgumentException();
+
+        this.nanosPerToken = Math.max(1, ( long ) ( 1_000_000_000L / tokensPerSecond ));
+        this.capacityNanos = capacity * nanosPerToken;
+        this.fullAt = new AtomicLong(now);
+    }
+
+    /**
+     * Prova a consumare dei gettoni
+     * 
+     * @param tokens Gettoni da consumare
+     * @param now Istante corrente in nanosecondi
+     * @return true se i gettoni erano disponibili e sono stati consumati, false altrimenti
+     */
+    public boolean tryConsume(int tokens, long now){
+        long cost = tokens * nanosPerToken;
+        while ( true ){
+            long current = fullAt.get();
+            // Un secchio già pieno non accumula altri gettoni
+            long next = Math.max(current, now) + cost;
+            if ( next - now > capacityNanos )
+                return false;
+            if ( fullAt.compareAndSet(current, next) )
+                return true;
+        }
+    }
+
+    /**
+     * Restituisce dei gettoni consumati da una richiesta che è stata poi rifiutata per un altro limite.
+     * Il secchio non supera comunque la capacità: un istante di riempimento nel passato equivale a un secchio pieno
+     * 
+     * @param tokens Gettoni da restituire, consumati in precedenza con tryConsume
+     */
+    public void refund(int tokens){
+        fullAt.addAndGet(-tokens * nanosPerToken);
+    }
+
+    /**
+     * Indica se il secchio è di nuovo pieno, cioè se non è stato utilizzato di recente e può essere scartato
+     * 
+     * @param now Istante corrente in nanosecondi
+     * @return true se il secchio è pieno
+     */
+    public boolean isFull(long now){
+        return fullAt.get() - now <= 0;
+    }
+}
@@ -1,10 +1,14 @@
 package server;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
@@ -12,6 +16,8 @@ import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import shared.FollowerSync;
+
 /**
  * Classe che rappresenta il database di Winsome,
  * ovvero raccoglie tutti i post e gli utenti
@@ -20,7 +26,7 @@ public class WinsomeDB implements Serializable {
     private final boolean DEBUG = false;
 
     private Map<Integer, WinsomePost> posts;
-    private AtomicInteger newPostId; // Non è necessario che sia atomic perché solo il worker crea e cancella post (quindi non si verificano race condition)
+    private AtomicInteger newPostId; // Atomic perché più worker possono creare post contemporaneamente
 
     protected ReadWriteLock lock; // Chiunque può creare un database, ma solo chi è nel package server può utilizzare la lock
     private Map<String, WinsomeUser> users;
@@ -32,7 +38,7 @@ public class WinsomeDB implements Serializable {
      */
     public WinsomeDB(){
         lock = new ReentrantReadWriteLock();
-        posts = new HashMap<Integer, WinsomePost>(); // La concorrenza è gestita con la readwrite lock
+        posts = new ConcurrentHashMap<Integer, WinsomePost>(); // Concurrent perché vi accedono più worker contemporaneamente
         users = new ConcurrentHashMap<String, WinsomeUser>(); // Concurrent perché possono verificarsi race condition con RMI
         tags = new HashMap<String, Set<String>>();
         newPostId = new AtomicInteger(0);
@@ -166,12 +172,22 @@ public class WinsomeDB implements Serializable {
 
         this.users = users;
         for ( WinsomeUser user : this.users.values() ){
+            // Le sessioni non sopravvivono al riavvio del server, quindi nessun utente può essere ancora loggato
+            if ( user.isLogged() ){
+                try{
+                    user.logout();
+                } catch ( WinsomeException e ){
+                    // Non si verifica, l'utente risulta loggato
+                }
+            }
             for ( WinsomePost post : user.getPosts() ){
                 // Aggiorno l'identificativo dei post
                 if ( newPostId.get() < post.getIdPost() )
                     newPostId.set(post.getIdPost());
                 posts.putIfAbsent(post.getIdPost(), post); // Utilizzo putIfAbsent invece che la put per non sovrascrivere, evito modifiche malevole al db
             }
+            // L'indice dei post del blog non viene salvato, lo ricostruisco
+            user.rebuildTimeline();
             for ( String tag : user.getTags() ){
                 tags.putIfAbsent(tag, new HashSet<String>()); // Evito di sovrascrivere se il tag era già presente
                 // Aaggiungo l'utente all'insieme di quelli che hanno indicato quel tag
@@ -189,39 +205,38 @@ public class WinsomeDB implements Serializable {
 
 
     /*
-    Qui ci vanno le funzioni del database che chiamerà il worker
+    Qui ci vanno le funzioni del database che chiamerà il worker.
+    Gli utenti passati a queste funzioni sono quelli legati alla sessione di una connessione,
+    quindi hanno già effettuato il login: non serve cercarli né controllarne lo stato
     */
 
     /**
      * Aggiunge un follower a quelli di un utente
      * 
-     * @param username Utente che inizia a seguire
+     * @param follower Utente che inizia a seguire
      * @param toFollow L'utente da seguire
-     * @return true se l'operazione è andata a buon fine, altrimenti solleva eccezione
+     * @return La versione dei follower di toFollow che contiene la modifica, FollowerSync.UNKNOWN se l'operazione non è andata
+     *         a buon fine (altrimenti solleva eccezione)
      * @throws WinsomeException Se l'operazione non è consentita (specificato nel message)
-     * @throws NullPointerException Se username o toFollow sono null
+     * @throws NullPointerException Se follower o toFollow sono null
      */
-    protected boolean followUser(String username, String toFollow)
+    protected long followUser(WinsomeUser follower, String toFollow)
     throws WinsomeException, NullPointerException {
-        // username inizia a seguire toFollow
+        // follower inizia a seguire toFollow
 
-        if ( username == null || toFollow == null )
+        if ( follower == null || toFollow == null )
             throw new NullPointerException();
 
-        WinsomeUser follower = users.get(username); // Chi segue
-        if ( follower == null )
-            throw new WinsomeException("L'utente non è iscritto a Winsome");
-
-        if ( !follower.isLogged() )
-            throw new WinsomeException("L'utente non ha effettuato il login");
-
         WinsomeUser followed = users.get(toFollow); // Chi viene seguito
         if ( followed == null )
             throw new WinsomeException("L'utente che si vuole seguire non è iscritto a Winsome");
         
         lock.writeLock().lock();
         try {
-            return followed.addFollower(username) && follower.addFollowing(toFollow);
+            if ( !followed.addFollower(follower.getNickname()) || !follower.addFollowing(toFollow) )
+                return FollowerSync.UNKNOWN;
+            // I follower cambiano solo con il lock in scrittura, la versione è quella della modifica appena fatta
+            return followed.getFollowerVersion();
         } finally {
             lock.writeLock().unlock();
         }
@@ -230,33 +245,29 @@ public class WinsomeDB implements Serializable {
     /**
      * Toglie un follower da quelli di un utente
      * 
-     * @param username Utente che smette di seguire
+     * @param follower Utente che smette di seguire
      * @param toUnfollow L'utente da smettere di seguire
-     * @return true se l'operazione è andata a buon fine, altrimenti solleva eccezione
+     * @return La versione dei follower di toUnfollow che contiene la modifica, FollowerSync.UNKNOWN se l'operazione non è andata
+     *         a buon fine (altrimenti solleva eccezione)
      * @throws WinsomeException Se l'operazione non è consentita (specificato nel message)
-     * @throws NullPointerException Se username o toUnfollow sono null
+     * @throws NullPointerException Se follower o toUnfollow sono null
      */
-    protected boolean unfollowUser(String username, String toUnfollow)
+    protected long unfollowUser(WinsomeUser follower, String toUnfollow)
     throws WinsomeException, NullPointerException {
-        // user smette di seguire toUnfollow
+        // follower smette di seguire toUnfollow
 
-        if ( username == null || toUnfollow == null )
+        if ( follower == null || toUnfollow == null )
             throw new NullPointerException();
 
-        WinsomeUser follower = users.get(username); // Chi segue
-        if ( follower == null )
-            throw new WinsomeException("L'utente non è iscritto a Winsome");
-
-        if ( !follower.isLogged() )
-            throw new WinsomeException("L'utente non ha effettuato il login");
-
         WinsomeUser followed = users.get(toUnfollow); // Chi viene seguito
         if ( followed == null )
             throw new WinsomeException("L'utente che si vuole smettere di seguire non è iscritto a Winsome");
 
         lock.writeLock().lock();
         try{
-            return followed.removeFollower(username) && follower.removeFollowing(toUnfollow);   
+            if ( !followed.removeFollower(follower.getNickname()) || !follower.removeFollowing(toUnfollow) )
+                return FollowerSync.UNKNOWN;
+            return followed.getFollowerVersion();
         } finally {
             lock.writeLock().unlock();
         }
@@ -265,22 +276,14 @@ public class WinsomeDB implements Serializable {
     /**
      * Restituisce gli utenti che hanno almeno un tag in comune con quelli di un utente
      * 
-     * @param username Utente di cui si voglio conoscere gli utenti con almeno un tag in comune
+     * @param user Utente di cui si voglio conoscere gli utenti con almeno un tag in comune
      * @return L'insieme degli utenti con almeno un tag in comune
-     * @throws WinsomeException Se l'operazione non è consentita (specificato nel message)
-     * @throws NullPointerException Se username è null
+     * @throws NullPointerException Se user è null
      */
-    protected Set<String> listUsers(String username)
-    throws WinsomeException, NullPointerException {
-        if ( username == null )
-            throw new NullPointerException();
-
-        WinsomeUser user = users.get(username);
+    protected Set<String> listUsers(WinsomeUser user)
+    throws NullPointerException {
         if ( user == null )
-            throw new WinsomeException("L'utente non è iscritto a Winsome");
-
-        if ( !user.isLogged() )
-            throw new WinsomeException("L'utente non ha effettuato il login");
+            throw new NullPointerException();
 
         Set<String> usersWithTagInCommon = new HashSet<String>();
         Set<String> userTags = user.getTags(); // Se lancia NullPointerExeption la gestisce il worker
@@ -290,29 +293,21 @@ public class WinsomeDB implements Serializable {
             usersWithTagInCommon.addAll(tags.get(tag)); // Se lancia NullPointerException la gestisce il worker
 
         // Tolgo dall'insieme l'utente che ha fatto la richiesta
-        usersWithTagInCommon.remove(username);
+        usersWithTagInCommon.remove(user.getNickname());
         return usersWithTagInCommon;
     }
 
     /**
      * Restituisce gli utenti seguiti da un utente
      * 
-     * @param username Utente di cui si vogliono conoscere gli utenti seguiti
+     * @param user Utente di cui si vogliono conoscere gli utenti seguiti
      * @return L'insieme degli utenti seguiti
-     * @throws WinsomeException Se l'operazione non è consentita (specificato nel message)
-     * @throws NullPointerException Se username è null
+     * @throws NullPointerException Se user è null
      */
-    protected Set<String> listFollowing(String username)
-    throws WinsomeException, NullPointerException {
-        if ( username == null )
-            throw new NullPointerException();
-
-        WinsomeUser user = users.get(username);
+    protected Set<String> listFollowing(WinsomeUser user)
+    throws NullPointerException {
         if ( user == null )
-            throw new WinsomeException("L'utente non è iscritto a Winsome");
-
-        if ( !user.isLogged() )
-            throw new WinsomeException("L'utente non ha effettuato il login");
+            throw new NullPointerException();
         
         return user.getFollowing();
     }
@@ -322,22 +317,31 @@ public class WinsomeDB implements Serializable {
      * 
      * @param username Utente di cui si effettua il login
      * @param password Password in chiaro dell'utente
-     * @return true se l'operazione è andata a buon fine, altrimenti solleva eccezione
+     * @param hasher Pool che verifica l'hash della password
+     * @return L'utente che ha effettuato il login, da legare alla sessione, altrimenti solleva eccezione
      * @throws WinsomeException Se l'operazione non è consentita (specificato nel message)
-     * @throws NullPointerException Se username o password sono null
+     * @throws NullPointerException Se username, password o hasher sono null
      */
-    protected boolean login(String username, String password)
+    protected WinsomeUser login(String username, String password, PasswordHasher hasher)
     throws WinsomeException, NullPointerException {
-        if ( username == null || password == null )
+        if ( username == null || password == null || hasher == null )
             throw new NullPointerException();
 
         WinsomeUser user = users.get(username);
             if ( user == null )
                 throw new WinsomeException("L'utente non è iscritto a Winsome");
 
+        // Evito di calcolare l'hash per un utente che non può comunque effettuare il login
+        if ( user.isLogged() )
+            throw new WinsomeException("L'utente ha già effettuato il login");
+
+        // La verifica della password è lenta, la faccio senza lock per non bloccare il database
+        user.checkPassword(password, hasher);
+
         lock.writeLock().lock();
         try{
-            return user.login(password); // Ritorna true o solleva eccezione
+            user.login(); // Ritorna true o solleva eccezione
+            return user;
         } finally {
             lock.writeLock().unlock();
         }
@@ -346,19 +350,15 @@ public class WinsomeDB implements Serializable {
     /**
      * Effettua il logout di un utente
      * 
-     * @param username L'utente di cui si effettua il logout
+     * @param user L'utente di cui si effettua il logout
      * @return true se l'operazione è andata a buon fine, altrimenti solleva eccezione
      * @throws WinsomeException Se l'operazione non è consentita (specificato nel message)
-     * @throws NullPointerException Se username è null
+     * @throws NullPointerException Se user è null
      */
-    protected boolean logout(String username)
+    protected boolean logout(WinsomeUser user)
     throws WinsomeException, NullPointerException {
-        if ( username == null )
-            return false;
-
-        WinsomeUser user = users.get(username);
         if ( user == null )
-            throw new WinsomeException("L'utente non è iscritto a Winsome");
+            throw new NullPointerException();
 
         if ( !user.isLogged() )
             throw new WinsomeException("L'utente non ha effettuato il login");
@@ -372,34 +372,45 @@ public class WinsomeDB implements Serializable {
     }
     
     /**
-     * Restituisce il blog, ovvero l'insieme dei post pubblicati e rewinnati dall'utente
+     * Restituisce una pagina del blog, ovvero dei post pubblicati e rewinnati dall'utente, dal più recente
      * 
-     * @param username Utente di cui si vuole ottenere il blog
-     * @param checkLogin true se è necessario che l'utente abbia effettuato il login, false altrimenti
-     * @return Il blog dell'utente, null è un valore valido
-     * @throws WinsomeException Se l'operazione non è consentita (specificato nel message)
-     * @throws NullPointerException Se username è null
+     * @param user Utente di cui si vuole ottenere il blog
+     * @param cursor Id dell'ultimo post della pagina precedente, 0 per la prima pagina
+     * @param limit Numero massimo di post della pagina
+     * @return I post della pagina, vuota se non ce ne sono altri
+     * @throws IllegalArgumentException Se cursor è negativo o limit non è positivo
+     * @throws NullPointerException Se user è null
      */
-    protected Set<WinsomePost> viewBlog(String username, boolean checkLogin)
-    throws WinsomeException, NullPointerException {
-        if ( username == null )
-            throw new NullPointerException();
-
-        WinsomeUser user = users.get(username);
+    protected List<WinsomePost> viewBlog(WinsomeUser user, int cursor, int limit)
+    throws IllegalArgumentException, NullPointerException {
         if ( user == null )
-            throw new WinsomeException("L'utente non è iscritto a Winsome");
-
-        if ( checkLogin )
-            if ( !user.isLogged() )
-                throw new WinsomeException("L'utente non ha effettuato il login");
+            throw new NullPointerException();
+        if ( cursor < 0 || limit <= 0 )
+            throw new IllegalArgumentException();
 
-        Set<WinsomePost> blog = new HashSet<>(user.getPosts());
-        Set<Integer> rewin = user.getRewin();
+        List<WinsomePost> page = new ArrayList<WinsomePost>();
+        // Scorro l'indice ordinato a partire dal post successivo al cursore, senza materializzare l'intero blog
+        for ( Integer idPost : after(user, cursor) ){
+            WinsomePost post = posts.get(idPost);
+            if ( post != null )
+                page.add(post);
+            if ( page.size() == limit )
+                break;
+        }
 
-        for ( Integer idPost : rewin )
-            blog.add(((posts.get(idPost))));
+        return page;
+    }
 
-        return blog;
+    /**
+     * Restituisce gli id dei post del blog di un utente più vecchi di quello indicato dal cursore
+     * 
+     * @param user Utente di cui si vuole scorrere il blog
+     * @param cursor Id dell'ultimo post già restituito, 0 per partire dal più recente
+     * @return Gli id dei post in ordine decrescente
+     */
+    private Set<Integer> after(WinsomeUser user, int cursor){
+        // L'indice è in ordine decrescente, quindi i post più vecchi seguono il cursore
+        return cursor == 0 ? user.getTimeline() : user.getTimeline().tailSet(cursor, false);
     }
 
     /**
@@ -412,23 +423,16 @@ public class WinsomeDB implements Serializable {
      * @throws WinsomeException Se l'operazione non è consentita (specificato nel message)
      * @throws NullPointerException Se author, title o content sono null
      */
-    protected boolean createPost(String author, String title, String content)
+    protected boolean createPost(WinsomeUser author, String title, String content)
     throws WinsomeException, NullPointerException {
         if ( author == null || title == null || content == null )
             throw new NullPointerException();
 
-        WinsomeUser user = users.get(author);
-        if ( user == null )
-            throw new WinsomeException("L'utente non è iscritto a Winsome");
-
-        if ( !user.isLogged() )
-            throw new WinsomeException("L'utente non ha effettuato il login");
-
-        WinsomePost post = new WinsomePost(newPostId.incrementAndGet(), title, author, content); // solleva IllegalArgument e NullPointer
+        WinsomePost post = new WinsomePost(newPostId.incrementAndGet(), title, author.getNickname(), content); // solleva IllegalArgument e NullPointer
         
         // Qui inizia la race condition con il reward calculator
         lock.writeLock().lock();
-        user.addPost(post);
+        author.addPost(post);
         lock.writeLock().unlock();
         // Qui finisce la sincronizzazione
         posts.put(post.getIdPost(), post);
@@ -437,34 +441,99 @@ public class WinsomeDB implements Serializable {
     }
 
     /**
-     * Restituisce il feed di un utente, ovvero i blog degli utenti seguiti
+     * Restituisce una pagina del feed di un utente, ovvero dei blog degli utenti seguiti, dal post più recente.
+     * I blog sono già ordinati, quindi li fondo scorrendoli insieme e mi fermo appena la pagina è piena:
+     * il costo dipende dalla dimensione della pagina e dal numero di utenti seguiti, non dalla dimensione dei blog
      * 
-     * @param username Utente di cui si vuole ottenere il feed
-     * @param checkLogin true se è necessario che l'utente abbia effettuato il login, false altrimenti
-     * @return Il feed dell'utente, null è un valore valido
-     * @throws WinsomeException Se l'operazione non è consentita (specificato nel message)
-     * @throws NullPointerException Se username è null
+     * @param user Utente di cui si vuole ottenere il feed
+     * @param cursor Id dell'ultimo post della pagina precedente, 0 per la prima pagina
+     * @param limit Numero massimo di post della pagina
+     * @return I post della pagina, vuota se non ce ne sono altri
+     * @throws IllegalArgumentException Se cursor è negativo o limit non è positivo
+     * @throws NullPointerException Se user è null
      */
-    protected Set<WinsomePost> showFeed(String username, boolean checkLogin)
-    throws WinsomeException, NullPointerException {
-        if ( username == null )
+    protected List<WinsomePost> showFeed(WinsomeUser user, int cursor, int limit)
+    throws IllegalArgumentException, NullPointerException {
+        if ( user == null )
             throw new NullPointerException();
+        if ( cursor < 0 || limit <= 0 )
+            throw new IllegalArgumentException();
 
-        WinsomeUser user = users.get(username);
-        if ( user == null )
-            throw new WinsomeException("L'utente non è iscritto a Winsome");
+        // Un cursore per ogni blog non vuoto, ordinati per l'id del prossimo post (il più recente in cima)
+        PriorityQueue<FeedCursor> heads = new PriorityQueue<FeedCursor>();
+        for ( String followed : user.getFollowing() ){
+            WinsomeUser followedUser = users.get(followed);
+            if ( followedUser == null )
+                continue;
+            Iterator<Integer> iterator = after(followedUser, cursor).iterator();
+            if ( iterator.hasNext() )
+                heads.add(new FeedCursor(iterator));
+        }
+
+        List<WinsomePost> page = new ArrayList<WinsomePost>();
+        int last = -1; // Id dell'ultimo post aggiunto, lo stesso post può essere in più blog grazie ai rewin
+        while ( page.size() < limit && !heads.isEmpty() ){
+            FeedCursor head = heads.poll();
+            int idPost = head.current;
+            if ( idPost != last ){
+                WinsomePost post = posts.get(idPost);
+                if ( post != null ){
+                    page.add(post);
+                    last = idPost;
+                }
+            }
+            if ( head.advance() )
+                heads.add(head);
+        }
+
+        return page;
+    }
 
-        if ( checkLogin )
-            if ( !user.isLogged() )
-                throw new WinsomeException("L'utente non ha effettuato il login");
+    /**
+     * Posizione nel blog di un utente seguito durante la fusione dei blog del feed
+     */
+    private static class FeedCursor implements Comparable<FeedCursor> {
+        private final Iterator<Integer> iterator; // Post successivi, in ordine decrescente
+        private int current; // Id del prossimo post di questo blog
+
+        private FeedCursor(Iterator<Integer> iterator){
+            this.iterator = iterator;
+            this.current = iterator.next();
+        }
+
+        private boolean advance(){
+            if ( !iterator.hasNext() )
+                return false;
+            current = iterator.next();
+            return true;
+        }
+
+        @Override
+        public int compareTo(FeedCursor other){
+            // Il post più recente ha l'id maggiore e deve uscire per primo
+            return Integer.compare(other.current, current);
+        }
+    }
 
-        Set<WinsomePost> feed = new HashSet<WinsomePost>();
+    /**
+     * Indica se un post è nel feed di un utente, cioè se è stato pubblicato o rewinnato da un utente seguito
+     * 
+     * @param user Utente di cui si controlla il feed
+     * @param post Post da cercare
+     * @return true se il post è nel feed dell'utente
+     */
+    private boolean isInFeed(WinsomeUser user, WinsomePost post){
         Set<String> following = user.getFollowing();
+        if ( following.contains(post.getAuthor()) )
+            return true;
 
-        for ( String followed : following )
-            feed.addAll(viewBlog(followed, false));
+        for ( String followed : following ){
+            WinsomeUser followedUser = users.get(followed);
+            if ( followedUser != null && followedUser.getTimeline().contains(post.getIdPost()) )
+                return true;
+        }
 
-        return feed;
+        return false;
     }
 
     /**
@@ -491,34 +560,27 @@ public class WinsomeDB implements Serializable {
      * Elimina un post da Winsome, quindi lo elimina dal blog dell'autore e rimuove i suoi rewin.
      * Chi richiede l'eliminazione di un post deve esserne l'autore
      * 
-     * @param username Utente che richiede l'eliminazione
+     * @param user Utente che richiede l'eliminazione
      * @param idPost Id del post da eliminare
      * @return true se l'operazione è andata a buon fine, false altrimenti
      * @throws WinsomeException Se l'operazione non è consentita (specificato nel message)
      * @throws IllegalArgumentException Se idPost ha un valore negativo
-     * @throws NullPointerException Se username è null
+     * @throws NullPointerException Se user è null
      */
-    protected boolean deletePost(String username, int idPost)
+    protected boolean deletePost(WinsomeUser user, int idPost)
     throws WinsomeException, IllegalArgumentException, NullPointerException {
         if ( idPost < 0 )
             throw new IllegalArgumentException();
 
-        if ( username == null )
-            throw new NullPointerException();
-
-        WinsomeUser user = users.get(username);
         if ( user == null )
-            throw new WinsomeException("L'utente non è iscritto a Winsome");
-
-        if ( !user.isLogged() )
-            throw new WinsomeException("L'utente non ha effettuato il login");
+            throw new NullPointerException();
 
         WinsomePost post = posts.get(idPost);
         if ( post == null )
             throw new WinsomeException("Il post non è presente in Winsome");
 
         // Se l'utente che ha richiesto la delete non è l'autore del post
-        if ( !post.getAuthor().equals(username) )
+        if ( !post.getAuthor().equals(user.getNickname()) )
             throw new WinsomeException("L'utente non è l'autore del post");
 
         lock.writeLock().lock();
@@ -540,37 +602,37 @@ public class WinsomeDB implements Serializable {
      * Effettua il rewin di un post per un utente.
      * Si può effettuare il rewin di un post solo se è nel proprio feed
      * 
-     * @param username Utente che richiede di effettuare i login
+     * @param user Utente che richiede di effettuare il rewin
      * @param idPost Id del post da rewinnare
      * @return true se l'operazione è andata a buon fine, altrimenti solleva eccezione
      * @throws WinsomeException Se l'operazione non è consentita (specificato nel message)
      * @throws IllegalArgumentException Se idPost ha un valore negativo
-     * @throws NullPointerException Se username è null
+     * @throws NullPointerException Se user è null
      */
-    protected boolean rewinPost(String username, int idPost)
+    protected boolean rewinPost(WinsomeUser user, int idPost)
     throws WinsomeException, IllegalArgumentException, NullPointerException {        
         if ( idPost < 0 )
             throw new IllegalArgumentException();
 
-        if ( username == null )
-            throw new NullPointerException();
-
-        WinsomeUser user = users.get(username);
         if ( user == null )
-            throw new WinsomeException("L'utente non è iscritto a Winsome");
-
-        if ( !user.isLogged() )
-            throw new WinsomeException("L'utente non ha effettuato il login");
+            throw new NullPointerException();
 
         WinsomePost post = posts.get(idPost);
         if ( post == null )
             throw new WinsomeException("Il post non è presente in Winsome");
         
         // Posso fare il rewind di un post solo se è nel mio feed
-        if ( showFeed(username, false).contains(post) )
-            if ( post.rewinPost(username) ) // Restituisce true o solleva un'eccezione
-                if ( user.addRewin(idPost) ) // Restituisce true o solleva un'eccezione
-                    return true;
+        if ( isInFeed(user, post) ){
+            // Le richieste sono elaborate in parallelo, i rewinner del post non sono una struttura concorrente
+            lock.writeLock().lock();
+            try{
+                if ( post.rewinPost(user.getNickname()) ) // Restituisce true o solleva un'eccezione
+                    if ( user.addRewin(idPost) ) // Restituisce true o solleva un'eccezione
+                        return true;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
         
         throw new WinsomeException("Non è possibile effettuare il rewin di un post che non è nel proprio feed");
     }
@@ -580,37 +642,37 @@ public class WinsomeDB implements Serializable {
      * Non possono essere aggiunti più voti a un post dallo stesso utente.
      * Un utente può votare un post solo se è presente nel proprio feed
      * 
-     * @param username Utente che richiede di votare
+     * @param user Utente che richiede di votare
      * @param idPost Id del post che si vuole votare
      * @param vote Valore del voto, 1 per un voto positivo, -1 per uno negativo
      * @return true se l'operazione è andata a buon fine, altrimenti solleva eccezione
      * @throws WinsomeException Se l'operazione non è consentita (specificato nel message)
      * @throws IllegalArgumentException Se idPost ha un valore negativo
-     * @throws NullPointerException Se username è null
+     * @throws NullPointerException Se user è null
      */
-    protected boolean ratePost(String username, int idPost, int vote)
+    protected boolean ratePost(WinsomeUser user, int idPost, int vote)
     throws WinsomeException, IllegalArgumentException, NullPointerException {
         if ( idPost < 0 )
             throw new IllegalArgumentException();
 
-        if ( username == null )
-            throw new NullPointerException();
-
-        WinsomeUser user = users.get(username);
         if ( user == null )
-            throw new WinsomeException("L'utente non è iscritto a Winsome");
-
-        if ( !user.isLogged() )
-            throw new WinsomeException("L'utente non ha effettuato il login");
+            throw new NullPointerException();
 
         WinsomePost post = posts.get(idPost);
         if ( post == null )
             throw new WinsomeException("Il post non è presente in Winsome");
         
         // Posso votare un post solo se è nel mio feed
-        if ( showFeed(username, false).contains(post) )
-            if ( post.addRate(username, vote) )
-                return true;
+        if ( isInFeed(user, post) ){
+            // Le richieste sono elaborate in parallelo, i voti del post non sono una struttura concorrente
+            lock.writeLock().lock();
+            try{
+                if ( post.addRate(user.getNickname(), vote) )
+                    return true;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
 
         throw new WinsomeException("Non è possibile votare un post che non è nel proprio feed");
     }
@@ -618,38 +680,31 @@ public class WinsomeDB implements Serializable {
     /**
      * Aggiunge un commento a un post da parte di un utente
      * 
-     * @param username L'utente che commenta
+     * @param user L'utente che commenta
      * @param idPost Id del post da commentare
      * @param comment Contenuto del commento
      * @return true se l'operazione è andata a buon fine, altrimenti solleva eccezione
      * @throws WinsomeException Se l'operazione non è consentita (specificato nel message)
      * @throws IllegalArgumentException Se idPost ha un valore negativo
-     * @throws NullPointerException Se username o comment sono null
+     * @throws NullPointerException Se user o comment sono null
      */
-    protected boolean addComment(String username, int idPost, String comment)
+    protected boolean addComment(WinsomeUser user, int idPost, String comment)
     throws WinsomeException, IllegalArgumentException, NullPointerException {
         if ( idPost < 0 )
             throw new IllegalArgumentException();
 
-        if ( username == null || comment == null )
+        if ( user == null || comment == null )
             throw new NullPointerException();
 
-        WinsomeUser user = users.get(username);
-        if ( user == null )
-            throw new WinsomeException("L'utente non è iscritto a Winsome");
-
-        if ( !user.isLogged() )
-            throw new WinsomeException("L'utente non ha effettuato il login");
-
         WinsomePost post = posts.get(idPost);
         if ( post == null )
             throw new WinsomeException("Il post non è presente in Winsome");
         
         // Posso commentare un post solo se è nel mio feed
-        if ( showFeed(username, false).contains(post) ){
+        if ( isInFeed(user, post) ){
             lock.writeLock().lock();
             try{
-                if ( post.addComment(username, comment) ) // Restituisce true o solleva eccezione
+                if ( post.addComment(user.getNickname(), comment) ) // Restituisce true o solleva eccezione
                     return true;
             } finally {
                 lock.writeLock().unlock();
@@ -662,22 +717,14 @@ public class WinsomeDB implements Serializable {
     /**
      * Restuisce lo storico del portafoglio di un utente
      * 
-     * @param username Utente di cui si richiede lo storico
+     * @param user Utente di cui si richiede lo storico
      * @return Lo storico del portafolgio
-     * @throws WinsomeException Se l'operazione non è consentita (specificato nel message)
-     * @throws NullPointerException Se username è null
+     * @throws NullPointerException Se user è null
      */
-    protected Queue<WinsomeWallet> getWallet(String username)
-    throws WinsomeException, NullPointerException {
-        if ( username == null )
-            throw new NullPointerException();
-
-        WinsomeUser user = users.get(username);
+    protected Queue<WinsomeWallet> getWallet(WinsomeUser user)
+    throws NullPointerException {
         if ( user == null )
-            throw new WinsomeException("L'utente non è iscritto a Winsome");
-
-        if ( !user.isLogged() )
-            throw new WinsomeException("L'utente non ha effettuato il login");
+            throw new NullPointerException();
 
         return user.getReward(); // Ok, è una concurrent collection
 
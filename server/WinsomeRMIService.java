@@ -2,18 +2,23 @@ package server;
 
 import java.rmi.RemoteException;
 import java.rmi.server.RemoteObject;
-import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import shared.*;
 
 public class WinsomeRMIService extends RemoteObject implements RMIServiceInterface {
-    private Set<ClientNotifyInterface> clients;
+    private Map<String, ClientNotifyInterface> clients; // Stub registrati per le callback, indicizzati per username
+    private Map<String, Long> snapshots; // Versione dei follower inviata all'ultima registrazione, indicizzata per username
     private WinsomeDB db;
+    private PasswordHasher hasher; // Pool che calcola l'hash delle password dei nuovi utenti
     
-    public WinsomeRMIService(WinsomeDB db){
-        clients = new HashSet<ClientNotifyInterface>();
+    public WinsomeRMIService(WinsomeDB db, PasswordHasher hasher){
+        clients = new ConcurrentHashMap<String, ClientNotifyInterface>();
+        snapshots = new ConcurrentHashMap<String, Long>();
         this.db = db;
+        this.hasher = hasher;
     }
 
     @Override
@@ -22,11 +27,11 @@ public class WinsomeRMIService extends RemoteObject implements RMIServiceInterfa
         
             for ( String tag : tags )
                 tag.toLowerCase();
-            WinsomeUser newUser = new WinsomeUser(username, password, tags);
             try{
+                WinsomeUser newUser = new WinsomeUser(username, password, tags, hasher);
                 db.addUser(newUser);
             } catch ( WinsomeException e ){
-                // Nickname già in uso
+                // Nickname già in uso o pool che calcola gli hash saturo
                 return e.getMessage();
             }       
 
@@ -34,38 +39,106 @@ public class WinsomeRMIService extends RemoteObject implements RMIServiceInterfa
     }
 
     @Override
-    public synchronized Set<String> registerForCallback(ClientNotifyInterface user)
+    public Set<String> registerForCallback(ClientNotifyInterface user)
     throws RemoteException {
-        clients.add(user);
-
-        try{
-            // Non è sezione critica perché getFollower è synchronized e al client restituisce una copia
-            Set<String> followers = db.getUsers().get(user.getUser()).getFollower();
-            return followers;
-        } catch ( Exception e ){
-            e.printStackTrace();
+        // L'username viene chiesto allo stub una sola volta, al momento della registrazione
+        String username = user.getUser();
+        WinsomeUser registered = username != null ? db.getUsers().get(username) : null;
+        if ( registered == null )
             return null;
+
+        // Un nuovo login dello stesso utente sostituisce lo stub precedente
+        clients.put(username, user);
+        return sync(username, registered, 0, FollowerSync.UNKNOWN).apply(null);
+    }
+
+    @Override
+    public FollowerSync registerForCallback(ClientNotifyInterface user, long epoch, long version)
+    throws RemoteException {
+        String username = user.getUser();
+        WinsomeUser registered = username != null ? db.getUsers().get(username) : null;
+        if ( registered == null )
+            return null;
+
+        // Registro lo stub prima di leggere i follower: una modifica successiva arriva anche con la callback
+        clients.put(username, user);
+        return sync(username, registered, epoch, version);
+    }
+
+    /**
+     * Legge i follower da inviare al client che si registra e ne ricorda la versione.
+     * Mentre la lettura è in corso la versione è la massima possibile: il CallbackDispatcher non annulla
+     * tra loro notifiche che potrebbero essere già comprese nei follower inviati
+     * 
+     * @param username Utente che si registra
+     * @param registered Stato dell'utente
+     * @param epoch Epoca in cui il client ha ricevuto i follower
+     * @param version Versione dei follower nota al client, FollowerSync.UNKNOWN se non li conosce
+     * @return I follower da inviare al client
+     */
+    private FollowerSync sync(String username, WinsomeUser registered, long epoch, long version){
+        // Due registrazioni dello stesso utente non si sovrappongono, altrimenti la prima a terminare
+        // lascerebbe la sua versione mentre la seconda sta ancora leggendo i follower
+        synchronized ( registered ){
+            snapshots.put(username, Long.MAX_VALUE);
+            FollowerSync sync = registered.syncFollower(epoch, version);
+            snapshots.put(username, sync.getVersion());
+            return sync;
         }
     }
 
     @Override
-    public synchronized boolean unregisterForCallback(ClientNotifyInterface user)
+    public boolean unregisterForCallback(ClientNotifyInterface user)
     throws RemoteException {
+        String username = user.getUser();
+        if ( username == null )
+            return false;
+
+        // Rimuovo lo stub solo se non è già stato sostituito da un login successivo
+        return clients.remove(username, user);
+    }
+
+    /**
+     * Restituisce lo stub con cui notificare un utente
+     * 
+     * @param username Utente da notificare
+     * @return Lo stub registrato dall'utente, null se non è registrato
+     */
+    protected ClientNotifyInterface getCallback(String username){
+        return clients.get(username);
+    }
+
+    /**
+     * Restituisce la versione dei follower inviata al client all'ultima registrazione alle callback
+     * 
+     * @param username Utente registrato
+     * @return La versione inviata, Long.MAX_VALUE se la registrazione è in corso,
+     *         FollowerSync.UNKNOWN se l'utente non si è mai registrato
+     */
+    protected long getSnapshotVersion(String username){
+        return snapshots.getOrDefault(username, FollowerSync.UNKNOWN);
+    }
 
-        return clients.remove(user);
+    /**
+     * Rimuove lo stub di un client che non è più raggiungibile
+     * 
+     * @param username Utente che aveva registrato lo stub
+     * @param stub Stub da rimuovere
+     * @return true se lo stub è stato rimosso, false se era già stato sostituito o rimosso
+     */
+    protected boolean removeCallback(String username, ClientNotifyInterface stub){
+        return clients.remove(username, stub);
     }
 
     // La doCallback la chiama il server, che è in multiplexing, quindi non è una sezione critica
     public boolean doCallback(String user, String notify)
     throws RemoteException {
-        // Cerco lo stub dell'utente che dovrà ricevere la notifica
-        for ( ClientNotifyInterface stub : clients )
-            // Ok equals perché estendo RemoteObject
-            if ( stub.getUser().equals(user) ){
-                
-                stub.notify(notify);
-                return true;
-            }
+        // Cerco lo stub dell'utente che dovrà ricevere la notifica, senza interrogare gli altri client
+        ClientNotifyInterface stub = clients.get(user);
+        if ( stub != null ){
+            stub.notify(notify);
+            return true;
+        }
         
         /*
         se user non è connesso la notifica non verrà inviata perché non
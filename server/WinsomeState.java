@@ -18,13 +18,13 @@ public class WinsomeState extends Thread {
     private WinsomeDB db; // Puntatore al database di Winsome
     private File file; // File dove recuperare e salvare lo stato di Winsome
     private String filename; // Nome del file dove recuperare e salvare lo stato di Winsome
-    private long period; // Periodo ogni quanto effettuare il salvataggio dello stato di Winsome
+    private PeriodicTrigger trigger; // Attesa del prossimo salvataggio, anticipabile dalla console del server
     private volatile boolean toStop = false; // Variabile per la terminazione del thread
 
     public WinsomeState(String filename, WinsomeDB db, long period)
     throws IOException {
         this.db = db;
-        this.period = period;
+        this.trigger = new PeriodicTrigger(period);
         this.filename = filename;
 
         // Apre il file JSON dove è salvato lo stato del server
@@ -39,11 +39,18 @@ public class WinsomeState extends Thread {
         this.interrupt();
     }
 
+    /**
+     * Richiede un salvataggio immediato dello stato, effettuato dal thread come quelli periodici
+     */
+    public void saveNow(){
+        trigger.trigger();
+    }
+
     public void run(){
         try{
             while ( !toStop ){
-                // Finché il thread non viene interrotto, periodicamente salva lo stato di Winsome
-                Thread.sleep(period);
+                // Finché il thread non viene interrotto, periodicamente (o su richiesta) salva lo stato di Winsome
+                trigger.await();
 
                 // Salvo lo stato attuale del Database su un nuovo file
                 System.out.println("BACKUP: Autosalvataggio in corso...");
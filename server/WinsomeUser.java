@@ -1,21 +1,33 @@
 package server;
 
 import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.Deque;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableSet;
 import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ThreadLocalRandom;
 
-import server.bcrypt.src.BCrypt;
+import shared.ClientNotifyInterface;
+import shared.FollowerSync;
 
 /**
  * Classe che rappresenta un utente all'interno di Winsome
 */
 public class WinsomeUser implements Serializable {
+
+    private static final int FOLLOWER_LOG_SIZE = 1024; // Numero di modifiche ai follower conservate per l'allineamento incrementale dei client
         
     private String nickname; // Nome univoco dell'utente all'interno di Winsome
-    private String psw; // Password dell'utente per effettuare il login
+    private volatile String psw; // Hash della password dell'utente per effettuare il login, può essere ricalcolato con un nuovo costo
     private Set<String> follower; // Insieme dei follower dell'utente
     private Set<String> following; // Insieme degli utenti seguiti dall'utente
     private boolean loggedIn; // Flag che indica se l'utente è attualmente loggato
@@ -23,6 +35,10 @@ public class WinsomeUser implements Serializable {
     private Set<Integer> postRewinned; // Insieme segli id dei post rewinnati dall'utente
     private Set<WinsomePost> blog; // Insieme dei post pubblicati da questo utente
     private Queue<WinsomeWallet> wallet; // Lista con lo storico degli aggiornamenti del portafoglio dell'utente
+    private transient NavigableSet<Integer> timeline; // Id dei post del blog (pubblicati e rewinnati) dal più recente, non viene salvato ma ricostruito
+    private transient long followerEpoch; // Epoca in cui è valida la versione dei follower, cambia a ogni avvio del server
+    private transient long followerVersion; // Versione dei follower, incrementata a ogni modifica
+    private transient Deque<String> followerLog; // Ultime modifiche ai follower nella forma FOLLOW/UNFOLLOW;NomeFollower;, la più recente in coda
 
     /**
      * Crea un nuovo utente Winsome con associata la password hashata e la lista dei tag (NON modificabile)
@@ -30,20 +46,21 @@ public class WinsomeUser implements Serializable {
      * @param username Nickname univoco dell'utente
      * @param psw Password per il login
      * @param tags Lista di tag (minimo uno, al più cinque)
+     * @param hasher Pool che calcola l'hash della password
      * @throws IndexOutOfBoundsException Se sono indicati più di cinque tag, o meno di uno
-     * @throws NullPointerException Se username o psw sono null
+     * @throws NullPointerException Se username, psw o hasher sono null
+     * @throws WinsomeException Se il pool che calcola gli hash è saturo
      */
-    public WinsomeUser(String username, String psw, Set<String> tags)
-    throws IndexOutOfBoundsException, NullPointerException {
+    public WinsomeUser(String username, String psw, Set<String> tags, PasswordHasher hasher)
+    throws IndexOutOfBoundsException, NullPointerException, WinsomeException {
         if ( tags.size() < 1 || tags.size() > 5 )
             throw new IndexOutOfBoundsException();
 
-        if ( username == null || psw == null )
+        if ( username == null || psw == null || hasher == null )
             throw new NullPointerException();
 
         // Salvataggio della password hashata per non salvarla in chiaro
-        String salt = BCrypt.gensalt();
-        String hashedPsw = BCrypt.hashpw(psw, salt);
+        String hashedPsw = hasher.hash(psw);
 
         // Inizializzo l'utente con i dati passati come parametro
         this.psw = hashedPsw;
@@ -57,6 +74,7 @@ public class WinsomeUser implements Serializable {
         this.wallet = new ConcurrentLinkedQueue<WinsomeWallet>(); // Il portafoglio sarà una struttura concorrente perché vi accedono il worker e il thread per il calcolo del reward in race condition
         this.postRewinned = new HashSet<Integer>();
         this.blog = new HashSet<WinsomePost>();
+        this.timeline = new ConcurrentSkipListSet<Integer>(Collections.reverseOrder());
     }
 
     /**
@@ -88,23 +106,51 @@ public class WinsomeUser implements Serializable {
     }
 
     /**
-     * Effettua il login di un utente, se era già loggato solleva eccezione
+     * Verifica la password dell'utente, senza effettuare il login.
+     * Se l'hash salvato ha un costo diverso da quello configurato viene ricalcolato in background
      * 
      * @param psw Password in chiaro dell'utente
-     * @return true se l'operazione ha avuto successo, altrimenti solleva eccezione
-     * @throws WinsomeException Se l'utente era già attualmente loggato o se la password è errata
-     * @throws NullPointerException Se psw è null
+     * @param hasher Pool che verifica l'hash della password
+     * @return true se la password è corretta, altrimenti solleva eccezione
+     * @throws WinsomeException Se la password è errata o se il pool che verifica gli hash è saturo
+     * @throws NullPointerException Se psw o hasher sono null
      */
-    public boolean login(String psw)
+    public boolean checkPassword(String psw, PasswordHasher hasher)
     throws WinsomeException, NullPointerException {
-        if ( loggedIn )
-            throw new WinsomeException("L'utente ha già effettuato il login");
-
-        if ( psw == null )
+        if ( psw == null || hasher == null )
             throw new NullPointerException();
 
-        if ( !BCrypt.checkpw(psw, this.psw) )
+        String hashed = this.psw;
+        if ( !hasher.check(psw, hashed) )
             throw new WinsomeException("Le password è errata");
+
+        if ( hasher.needsRehash(hashed) )
+            hasher.rehash(psw, rehashed -> updatePassword(hashed, rehashed));
+        return true;
+    }
+
+    /**
+     * Sostituisce l'hash della password, se nel frattempo non è già stato sostituito
+     * 
+     * @param hashed Hash da sostituire
+     * @param rehashed Nuovo hash della stessa password
+     */
+    private synchronized void updatePassword(String hashed, String rehashed){
+        if ( this.psw.equals(hashed) )
+            this.psw = rehashed;
+    }
+
+    /**
+     * Effettua il login di un utente, se era già loggato solleva eccezione.
+     * La password va verificata prima con checkPassword
+     * 
+     * @return true se l'operazione ha avuto successo, altrimenti solleva eccezione
+     * @throws WinsomeException Se l'utente era già attualmente loggato
+     */
+    public boolean login()
+    throws WinsomeException {
+        if ( loggedIn )
+            throw new WinsomeException("L'utente ha già effettuato il login");
             
         loggedIn = true; // Il login ha avuto successo
         return true;
@@ -141,6 +187,7 @@ public class WinsomeUser implements Serializable {
 
         synchronized ( this ){ // Sincronizzo per la race condition durante la registrazione alla callback
             follower.add(user);
+            logFollower(ClientNotifyInterface.FOLLOW, user);
         }
 
         return true;
@@ -181,6 +228,7 @@ public class WinsomeUser implements Serializable {
             throw new IllegalArgumentException();
         
         postRewinned.add(postId); // Non controllo il valore di ritorno perché non ci sono effetti collaterali
+        timeline.add(postId);
         return true;
     }
 
@@ -201,6 +249,7 @@ public class WinsomeUser implements Serializable {
             throw new WinsomeException("Incostistenza tra autore del post e utente");
 
         blog.add(post); // Non controllo il valore di ritorno perché non ci sono effetti collaterali
+        timeline.add(post.getIdPost());
         return true;
     }
 
@@ -214,6 +263,72 @@ public class WinsomeUser implements Serializable {
         }
     }
 
+    /**
+     * Restituisce la versione corrente dei follower, la stessa riportata da syncFollower
+     * 
+     * @return Il numero di modifiche dei follower nell'epoca corrente
+     */
+    public long getFollowerVersion(){
+        synchronized ( this ){
+            initFollowerLog();
+            return followerVersion;
+        }
+    }
+
+    /**
+     * Restituisce i follower da inviare a un client che si registra alle callback.
+     * Se il client conosce già i follower a una versione ancora presente nello storico riceve soltanto le modifiche successive,
+     * così il costo non dipende dal numero di follower ma dalle modifiche avvenute dall'ultimo allineamento
+     * 
+     * @param epoch Epoca in cui il client ha ricevuto i follower
+     * @param version Versione dei follower nota al client, FollowerSync.UNKNOWN se non li conosce
+     * @return Le modifiche successive alla versione del client, oppure l'elenco completo dei follower
+     */
+    public FollowerSync syncFollower(long epoch, long version){
+        synchronized ( this ){ // Sincronizzo per la race condition durante la registrazione alla callback
+            initFollowerLog();
+            long missing = followerVersion - version;
+            if ( epoch != followerEpoch || version < 0 || missing < 0 || missing > followerLog.size() )
+                return FollowerSync.snapshot(followerEpoch, followerVersion, new HashSet<String>(follower));
+
+            // Le modifiche mancanti al client sono le ultime dello storico
+            List<String> changes = new ArrayList<String>((int) missing);
+            Iterator<String> it = followerLog.descendingIterator();
+            while ( changes.size() < missing )
+                changes.add(it.next());
+            Collections.reverse(changes);
+            return FollowerSync.delta(followerEpoch, followerVersion, changes);
+        }
+    }
+
+    /**
+     * Registra una modifica dei follower nello storico, scartando la più vecchia se lo storico è pieno.
+     * Va invocato con l'utente bloccato
+     * 
+     * @param event FOLLOW o UNFOLLOW
+     * @param user Follower aggiunto o rimosso
+     */
+    private void logFollower(String event, String user){
+        initFollowerLog();
+        if ( followerLog.size() == FOLLOWER_LOG_SIZE )
+            followerLog.poll();
+        followerLog.add(event + ";" + user + ";");
+        followerVersion++;
+    }
+
+    /**
+     * Crea lo storico dei follower, che non viene salvato: dopo un riavvio inizia una nuova epoca.
+     * Va invocato con l'utente bloccato
+     */
+    private void initFollowerLog(){
+        if ( followerLog != null )
+            return;
+
+        followerLog = new ArrayDeque<String>();
+        followerVersion = 0;
+        followerEpoch = ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE;
+    }
+
     /**
      * Effettua il logout dell'utente, se non era attualmente loggato solleva eccezione
      * 
@@ -283,6 +398,7 @@ public class WinsomeUser implements Serializable {
 
         synchronized ( this ){ // Sincronizzo per la race condition durante la registrazione alla callback
             follower.remove(user);
+            logFollower(ClientNotifyInterface.UNFOLLOW, user);
         }
 
         return true;
@@ -325,6 +441,8 @@ public class WinsomeUser implements Serializable {
             throw new WinsomeException("Il post non era presente nel blog dell'utente");
 
         blog.remove(post);
+        if ( !postRewinned.contains(post.getIdPost()) )
+            timeline.remove(post.getIdPost());
         return true;
     }
 
@@ -341,6 +459,7 @@ public class WinsomeUser implements Serializable {
             throw new IllegalArgumentException();
 
         postRewinned.remove(postId);
+        timeline.remove(postId);
         return true;
     }
 
@@ -362,6 +481,28 @@ public class WinsomeUser implements Serializable {
         return blog;
     }
 
+    /**
+     * Restituisce gli id dei post del blog (pubblicati e rewinnati) ordinati dal più recente.
+     * L'insieme è concorrente e può essere letto senza lock mentre il blog viene modificato
+     * 
+     * @return gli id dei post del blog in ordine decrescente
+     */
+    public NavigableSet<Integer> getTimeline(){
+        return timeline;
+    }
+
+    /**
+     * Ricostruisce l'indice dei post del blog, che non viene salvato insieme all'utente.
+     * Invocato quando l'utente viene ripristinato dal file di backup
+     */
+    public void rebuildTimeline(){
+        NavigableSet<Integer> rebuilt = new ConcurrentSkipListSet<Integer>(Collections.reverseOrder());
+        for ( WinsomePost post : blog )
+            rebuilt.add(post.getIdPost());
+        rebuilt.addAll(postRewinned);
+        timeline = rebuilt;
+    }
+
     @Override
     public String toString(){
         return nickname + " " + psw + " " + tags.toString();
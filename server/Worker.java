@@ -1,289 +1,355 @@
 package server;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.URL;
-import java.net.URLConnection;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
-import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.nio.charset.StandardCharsets;
-import java.util.Arrays;
 import java.util.Iterator;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 import shared.*;
 
 /**
-	Classe che gestisce le connessioni e le richieste client
+	Classe che gestisce le connessioni e le richieste client.
+	Ogni worker ha il proprio selettore e serve soltanto le connessioni che gli passa l'Acceptor
 */
 public class Worker extends Thread {
-    private final static String randomURL = "https://www.random.org/decimal-fractions/?num=1&dec=4&col=1&format=plain&rnd=new"; // URL a cui connettersi per recuperare un numero casuale
-    private final int KILOBYTE = 1024;
+    private final static int BUFFER_SIZE = 16 * 1024; // Dimensione dei buffer del pool
+    private final static int MAX_POOLED_BUFFERS = 256; // Numero massimo di buffer liberi conservati da ogni worker
+    private final static int WHEEL_SLOTS = 512; // Numero di posizioni della ruota dei timeout di inattività
+    private final static long MIN_TICK = 10; // Precisione minima in millisecondi dei timeout di inattività
     
     private volatile boolean toStop = false; // Variabile per la terminazione del thread
     
-    private String multicastAddress; // Indirizzo per il multicast da comunicare al client al momento del login
-    private int multicastPort; // Porta per il multicast da comunicare al client al momento del login
-    private WinsomeDB database; // Puntatore al database di Winsome
-    private RMIServiceInterface stub; // Puntatore allo stub per il servizio RMI
-
-    private Selector selector;
-
-    public Worker(Selector selector, WinsomeDB database, String multicastAddress, int multicastPort, RMIServiceInterface stub){
-        this.multicastAddress = multicastAddress;
-        this.multicastPort = multicastPort;
-        this.stub = stub;
-        this.selector = selector;
-        this.database = database;
-    }
-
-    protected void terminate(){
-        toStop = true;
-        selector.wakeup();
-    }
+    private RequestDispatcher dispatcher; // Elaborazione delle richieste, condivisa con gli altri worker
+
+    private Selector selector; // Selettore privato di questo worker
+    private Queue<SocketChannel> newConnections; // Connessioni accettate dall'Acceptor e non ancora registrate sul selettore
+    private Executor executor; // Esecutore a cui vengono delegate le richieste, il selettore si occupa solo dell'I/O
+    private Queue<Completion> completions; // Risposte pronte da restituire ai client, prodotte dai thread dell'esecutore
+    private BufferPool pool; // Buffer diretti di questo worker, riutilizzati per le letture e le risposte di tutte le sue connessioni
+    private FrameCodec codec; // Codifica dei messaggi di questo worker
+    private long idleTimeout; // Millisecondi di inattività dopo cui una connessione viene chiusa, 0 per non chiuderle mai
+    private TimerWheel<SelectionKey> idleWheel; // Scadenze di inattività delle connessioni, null se il timeout è disabilitato
+    private int maxPendingRequests; // Richieste in attesa oltre le quali si smette di leggere da una connessione
+    private long maxOutboundBytes; // Byte di risposte non inviate oltre i quali si smette di leggere da una connessione
+    private AdmissionControl admission; // Limite globale alle richieste in elaborazione, condiviso con gli altri worker
+    private RateLimiter limiter; // Limite di frequenza delle richieste per utente e per indirizzo, condiviso con gli altri worker
+    private volatile int connections = 0; // Connessioni aperte, scritto soltanto dal thread del worker e letto dalla console del server
 
     /**
-     * Ottiene un decimale random collegandosi all'URL
-     * 
-     * @return un decimale random
+     * Risposta elaborata da un thread dell'esecutore, in attesa di essere inviata dal worker
      */
-    private double getRandom(){
-        double random = 0.0;
-        try{
-            URL url = new URL(randomURL);
-            URLConnection urlConn = url.openConnection();
-            BufferedReader buf = new BufferedReader(new InputStreamReader(urlConn.getInputStream()));
-            random = Double.parseDouble(buf.readLine());
-
-        } catch ( NumberFormatException e ){
-            e.printStackTrace();
-        } catch ( IOException e ){
-            e.printStackTrace();
-        } catch ( Exception e ){
-            e.printStackTrace();
+    private static class Completion {
+        private final SelectionKey key; // Chiave della connessione che ha inviato la richiesta
+        private final int requestId; // Identificativo della richiesta a cui si risponde
+        private final String[] reply; // Risposta da inviare al client, o notifica
+        private final boolean push; // true se si tratta di una notifica e non di una risposta
+
+        private Completion(SelectionKey key, int requestId, String[] reply, boolean push){
+            this.key = key;
+            this.requestId = requestId;
+            this.reply = reply;
+            this.push = push;
         }
-        
-        return random;
+    }
+
+    public Worker(RequestDispatcher dispatcher, Executor executor, long idleTimeout, int maxPendingRequests, long maxOutboundBytes,
+                  AdmissionControl admission, RateLimiter limiter, int compressionThreshold)
+    throws IOException {
+        if ( dispatcher == null || executor == null || admission == null || limiter == null )
+            throw new NullPointerException();
+        if ( idleTimeout < 0 || maxPendingRequests <= 0 || maxOutboundBytes <= 0 )
+            throw new IllegalArgumentException();
+
+        this.dispatcher = dispatcher;
+        this.selector = Selector.open();
+        this.executor = executor;
+        this.newConnections = new ConcurrentLinkedQueue<SocketChannel>();
+        this.completions = new ConcurrentLinkedQueue<Completion>();
+        this.pool = new BufferPool(BUFFER_SIZE, MAX_POOLED_BUFFERS);
+        this.codec = new FrameCodec(pool, compressionThreshold);
+        this.idleTimeout = idleTimeout;
+        // Con una posizione ogni idleTimeout/WHEEL_SLOTS millisecondi ogni scadenza cade entro un giro della ruota
+        this.idleWheel = idleTimeout > 0 ? new TimerWheel<SelectionKey>(WHEEL_SLOTS, Math.max(MIN_TICK, idleTimeout / WHEEL_SLOTS), System.currentTimeMillis()) : null;
+        this.maxPendingRequests = maxPendingRequests;
+        this.maxOutboundBytes = maxOutboundBytes;
+        this.admission = admission;
+        this.limiter = limiter;
     }
 
     /**
-     * Restituisce una stringa che indica per ogni post il titolo, l'autore e l'identificativo
+     * Affida a questo worker una connessione appena accettata.
+     * Il metodo è invocato dal thread Acceptor, la registrazione vera e propria
+     * avviene nel thread del worker perché register si bloccherebbe durante la select
      * 
-     * @param tmp L'insieme dei post
-     * @return Una stringa che indica per ogni post il titolo, l'autore e l'identificativo
+     * @param client Connessione da servire (non bloccante)
      */
-    private String toSimplePost(Set<WinsomePost> tmp){
-        StringBuilder s = new StringBuilder();
-
-        for ( WinsomePost post : tmp )
-            s = s.append("\tId: " + post.getIdPost() + "\n\tAutore: " + post.getAuthor() + "\n\tTitolo: " + post.getTitle() + "\n");
+    protected void addConnection(SocketChannel client){
+        newConnections.add(client);
+        selector.wakeup();
+    }
 
-        if ( s.length() == 0 )
-            s.append("Nessun post presente\n");
+    public int getConnections(){
+        return connections;
+    }
 
-        return s.toString();
+    public BufferPool getPool(){
+        return pool;
     }
 
     /**
-     * Riceve una richiesta da un client e la soddisfa restituendo l'esito
+     * Delega all'esecutore la prossima richiesta della connessione, se non ce n'è già una in elaborazione.
+     * Nel frattempo il worker continua a leggere le richieste successive che il client invia senza attendere.
+     * Se il client ha superato il suo limite di frequenza o il server ha già raggiunto il limite di richieste
+     * in elaborazione, la richiesta viene rifiutata subito
      * 
-     * @param request Richiesta client formalizzata
-     * @return L'esito dell'operazione formalizzato
+     * @param key Chiave della connessione che ha inviato la richiesta
      */
-    private String processRequest(String request){
-        String reply = ""; // Messaggio di risposta da inviare al client
-        String description = Communication.Success.toString(); // Descrizione dell'esito dell'operazione
-        String attr = ""; // Eventuali attributi da restituire al client
-        
-        // La richiesta è nel formato OPERATION;USERNAME;ATTRIBUTI
-        String[] token = request.split(";");
-        Operation operation = Operation.valueOf(new String(token[0]));
-        String username = new String(token[1]);
+    private void dispatch(SelectionKey key){
+        Connection connection = ( Connection ) key.attachment();
+        while ( true ){
+            Frame request = connection.nextRequest();
+            if ( request == null )
+                return;
+
+            // Il controllo avviene prima di occupare l'esecutore, così un client troppo insistente costa soltanto una risposta
+            WinsomeUser user = connection.getSession().getUser();
+            int cost = limiter.getCost(request.getPayload());
+            if ( !limiter.tryAcquire(connection.getAddress(), user != null ? user.getNickname() : null, cost) ){
+                connection.addReply(request.getRequestId(), dispatcher.reject(request.getPayload(), Communication.RateLimited));
+                continue;
+            }
 
-        try{
-            switch ( operation ){
-                case ADD_COMMENT:{
-                    // l'operazione restituisce true o solleva eccezione, ma gestisco comunque un fallimento per future modifiche
-                    description = database.addComment(username, Integer.parseInt(token[2]), token[3]) ? Communication.Success.toString() : Communication.Failure.toString();
-                    break;
-                }
-                case CREATE_POST:{
-                    // l'operazione restituisce true o solleva eccezione, ma gestisco comunque un fallimento per future modifiche
-                    description = database.createPost(username, token[2], token[3]) ? Communication.Success.toString() : Communication.Failure.toString();
-                    break;
-                }
-                case DELETE_POST:{
-                    description = database.deletePost(username, Integer.parseInt(token[2])) ? Communication.Success.toString() : Communication.Failure.toString();
-                    break;
-                }
-                case FOLLOW_USER:{
-                    // username inizia a seguire
-                    // l'operazione restituisce true o solleva eccezione, ma gestisco comunque un fallimento per future modifiche
-                    if ( database.followUser(username, token[2]) ){
-                        description = Communication.Success.toString();
-                        // notifico all'utente che viene seguito che username ha iniziato a seguirlo
-                        stub.doCallback(token[2], "FOLLOW;" + username +";");
-                    }
-                    else 
-                        description = Communication.Failure.toString();
+            if ( !admission.tryAcquire() ){
+                // Rispondo senza passare dall'esecutore, il client riproverà più tardi
+                connection.addReply(request.getRequestId(), dispatcher.reject(request.getPayload(), Communication.ServerBusy));
+                continue;
+            }
 
-                    break;
-                }
-                case GET_WALLET:{
-                    attr = "";
-                    double wallet = 0;
-                    Queue<WinsomeWallet> queue = database.getWallet(username);
-                    if ( queue == null || queue.isEmpty() ){ // Non solleva NullPointerException perché java ha la Short-circuit evaluation
-                        description = Communication.EmptySet.toString();
-                        break;
-                    }
-                    // Salvo lo storico del portafoglio in formato leggibile
-                    for ( WinsomeWallet w : queue ){
-                        attr = attr + w.getDate() + " " + w.getValue() + "\n";
-                        wallet = wallet + w.getValue(); // Aggiorno il valore complessivo del portafoglio
+            try{
+                executor.execute(() -> {
+                    try{
+                        String[] reply = dispatcher.processRequest(ByteBuffer.wrap(request.getPayload()), connection);
+                        completions.add(new Completion(key, request.getRequestId(), reply, false));
+                    } finally {
+                        admission.release();
                     }
+                    // Sveglio il selettore perché la connessione torni a essere selezionata in scrittura
+                    selector.wakeup();
+                });
+            } catch ( RejectedExecutionException e ){
+                admission.release();
+                throw e;
+            }
+            return;
+        }
+    }
 
-                    attr += "Valore del portafoglio : " + wallet + "\n;";
+    /**
+     * Accoda una notifica per una connessione di questo worker, invocato dal thread che elabora la richiesta che la genera.
+     * Passa dalla stessa coda delle risposte, così resta ordinata rispetto a quelle prodotte dallo stesso thread.
+     * Se il client non legge e la connessione ha già troppi byte da inviare la notifica viene rifiutata,
+     * così chi la invia può ripiegare su un altro canale invece di perderla
+     * 
+     * @param key Chiave della connessione da notificare
+     * @param connection Stato della connessione da notificare
+     * @param notification Contenuto della notifica
+     * @return true se la notifica è stata accodata, false se la connessione è congestionata
+     */
+    protected boolean push(SelectionKey key, Connection connection, String notification){
+        if ( connection.getOutputBytes() >= maxOutboundBytes )
+            return false;
 
-                    break;
-                }
-                case GET_WALLET_BITCOIN:{
-                    Queue<WinsomeWallet> queue = database.getWallet(username);
-                    if ( queue == null || queue.isEmpty() ){ // Non solleva NullPointerException perché java ha la Short-circuit evaluation
-                        description = Communication.EmptySet.toString();
-                        break;
-                    }
-                    double n = getRandom();
-                    double walletbtc = 0;
-                    attr = "";
-                    // Salvo lo storico del portafoglio in formato leggibile
-                    for ( WinsomeWallet w : queue ){
-                        attr = attr + w.getDate() + " " + w.getValue()*n + "\n";
-                        walletbtc = walletbtc + w.getValue()*n; // Aggiorno il valore complessivo del portafoglio in bitcoin
-                    }
+        completions.add(new Completion(key, 0, new String[]{ notification }, true));
+        selector.wakeup();
+        return true;
+    }
 
-                    attr += "Valore del portafoglio in bitcoin : " + walletbtc + " (Tasso di conversione: " + n + ")\n;";
+    /**
+     * Aggiorna le operazioni a cui la connessione è interessata: la scrittura finché ci sono risposte da inviare,
+     * la lettura finché la connessione non ha troppe richieste in attesa o troppi byte di risposte non ancora inviati.
+     * Smettendo di leggere, il buffer del socket si riempie e il controllo di flusso di TCP rallenta il client
+     * 
+     * @param key Chiave della connessione
+     * @param connection Stato della connessione
+     */
+    private void updateInterest(SelectionKey key, Connection connection){
+        int ops = 0;
+        if ( connection.getPendingRequests() < maxPendingRequests && connection.getOutputBytes() < maxOutboundBytes )
+            ops |= SelectionKey.OP_READ;
+        if ( connection.hasOutput() )
+            ops |= SelectionKey.OP_WRITE;
+
+        if ( key.interestOps() != ops )
+            key.interestOps(ops);
+    }
 
-                    break;
-                }
-                case LIST_FOLLOWING:{
-                    Set<String> following = database.listFollowing(username);
-                    if ( following == null || following.isEmpty() ){ // Non solleva NullPointerException perché java ha la Short-circuit evaluation
-                        description = Communication.EmptySet.toString();
-                        break;
-                    }
-                    attr = Arrays.toString( following.toArray() );
-                    break;
-                }
-                case LIST_USERS:{
-                    Set<String> users = database.listUsers(username);
-                    if ( users == null || users.isEmpty() ){ // Non solleva NullPointerException perché java ha la Short-circuit evaluation
-                        description = Communication.EmptySet.toString();
-                        break;
-                    }
-                    attr = Arrays.toString( users.toArray());
-                    break;
-                }
-                case LOGIN:{
-                    // l'operazione restituisce true o solleva eccezione, ma gestisco comunque un fallimento per future modifiche
-                    if ( database.login(username, new String(token[2])) ){
-                        description = Communication.Success.toString();
-                        attr = multicastAddress + "\n" + multicastPort; // Invio l'indirizzo e la porta per permettere al client di registrarsi al servizio di multicast
-                    }
-                    else
-                        description = Communication.Failure.toString();
-                        
-                    break;
-                }
-                case LOGOUT:{
-                    // l'operazione restituisce true o solleva eccezione, ma gestisco comunque un fallimento per future modifiche
-                    description = database.logout(username) ? Communication.Success.toString() : Communication.Failure.toString();
-                    break;
-                }
-                case RATE_POST:{
-                    // l'operazione restituisce true o solleva eccezione, ma gestisco comunque un fallimento per future modifiche
-                    description = database.ratePost(username, Integer.parseInt(token[2]), Integer.parseInt(token[3])) ? Communication.Success.toString() : Communication.Failure.toString();
-                    break;
-                }
-                case REWIN_POST:{
-                    // l'operazione restituisce true o solleva eccezione, ma gestisco comunque un fallimento per future modifiche
-                    description = database.rewinPost(username, Integer.parseInt(token[2])) ? Communication.Success.toString() : Communication.Failure.toString();
-                    break;
-                }
-                case SHOW_FEED:{
-                    Set<WinsomePost> tmp = database.showFeed(username, true);
-                    if ( tmp == null || tmp.isEmpty() ){ // Non solleva NullPointerException perché java ha la Short-circuit evaluation
-                        description = Communication.EmptySet.toString();
-                        break;
-                    }
-                    description = Communication.Success.toString();
-                    attr = toSimplePost(tmp) + ";";
+    /**
+     * Accoda alle rispettive connessioni le risposte elaborate dall'esecutore dall'ultima select
+     * e fa elaborare la richiesta successiva di ciascuna connessione
+     */
+    private void collectCompletions(){
+        for ( Completion completion = completions.poll(); completion != null; completion = completions.poll() ){
+            SelectionKey key = completion.key;
+            // Il client potrebbe aver chiuso la connessione mentre la richiesta veniva elaborata
+            if ( !key.isValid() )
+                continue;
+
+            Connection connection = ( Connection ) key.attachment();
+            if ( !completion.push ){
+                connection.addReply(completion.requestId, completion.reply);
+                connection.touch(System.currentTimeMillis());
+            }
+            else
+                // La congestione è già stata controllata quando la notifica è stata accodata
+                connection.addPush(completion.reply[0]);
+            try{
+                // Provo subito a inviare la risposta: di solito il socket ha spazio e si evita un giro di select,
+                // la selezione in scrittura serve soltanto finché restano byte da inviare
+                connection.write(( SocketChannel ) key.channel());
+                dispatch(key);
+                updateInterest(key, connection);
+            } catch ( RejectedExecutionException e ){
+                // L'esecutore è in chiusura, la richiesta successiva non verrà elaborata
+                System.err.println("WORKER: Esecutore in chiusura, richiesta scartata");
+            } catch ( IOException e ){
+                // Il client non è più raggiungibile
+                closeConnection(key);
+            }
+        }
+    }
 
-                    break;
-                }
-                case SHOW_POST:{
-                    attr = database.showPost(Integer.parseInt(token[2])) + "\n;";
-                    description = Communication.Success.toString();
-                    break;
-                }
-                case UNFOLLOW_USER:{
-                    // user smette di seguire
-                    // l'operazione restituisce true o solleva eccezione, ma gestisco comunque un fallimento per future modifiche
-                    if ( database.unfollowUser(username, token[2]) ){
-                        description = Communication.Success.toString();
-                        // notifico all'utente che viene seguito che user ha smesso di seguirlo
-                        stub.doCallback(token[2], "UNFOLLOW;" + username +";");
-                    }
-                    else 
-                        description = Communication.Failure.toString();
+    /**
+     * Chiude la connessione con un client, restituisce al pool i suoi buffer
+     * ed effettua il logout dell'utente legato alla sessione, se c'è
+     * 
+     * @param key Chiave della connessione da chiudere
+     */
+    private void closeConnection(SelectionKey key){
+        if ( key.isValid() )
+            connections--;
+        key.cancel();
+        Connection connection = ( Connection ) key.attachment();
+        if ( connection != null ){
+            connection.release();
+            WinsomeUser user = connection.getSession().close();
+            if ( user != null )
+                logout(user, connection);
+        }
+        try {
+            key.channel().close();
+        } catch ( IOException e ){
+            System.err.println(e.getMessage());
+        }
+    }
 
-                    break;
-                }
-                case VIEW_BLOG:{
-                    Set<WinsomePost> tmp = database.viewBlog(username, true);
-                    if ( tmp == null || tmp.isEmpty() ){ // Non solleva NullPointerException perché java ha la Short-circuit evaluation
-                        description = Communication.EmptySet.toString();
-                        break;
-                    }
-                    description = Communication.Success.toString();
-                    attr = toSimplePost(tmp) + ";";
+    /**
+     * Effettua il logout dell'utente di una sessione chiusa insieme alla sua connessione.
+     * Il logout acquisisce il lock del database, quindi lo delego all'esecutore come le richieste
+     * 
+     * @param user Utente di cui effettuare il logout
+     * @param connection Connessione chiusa
+     */
+    private void logout(WinsomeUser user, Connection connection){
+        try{
+            executor.execute(() -> dispatcher.logout(user, connection));
+        } catch ( RejectedExecutionException e ){
+            System.err.println("WORKER: Esecutore in chiusura, logout di " + user.getNickname() + " non eseguito");
+        }
+    }
 
-                    break;
-                }
-                default:{
-                    description = Communication.OperationNotSupported.toString();
-                    
-                    return description.toString() + "\n" + attr.toString() + "\n";
+    /**
+     * Registra sul selettore le connessioni passate dall'Acceptor dall'ultima select
+     */
+    private void registerNewConnections(){
+        for ( SocketChannel client = newConnections.poll(); client != null; client = newConnections.poll() ){
+            try{
+                // Nuovo client, l'operazione che voglio associare è la lettura
+                // In allegato lo stato della connessione, che raccoglie i messaggi e le risposte
+                Connection connection = new Connection(this, codec, getAddress(client));
+                SelectionKey key = client.register(selector, SelectionKey.OP_READ, connection);
+                connection.setKey(key);
+                connections++;
+                // Ogni connessione è nella ruota una volta sola, la scadenza viene aggiornata solo quando arriva
+                if ( idleWheel != null )
+                    idleWheel.schedule(key, System.currentTimeMillis() + idleTimeout);
+            } catch ( IOException e ){
+                e.printStackTrace();
+                try {
+                    client.close();
+                } catch ( IOException ex ){
+                    System.err.println(ex.getMessage());
                 }
             }
-        } catch ( WinsomeException e ){
-            attr = "";
-            description = e.getMessage();
-        } catch ( NullPointerException | IllegalArgumentException e ){
-            attr = "";
-            description = Communication.Failure.toString();
         }
-        catch ( Exception e ){
-            attr = "";
-            description = Communication.Failure.toString();
-            e.printStackTrace();
+    }
+
+    /**
+     * Restituisce l'indirizzo del client, usato come chiave del limite di frequenza per indirizzo
+     * 
+     * @param client Connessione del client
+     * @return L'indirizzo IP del client, null se non è noto
+     */
+    private String getAddress(SocketChannel client){
+        try{
+            SocketAddress remote = client.getRemoteAddress();
+            if ( remote instanceof InetSocketAddress )
+                return ( ( InetSocketAddress ) remote ).getAddress().getHostAddress();
+        } catch ( IOException e ){
+            System.err.println(e.getMessage());
         }
-        
-        reply = description + "\n" + attr.toString() + "\n";            
+        return null;
+    }
+
+    /**
+     * Chiude le connessioni la cui scadenza di inattività è arrivata senza che ci sia stata attività nel frattempo.
+     * Le connessioni attive nel frattempo vengono reinserite nella ruota con la scadenza aggiornata
+     * 
+     * @param now Istante corrente in millisecondi
+     */
+    private void closeIdleConnections(long now){
+        idleWheel.advance(now, key -> {
+            // La connessione è già stata chiusa, basta lasciarla uscire dalla ruota
+            if ( !key.isValid() )
+                return;
+
+            Connection connection = ( Connection ) key.attachment();
+            // Un client che attende una risposta o deve ancora riceverla non è inattivo
+            long deadline = connection.isIdle() ? connection.getLastActivity() + idleTimeout : now + idleTimeout;
+            if ( deadline > now ){
+                idleWheel.schedule(key, deadline);
+                return;
+            }
+
+            WinsomeUser user = connection.getSession().getUser();
+            System.out.println("WORKER: Chiusa connessione inattiva" + ( user != null ? " dell'utente " + user.getNickname() : "" ));
+            // La chiusura effettua anche il logout dell'utente della sessione
+            closeConnection(key);
+        });
+    }
 
-        return reply;
+    protected void terminate(){
+        toStop = true;
+        selector.wakeup();
     }
 
     public void run(){
         while( !toStop ){
 
             try{
-                selector.select();
+                // Con il timeout di inattività abilitato mi sveglio almeno una volta per posizione della ruota
+                if ( idleWheel != null )
+                    selector.select(idleWheel.getTickMillis());
+                else
+                    selector.select();
                 // Tra i canali registrati sul selettore selector, seleziona quelli 
                 // pronti per almeno una delle operazioni di I/O dell'interest set.
             } catch ( Exception e ){
@@ -292,6 +358,13 @@ public class Worker extends Thread {
             }
             // Il selector si sveglia, c'è stata una richiesta su un canale
             // Se si fosse svegliato per la wakeup da parte del ServerMain controlla comunque se ci sono richieste client
+            // Se invece si è svegliato per una nuova connessione dell'Acceptor la registro
+            registerNewConnections();
+            // Oppure perché l'esecutore ha terminato di elaborare qualche richiesta
+            collectCompletions();
+            long now = System.currentTimeMillis();
+            if ( idleWheel != null )
+                closeIdleConnections(now);
             Set <SelectionKey> readyKeys = selector.selectedKeys();
             Iterator <SelectionKey> iterator = readyKeys.iterator();
             while ( iterator.hasNext() ){
@@ -299,94 +372,56 @@ public class Worker extends Thread {
                 // Rimuove la chiave dal Selected Set, ma non dal Registered Set
                 iterator.remove();
                 try{
-                    if ( key.isAcceptable() ){
-                        // Nuova connessione accettata dal channel
-                        // Connessione implicita lato Server
-                        ServerSocketChannel server = (ServerSocketChannel) key.channel();
-                        SocketChannel client = server.accept();
-                        client.configureBlocking(false);
-                        
-                        // Nuovo client, l'operazione che voglio associare è la lettura
-                        client.register(selector, SelectionKey.OP_READ);
-                    }
-                    else if ( key.isReadable() ){
+                    if ( key.isReadable() ){
                         
                         SocketChannel client = (SocketChannel) key.channel();
-                        String msg = ( String ) key.attachment();
+                        Connection connection = ( Connection ) key.attachment();
 
-                        ByteBuffer buffer = ByteBuffer.allocate(KILOBYTE);
-                        buffer.clear();
-
-                        int byteRead = client.read(buffer);
-
-                        buffer.flip();
-                        if ( msg == null )
-                            // Inizializzo msg per evitare che alla prossima iterazione sia nella forma nullOperazioneAttributi
-                            msg = StandardCharsets.UTF_8.decode(buffer).toString();
-                        else
-                            msg = msg + StandardCharsets.UTF_8.decode(buffer).toString();
-                        
-                        if ( byteRead == KILOBYTE ){
-                            // Ho riempito il buffer, potrei non aver letto tutto
-                            key.attach(msg);
-                        }
-                        else if ( byteRead == -1 ){
-                            key.cancel();
-                            key.channel().close();
-                        }
-                        else if ( byteRead < KILOBYTE ){
-                            // Ho letto tutto quello che il client ha inviato al server
-                            // Elaboro la richiesta
-                            // Metto la risposta nell'attachment
-                            String reply = processRequest(msg);
-                            key.attach(reply);
-
-                            key.interestOps(SelectionKey.OP_WRITE);
-                            
+                        int byteRead = client.read(connection.getInput());
+                        if ( byteRead == -1 ){
+                            closeConnection(key);
+                            continue;
                         }
+                        connection.touch(now);
+
+                        // Accodo i messaggi ricevuti per intero e, se non ce n'è già uno in elaborazione,
+                        // faccio elaborare il primo; i byte di un messaggio incompleto attendono la prossima lettura
+                        connection.collectFrames();
+                        dispatch(key);
+                        updateInterest(key, connection);
                     }
-                    else if ( key.isWritable() ){
+                    if ( key.isValid() && key.isWritable() ){
                         
                         SocketChannel client = (SocketChannel) key.channel();
-                        client.configureBlocking(false);
-
-                        String reply = ( String ) key.attachment();
-
-                        if ( reply == null ){
-                            System.err.println("WORKER: Errore con il client, chiudo la connessione");
-                            key.cancel();
-                            client.close();
-                        }
-
-                        ByteBuffer buffer = ByteBuffer.wrap(reply.getBytes());
-                        int byteWrote = client.write(buffer);
-
-                        if ( byteWrote == reply.getBytes().length ){
-                            // Ho scritto tutto
-                            key.attach(null); // Resetto l'attchament, altrimenti ritrovo la reply in allegato quando vado a leggere la prossima richiesta di questo client
-                            key.interestOps(SelectionKey.OP_READ);                            
-                        }
-                        
+                        Connection connection = ( Connection ) key.attachment();
+
+                        // Riprendo da dove si era interrotta la scrittura precedente
+                        connection.touch(now);
+                        connection.write(client);
+                        // Se ho scritto tutto resto in attesa soltanto di nuove richieste,
+                        // e riprendo a leggere se avevo smesso per le troppe risposte non inviate
+                        updateInterest(key, connection);
                     }
+                } catch ( RejectedExecutionException e ){
+                    // L'esecutore è in chiusura, non posso più servire questo client
+                    closeConnection(key);
                 } catch ( Exception e ){
                     // Se ci sono problemi con la chiave chiudo la connesione con quel client
                     e.printStackTrace();
-                    key.cancel();
-                    try {
-                        key.channel().close();
-                    } catch ( Exception ex ){
-                        System.err.println(e.getMessage());
-                        
-                    }
+                    closeConnection(key);
                 }
             }
         }
+        // Chiudo le connessioni ancora aperte con i client di questo worker
+        for ( SelectionKey key : selector.keys() )
+            closeConnection(key);
         try{
             selector.close();
         } catch ( IOException e ){
             e.printStackTrace();
             
         }
+        System.out.println("WORKER: Buffer riutilizzati " + pool.getHits() + ", buffer allocati " + pool.getMisses());
         System.out.println("WORKER: Terminazione");
         
     }
@@ -0,0 +1,64 @@
+package server.bcrypt.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import server.bcrypt.src.BCrypt;
+import server.bcrypt.src.FastBCrypt;
+
+/**
+ * Compares BCrypt and FastBCrypt on the same password and salt.
+ * Setup fails if the two implementations disagree, so a run also
+ * checks that FastBCrypt is bit-for-bit compatible.
+ * <p>
+ * Run with: ant bench -Djmh.classpath=/path/to/jmh-core.jar:...
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class BCryptBenchmark {
+	@Param({ "10", "12" })
+	public int log_rounds;
+
+	@Param({ "password", "pässwörd-with-a-much-longer-tail-0123456789" })
+	public String password;
+
+	private String salt;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		salt = BCrypt.gensalt(log_rounds);
+		String expected = BCrypt.hashpw(password, salt);
+		String actual = FastBCrypt.hashpw(password, salt);
+		if (!expected.equals(actual))
+			throw new IllegalStateException("FastBCrypt differs from BCrypt: "
+			    + expected + " != " + actual);
+		if (!FastBCrypt.checkpw(password, expected) || !BCrypt.checkpw(password, actual))
+			throw new IllegalStateException("checkpw rejects a valid hash");
+	}
+
+	@Benchmark
+	public String bcrypt() {
+		return BCrypt.hashpw(password, salt);
+	}
+
+	@Benchmark
+	public String fastBCrypt() {
+		return FastBCrypt.hashpw(password, salt);
+	}
+}
@@ -0,0 +1,432 @@
+// Copyright (c) 2006 Damien Miller <djm@mindrot.org>
+//
+// Permission to use, copy, modify, and distribute this software for any
+// purpose with or without fee is hereby granted, provided that the above
+// copyright notice and this permission notice appear in all copies.
+//
+// THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+// WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+// MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+// ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+// WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+// ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+// OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+
+package server.bcrypt.src;
+
+/**
+ * FastBCrypt computes the same hashes as BCrypt.hashpw, bit for bit,
+ * without allocating on the hashing path.
+ * <p>
+ * The Blowfish state, the key material and the output buffer live in
+ * a per-thread State that is reset at the start of every hash instead
+ * of being cloned. The password and the salt are turned into the 18
+ * key words consumed by each key expansion once per hash, so the
+ * 2**log_rounds expansions no longer stream bytes through an offset
+ * pointer. The only allocation left is the returned String.
+ * <p>
+ * Salts are generated with BCrypt.gensalt.
+ */
+public class FastBCrypt {
+	// Number of 32-bit words in the Blowfish P-array, i.e. key words
+	// consumed by a key expansion. Only the first 72 bytes of the
+	// password can influence the hash.
+	private static final int P_LEN = BCrypt.BLOWFISH_NUM_ROUNDS + 2;
+	private static final int S_LEN = 1024;
+	private static final int KEY_BYTES = P_LEN * 4;
+	// "$2a$" + rounds + "$" + 22 salt chars + 31 hash chars
+	private static final int HASH_LEN = 60;
+
+	// Per-thread working memory, reused by every hash
+	private static final class State {
+		final int P[] = new int[P_LEN];
+		final int S[] = new int[S_LEN];
+		final int pwkey[] = new int[P_LEN];	// password key words
+		final int saltkey[] = new int[P_LEN];	// salt key words
+		final int cdata[] = new int[6];
+		final byte pwbytes[] = new byte[KEY_BYTES];
+		final byte saltb[] = new byte[BCrypt.BCRYPT_SALT_LEN];
+		final byte hashed[] = new byte[24];
+		final char out[] = new char[HASH_LEN];
+	}
+
+	// Data stream of the plain key expansion
+	private static final int ZERO[] = new int[4];
+
+	private static final ThreadLocal<State> STATE =
+	    ThreadLocal.withInitial(State::new);
+
+	/**
+	 * Blowfish encipher a single 64-bit block and store the result
+	 * at dst[off], dst[off + 1]. The 16 rounds are unrolled so that the
+	 * P-array is read at constant offsets
+	 * @param P	the P-array
+	 * @param S	the S-boxes
+	 * @param dst	where the enciphered block is stored
+	 * @param off	the position in dst of the block
+	 * @param l	the left 32-bit half block
+	 * @param r	the right 32-bit half block
+	 */
+	private static void encipher(int P[], int S[], int dst[], int off,
+	    int l, int r) {
+		l ^= P[0];
+		r ^= F(S, l) ^ P[1];
+		l ^= F(S, r) ^ P[2];
+		r ^= F(S, l) ^ P[3];
+		l ^= F(S, r) ^ P[4];
+		r ^= F(S, l) ^ P[5];
+		l ^= F(S, r) ^ P[6];
+		r ^= F(S, l) ^ P[7];
+		l ^= F(S, r) ^ P[8];
+		r ^= F(S, l) ^ P[9];
+		l ^= F(S, r) ^ P[10];
+		r ^= F(S, l) ^ P[11];
+		l ^= F(S, r) ^ P[12];
+		r ^= F(S, l) ^ P[13];
+		l ^= F(S, r) ^ P[14];
+		r ^= F(S, l) ^ P[15];
+		l ^= F(S, r) ^ P[16];
+		dst[off] = r ^ P[17];
+		dst[off + 1] = l;
+	}
+
+	// Blowfish round function
+	private static int F(int S[], int x) {
+		return ((S[x >>> 24] + S[0x100 | ((x >>> 16) & 0xff)])
+		    ^ S[0x200 | ((x >>> 8) & 0xff)]) + S[0x300 | (x & 0xff)];
+	}
+
+	/**
+	 * Key the Blowfish cipher with precomputed key words
+	 * @param st	the working state
+	 * @param key	the P_LEN key words
+	 */
+	private static void key(State st, int key[]) {
+		int P[] = st.P, S[] = st.S;
+		int i, l = 0, r = 0;
+
+		for (i = 0; i < P_LEN; i++)
+			P[i] ^= key[i];
+
+		for (i = 0; i < P_LEN; i += 2) {
+			encipher(P, S, P, i, l, r);
+			l = P[i];
+			r = P[i + 1];
+		}
+
+		expand_s(P, S, l, r, ZERO, 0);
+	}
+
+	/**
+	 * Perform the "enhanced key schedule" step. The 16-byte salt
+	 * repeats every four words, so saltkey doubles as the data stream
+	 * @param st	the working state
+	 */
+	private static void ekskey(State st) {
+		int P[] = st.P, S[] = st.S, key[] = st.pwkey, data[] = st.saltkey;
+		int i, d = 0, l = 0, r = 0;
+
+		for (i = 0; i < P_LEN; i++)
+			P[i] ^= key[i];
+
+		for (i = 0; i < P_LEN; i += 2) {
+			encipher(P, S, P, i, l ^ data[d], r ^ data[d + 1]);
+			d = (d + 2) & 3;
+			l = P[i];
+			r = P[i + 1];
+		}
+
+		expand_s(P, S, l, r, data, d);
+	}
+
+	/**
+	 * Replace the S-boxes with the chained encryption of the previous
+	 * block, XORed with the data stream. P does not change while the
+	 * S-boxes are filled, so it is held in locals: otherwise every
+	 * store into S would force it to be reloaded
+	 * @param P	the P-array
+	 * @param S	the S-boxes
+	 * @param l	the left half of the previous block
+	 * @param r	the right half of the previous block
+	 * @param data	four words of data, repeated cyclically
+	 * @param d	the position in data of the next word, 0 or 2
+	 */
+	private static void expand_s(int P[], int S[], int l, int r,
+	    int data[], int d) {
+		final int p0 = P[0], p1 = P[1], p2 = P[2], p3 = P[3],
+		    p4 = P[4], p5 = P[5], p6 = P[6], p7 = P[7], p8 = P[8],
+		    p9 = P[9], p10 = P[10], p11 = P[11], p12 = P[12],
+		    p13 = P[13], p14 = P[14], p15 = P[15], p16 = P[16],
+		    p17 = P[17];
+		int t;
+
+		for (int i = 0; i < S_LEN; i += 2) {
+			l ^= data[d] ^ p0;
+			r ^= data[d + 1];
+			d ^= 2;
+			r ^= F(S, l) ^ p1;
+			l ^= F(S, r) ^ p2;
+			r ^= F(S, l) ^ p3;
+			l ^= F(S, r) ^ p4;
+			r ^= F(S, l) ^ p5;
+			l ^= F(S, r) ^ p6;
+			r ^= F(S, l) ^ p7;
+			l ^= F(S, r) ^ p8;
+			r ^= F(S, l) ^ p9;
+			l ^= F(S, r) ^ p10;
+			r ^= F(S, l) ^ p11;
+			l ^= F(S, r) ^ p12;
+			r ^= F(S, l) ^ p13;
+			l ^= F(S, r) ^ p14;
+			r ^= F(S, l) ^ p15;
+			l ^= F(S, r) ^ p16;
+			t = r ^ p17;
+			r = l;
+			l = t;
+			S[i] = l;
+			S[i + 1] = r;
+		}
+	}
+
+	/**
+	 * Fill key with P_LEN words read cyclically from the first len
+	 * bytes of data, as BCrypt.streamtoword does
+	 * @param data	the key material
+	 * @param len	the number of valid bytes in data
+	 * @param key	where the key words are stored
+	 * @exception IllegalArgumentException if there is no key material
+	 */
+	private static void keywords(byte data[], int len, int key[]) {
+		int off = 0;
+
+		if (len == 0)
+			throw new IllegalArgumentException ("Empty key");
+
+		for (int i = 0; i < P_LEN; i++) {
+			int word = 0;
+			for (int j = 0; j < 4; j++) {
+				word = (word << 8) | (data[off] & 0xff);
+				if (++off == len)
+					off = 0;
+			}
+			key[i] = word;
+		}
+	}
+
+	/**
+	 * Encode the password as UTF-8, like String.getBytes("UTF-8"),
+	 * keeping only the bytes that can reach the key schedule
+	 * @param password	the password to encode
+	 * @param nul	true to append the terminating NUL of $2a$
+	 * @param buf	where the bytes are stored, KEY_BYTES long
+	 * @return	the number of bytes the key is streamed from
+	 */
+	private static int utf8(String password, boolean nul, byte buf[]) {
+		int len = 0, n = password.length();
+
+		for (int i = 0; i < n && len < KEY_BYTES; i++) {
+			int c = password.charAt(i);
+			if (c < 0x80) {
+				buf[len++] = (byte)c;
+				continue;
+			}
+			if (c < 0x800) {
+				len = put(buf, len, 0xc0 | (c >> 6));
+				len = put(buf, len, 0x80 | (c & 0x3f));
+				continue;
+			}
+			if (Character.isSurrogate((char)c)) {
+				// Unpaired surrogates are replaced with '?'
+				if (!Character.isHighSurrogate((char)c) || i + 1 >= n
+				    || !Character.isLowSurrogate(password.charAt(i + 1))) {
+					buf[len++] = (byte)'?';
+					continue;
+				}
+				c = Character.toCodePoint((char)c, password.charAt(++i));
+				len = put(buf, len, 0xf0 | (c >> 18));
+				len = put(buf, len, 0x80 | ((c >> 12) & 0x3f));
+			} else
+				len = put(buf, len, 0xe0 | (c >> 12));
+			len = put(buf, len, 0x80 | ((c >> 6) & 0x3f));
+			len = put(buf, len, 0x80 | (c & 0x3f));
+		}
+		if (nul && len < KEY_BYTES)
+			buf[len++] = 0;
+		return len;
+	}
+
+	// Store a byte if it still fits in the key material
+	private static int put(byte buf[], int len, int b) {
+		if (len < buf.length)
+			buf[len++] = (byte)b;
+		return len;
+	}
+
+	/**
+	 * Decode exactly BCRYPT_SALT_LEN bytes of bcrypt base64 from s
+	 * @param s	the string holding the encoded salt
+	 * @param off	the position of the salt in s
+	 * @param d	where the decoded bytes are stored
+	 * @exception IllegalArgumentException if the salt is invalid
+	 */
+	private static void decode_salt(String s, int off, byte d[]) {
+		int olen = 0, end = off + 22;
+		int c1, c2, c3, c4;
+
+		while (olen < d.length) {
+			c1 = char64(s.charAt(off++));
+			c2 = char64(s.charAt(off++));
+			if (c1 == -1 || c2 == -1)
+				break;
+			d[olen++] = (byte)((c1 << 2) | ((c2 & 0x30) >> 4));
+			if (olen >= d.length || off >= end)
+				break;
+			c3 = char64(s.charAt(off++));
+			if (c3 == -1)
+				break;
+			d[olen++] = (byte)(((c2 & 0x0f) << 4) | ((c3 & 0x3c) >> 2));
+			if (olen >= d.length || off >= end)
+				break;
+			c4 = char64(s.charAt(off++));
+			d[olen++] = (byte)(((c3 & 0x03) << 6) | c4);
+		}
+		if (olen != d.length)
+			throw new IllegalArgumentException ("Bad salt length");
+	}
+
+	// Look up the value of a bcrypt base64 character, -1 if invalid
+	private static int char64(char x) {
+		if (x >= BCrypt.index_64.length)
+			return -1;
+		return BCrypt.index_64[x];
+	}
+
+	/**
+	 * Encode len bytes of d with bcrypt's base64 into out
+	 * @param d	the bytes to encode
+	 * @param len	the number of bytes to encode
+	 * @param out	where the characters are stored
+	 * @param pos	the position in out of the first character
+	 * @return	the position after the last character
+	 */
+	private static int encode_base64(byte d[], int len, char out[],
+	    int pos) {
+		char code[] = BCrypt.base64_code;
+		int off = 0, c1, c2;
+
+		while (off < len) {
+			c1 = d[off++] & 0xff;
+			out[pos++] = code[(c1 >> 2) & 0x3f];
+			c1 = (c1 & 0x03) << 4;
+			if (off >= len) {
+				out[pos++] = code[c1 & 0x3f];
+				break;
+			}
+			c2 = d[off++] & 0xff;
+			c1 |= (c2 >> 4) & 0x0f;
+			out[pos++] = code[c1 & 0x3f];
+			c1 = (c2 & 0x0f) << 2;
+			if (off >= len) {
+				out[pos++] = code[c1 & 0x3f];
+				break;
+			}
+			c2 = d[off++] & 0xff;
+			c1 |= (c2 >> 6) & 0x03;
+			out[pos++] = code[c1 & 0x3f];
+			out[pos++] = code[c2 & 0x3f];
+		}
+		return pos;
+	}
+
+	/**
+	 * Hash a password using the OpenBSD bcrypt scheme
+	 * @param password	the password to hash
+	 * @param salt	the salt to hash with (perhaps generated
+	 * using BCrypt.gensalt)
+	 * @return	the hashed password, equal to BCrypt.hashpw
+	 */
+	public static String hashpw(String password, String salt) {
+		State st = STATE.get();
+		char minor = (char)0;
+		int rounds, off, i, j, pos;
+
+		if (salt.charAt(0) != '$' || salt.charAt(1) != '2')
+			throw new IllegalArgumentException ("Invalid salt version");
+		if (salt.charAt(2) == '$')
+			off = 3;
+		else {
+			minor = salt.charAt(2);
+			if (minor != 'a' || salt.charAt(3) != '$')
+				throw new IllegalArgumentException ("Invalid salt revision");
+			off = 4;
+		}
+
+		// Extract number of rounds
+		if (salt.charAt(off + 2) > '$')
+			throw new IllegalArgumentException ("Missing salt rounds");
+		rounds = Integer.parseInt(salt, off, off + 2, 10);
+		if (rounds < 4 || rounds > 30)
+			throw new IllegalArgumentException ("Bad number of rounds");
+		if (salt.length() < off + 25)
+			throw new IllegalArgumentException ("Bad salt length");
+
+		decode_salt(salt, off + 3, st.saltb);
+		keywords(st.saltb, st.saltb.length, st.saltkey);
+		keywords(st.pwbytes, utf8(password, minor >= 'a', st.pwbytes),
+		    st.pwkey);
+
+		System.arraycopy(BCrypt.P_orig, 0, st.P, 0, P_LEN);
+		System.arraycopy(BCrypt.S_orig, 0, st.S, 0, S_LEN);
+		ekskey(st);
+		for (i = 1 << rounds; i != 0; i--) {
+			key(st, st.pwkey);
+			key(st, st.saltkey);
+		}
+
+		int cdata[] = st.cdata;
+		System.arraycopy(BCrypt.bf_crypt_ciphertext, 0, cdata, 0, cdata.length);
+		for (i = 0; i < 64; i++) {
+			for (j = 0; j < cdata.length; j += 2)
+				encipher(st.P, st.S, cdata, j, cdata[j], cdata[j + 1]);
+		}
+
+		byte hashed[] = st.hashed;
+		for (i = 0, j = 0; i < cdata.length; i++) {
+			hashed[j++] = (byte)(cdata[i] >> 24);
+			hashed[j++] = (byte)(cdata[i] >> 16);
+			hashed[j++] = (byte)(cdata[i] >> 8);
+			hashed[j++] = (byte)cdata[i];
+		}
+
+		char out[] = st.out;
+		pos = 0;
+		out[pos++] = '$';
+		out[pos++] = '2';
+		if (minor >= 'a')
+			out[pos++] = minor;
+		out[pos++] = '$';
+		out[pos++] = (char)('0' + rounds / 10);
+		out[pos++] = (char)('0' + rounds % 10);
+		out[pos++] = '$';
+		pos = encode_base64(st.saltb, st.saltb.length, out, pos);
+		pos = encode_base64(hashed, hashed.length - 1, out, pos);
+		return new String(out, 0, pos);
+	}
+
+	/**
+	 * Check that a plaintext password matches a previously hashed
+	 * one, in time independent of where they differ
+	 * @param plaintext	the plaintext password to verify
+	 * @param hashed	the previously-hashed password
+	 * @return	true if the passwords match, false otherwise
+	 */
+	public static boolean checkpw(String plaintext, String hashed) {
+		String try_pw = hashpw(plaintext, hashed);
+		if (hashed.length() != try_pw.length())
+			return false;
+		int ret = 0;
+		for (int i = 0; i < try_pw.length(); i++)
+			ret |= hashed.charAt(i) ^ try_pw.charAt(i);
+		return ret == 0;
+	}
+}
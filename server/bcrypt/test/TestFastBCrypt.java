@@ -0,0 +1,156 @@
+package server.bcrypt.test;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import junit.framework.TestCase;
+
+import server.bcrypt.src.BCrypt;
+import server.bcrypt.src.FastBCrypt;
+
+/**
+ * JUnit regression tests for FastBCrypt: every hash must match the one
+ * computed by BCrypt, bit for bit.
+ * <p>
+ * Run with: ant test -Djunit.classpath=/path/to/junit.jar:/path/to/hamcrest-core.jar
+ */
+public class TestFastBCrypt extends TestCase {
+	// Known answers, { plaintext, salt, expected hash }
+	String test_vectors[][] = {
+		{ "",
+		  "$2a$06$DCq7YPn5Rq63x1Lad4cll.",
+		  "$2a$06$DCq7YPn5Rq63x1Lad4cll.TV4S6ytwfsfvkgY8jIucDrjc8deX1s." },
+		{ "a",
+		  "$2a$06$m0CrhHm10qJ3lXRY.5zDGO",
+		  "$2a$06$m0CrhHm10qJ3lXRY.5zDGO3rS2KdeeWLuGmsfGlMfOxih58VYVfxe" },
+		{ "abc",
+		  "$2a$06$If6bvum7DFjUnE9p2uDeDu",
+		  "$2a$06$If6bvum7DFjUnE9p2uDeDu0YHzrHM6tf.iqN8.yx.jNN1ILEf7h0i" },
+		{ "abcdefghijklmnopqrstuvwxyz",
+		  "$2a$06$.rCVZVOThsIa97pEDOxvGu",
+		  "$2a$06$.rCVZVOThsIa97pEDOxvGuRRgzG64bvtJ0938xuqzv18d3ZpQhstC" },
+		{ "~!@#$%^&*()      ~!@#$%^&*()PNBFRD",
+		  "$2a$06$fPIsBO8qRqkjj273rfaOI.",
+		  "$2a$06$fPIsBO8qRqkjj273rfaOI.HtSV9jLDpTbZn782DC6/t7qT67P6FfO" },
+	};
+
+	// Passwords that exercise the key schedule: empty, exactly and over
+	// 72 bytes (only the first 72 count), multi-byte UTF-8
+	String passwords[] = {
+		"",
+		"x",
+		"password",
+		repeat('a', 71),
+		repeat('a', 72),
+		repeat('a', 73),
+		repeat('a', 72) + "tail ignored",
+		repeat('è', 40),
+		"pàsswòrd",
+		"パスワード",
+		"🔑 chiave",
+	};
+
+	int costs[] = { 4, 5, 6 };
+
+	private static String repeat(char c, int n) {
+		StringBuilder sb = new StringBuilder(n);
+		for (int i = 0; i < n; i++)
+			sb.append(c);
+		return sb.toString();
+	}
+
+	/**
+	 * Test FastBCrypt.hashpw against the known answers
+	 */
+	public void testHashpwVectors() {
+		for (int i = 0; i < test_vectors.length; i++) {
+			String plain = test_vectors[i][0];
+			String salt = test_vectors[i][1];
+			String expected = test_vectors[i][2];
+			assertEquals(expected, FastBCrypt.hashpw(plain, salt));
+			assertEquals(expected, BCrypt.hashpw(plain, salt));
+		}
+	}
+
+	/**
+	 * Test that FastBCrypt.hashpw matches BCrypt.hashpw over several
+	 * passwords, salts and costs
+	 */
+	public void testHashpwMatchesBCrypt() {
+		SecureRandom random = new SecureRandom(new byte[] { 42 });
+		for (int cost : costs) {
+			for (int s = 0; s < 3; s++) {
+				String salt = BCrypt.gensalt(cost, random);
+				for (String plain : passwords)
+					assertEquals(plain + " / " + salt, BCrypt.hashpw(plain, salt), FastBCrypt.hashpw(plain, salt));
+			}
+		}
+	}
+
+	/**
+	 * Test FastBCrypt.checkpw on hashes computed by BCrypt, and the other
+	 * way round
+	 */
+	public void testCheckpwInterop() {
+		for (String plain : passwords) {
+			String hashed = BCrypt.hashpw(plain, BCrypt.gensalt(4));
+			assertTrue(FastBCrypt.checkpw(plain, hashed));
+			// Prepend, so that passwords over 72 bytes still differ
+			assertFalse(FastBCrypt.checkpw("z" + plain, hashed));
+
+			String fast = FastBCrypt.hashpw(plain, BCrypt.gensalt(4));
+			assertTrue(BCrypt.checkpw(plain, fast));
+			assertFalse(BCrypt.checkpw("z" + plain, fast));
+		}
+	}
+
+	/**
+	 * Test that bytes past the 72nd do not change the hash, as in BCrypt
+	 */
+	public void testLongPasswordTruncated() {
+		String salt = BCrypt.gensalt(4);
+		assertEquals(FastBCrypt.hashpw(repeat('a', 72), salt),
+		    FastBCrypt.hashpw(repeat('a', 72) + "b", salt));
+		assertFalse(FastBCrypt.hashpw(repeat('a', 71), salt).equals(
+		    FastBCrypt.hashpw(repeat('a', 72), salt)));
+	}
+
+	/**
+	 * Test FastBCrypt.hashpw on many threads at once, each reusing its
+	 * own per-thread state across hashes of different lengths and costs
+	 */
+	public void testConcurrentHashpw() throws Exception {
+		final int threads = 8;
+		final int rounds = 12;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<String>> failures = new ArrayList<Future<String>>();
+			for (int t = 0; t < threads; t++) {
+				final int seed = t;
+				failures.add(executor.submit(new Callable<String>() {
+					public String call() {
+						SecureRandom random = new SecureRandom(new byte[] { (byte) seed });
+						for (int r = 0; r < rounds; r++) {
+							String plain = passwords[(seed + r) % passwords.length];
+							String salt = BCrypt.gensalt(costs[r % costs.length], random);
+							String expected = BCrypt.hashpw(plain, salt);
+							String actual = FastBCrypt.hashpw(plain, salt);
+							if (!expected.equals(actual))
+								return plain + " / " + salt + ": " + actual + " != " + expected;
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<String> failure : failures)
+				assertNull(failure.get());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+}
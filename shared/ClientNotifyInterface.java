@@ -2,11 +2,13 @@ package shared;
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
 
 public interface ClientNotifyInterface extends Remote {
     
     public static final String FOLLOW = "FOLLOW";
     public static final String UNFOLLOW = "UNFOLLOW";
+    public static final String FOLLOWERS = "FOLLOWERS"; // Elenco completo dei follower, inviato al login sulla connessione TCP
 
     public abstract String getUser()
     throws RemoteException;
@@ -14,4 +16,14 @@ public interface ClientNotifyInterface extends Remote {
     public abstract boolean notify(String notify)
     throws RemoteException;
 
+    /**
+     * Notifica più eventi con una sola chiamata, da applicare nell'ordine della lista
+     * 
+     * @param notifications Notifiche nella forma FOLLOW/UNFOLLOW;NomeFollower;
+     * @return true se tutte le notifiche sono state applicate, false altrimenti
+     * @throws RemoteException
+     */
+    public abstract boolean notifyBatch(List<String> notifications)
+    throws RemoteException;
+
 }
@@ -12,6 +12,8 @@ public enum Communication {
     NotLogged("L'utente non ha effettuato il login"),
     EmptySet("L'insieme è vuoto"),
     OperationNotSupported("L'operazione non è supportata dal server"),
+    RateLimited("429 Troppe richieste, riprovare più tardi"),
+    ServerBusy("503 Server sovraccarico, riprovare più tardi"),
     Failure("400 Errore generico del server");
 
     private String message;
@@ -0,0 +1,102 @@
+package shared;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Allineamento dei follower restituito al client quando si registra alle callback.
+ * Se il client conosce già i follower a una versione ancora presente nello storico del server riceve soltanto
+ * le modifiche successive, altrimenti riceve l'elenco completo.
+ * La versione vale solo all'interno dell'epoca in cui è stata generata: al riavvio del server l'epoca cambia
+ * e il client riceve di nuovo l'elenco completo
+ */
+public class FollowerSync implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public static final long UNKNOWN = -1; // Versione da indicare quando il client non conosce i follower
+
+    private final long epoch; // Epoca del server in cui è valida la versione
+    private final long version; // Versione dei follower dopo l'allineamento
+    private final Set<String> followers; // Elenco completo dei follower, null se l'allineamento contiene solo le modifiche
+    private final List<String> changes; // Modifiche nella forma FOLLOW/UNFOLLOW;NomeFollower; dalla più vecchia, null se c'è l'elenco completo
+
+    private FollowerSync(long epoch, long version, Set<String> followers, List<String> changes){
+        this.epoch = epoch;
+        this.version = version;
+        this.followers = followers;
+        this.changes = changes;
+    }
+
+    /**
+     * Crea un allineamento con l'elenco completo dei follower
+     *
+     * @param epoch Epoca del server
+     * @param version Versione dei follower
+     * @param followers Elenco completo dei follower
+     * @return L'allineamento
+     */
+    public static FollowerSync snapshot(long epoch, long version, Set<String> followers){
+        if ( followers == null )
+            throw new NullPointerException();
+
+        return new FollowerSync(epoch, version, followers, null);
+    }
+
+    /**
+     * Crea un allineamento con le sole modifiche successive alla versione nota al client
+     *
+     * @param epoch Epoca del server
+     * @param version Versione dei follower dopo le modifiche
+     * @param changes Modifiche nella forma FOLLOW/UNFOLLOW;NomeFollower;, dalla più vecchia
+     * @return L'allineamento
+     */
+    public static FollowerSync delta(long epoch, long version, List<String> changes){
+        if ( changes == null )
+            throw new NullPointerException();
+
+        return new FollowerSync(epoch, version, null, changes);
+    }
+
+    public long getEpoch(){
+        return epoch;
+    }
+
+    public long getVersion(){
+        return version;
+    }
+
+    /**
+     * @return true se l'allineamento contiene l'elenco completo dei follower
+     */
+    public boolean isSnapshot(){
+        return followers != null;
+    }
+
+    /**
+     * Applica l'allineamento ai follower noti al client
+     *
+     * @param known Follower noti al client, ignorati se l'allineamento contiene l'elenco completo
+     * @return I follower aggiornati
+     */
+    public Set<String> apply(Set<String> known){
+        if ( isSnapshot() || known == null )
+            return new HashSet<String>(followers != null ? followers : Collections.emptySet());
+
+        synchronized ( known ){
+            for ( String change : changes ){
+                String[] token = change.split(";");
+                if ( token.length < 2 )
+                    continue;
+                if ( token[0].equals(ClientNotifyInterface.FOLLOW) )
+                    known.add(token[1]);
+                else if ( token[0].equals(ClientNotifyInterface.UNFOLLOW) )
+                    known.remove(token[1]);
+            }
+        }
+        return known;
+    }
+
+}
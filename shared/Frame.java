@@ -0,0 +1,177 @@
+package shared;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Classe che descrive il formato dei messaggi scambiati tra client e server sulla connessione TCP.
+ * Ogni messaggio (richiesta o risposta) è preceduto da un'intestazione con la lunghezza in byte del contenuto
+ * e l'identificativo della richiesta, così chi riceve sa esattamente quando il messaggio è completo
+ * e il client può inviare più richieste senza attendere le risposte, abbinandole poi tramite l'identificativo.
+ * Il contenuto è descritto da RequestCodec.
+ *
+ * Se il client lo ha richiesto con HELLO, le risposte più grandi vengono compresse con deflate: il bit più alto
+ * della lunghezza lo segnala e il contenuto è formato dalla lunghezza originale seguita dai dati compressi.
+ *
+ * Se il client lo ha richiesto con HELLO, il server invia sulla stessa connessione anche le notifiche
+ * (follow e unfollow) al posto delle callback RMI: il secondo bit più alto della lunghezza indica che il messaggio
+ * è una notifica e non la risposta a una richiesta, il contenuto ha il formato di una risposta con una stringa per notifica
+ */
+public final class Frame {
+    public static final int HEADER_SIZE = 2 * Integer.BYTES; // Dimensione dell'intestazione (lunghezza del contenuto e identificativo)
+    public static final int MAX_PAYLOAD = 16 * 1024 * 1024; // Dimensione massima del contenuto di un messaggio
+    public static final int COMPRESSED = 0x80000000; // Bit della lunghezza che indica un contenuto compresso
+    public static final int PUSH = 0x40000000; // Bit della lunghezza che indica una notifica inviata dal server senza richiesta
+    public static final int CAPABILITY_COMPRESSION = 1; // Funzionalità negoziabile con HELLO: risposte compresse
+    public static final int CAPABILITY_PUSH = 2; // Funzionalità negoziabile con HELLO: notifiche sulla connessione TCP invece che con RMI
+
+    private final int requestId; // Identificativo della richiesta, la risposta riporta quello della richiesta a cui si riferisce
+    private final byte[] payload; // Contenuto del messaggio
+    private final boolean compressed; // true se il contenuto è compresso
+    private final boolean push; // true se il messaggio è una notifica del server e non una risposta
+
+    public Frame(int requestId, byte[] payload){
+        this(requestId, payload, false, false);
+    }
+
+    public Frame(int requestId, byte[] payload, boolean compressed, boolean push){
+        this.requestId = requestId;
+        this.payload = payload;
+        this.compressed = compressed;
+        this.push = push;
+    }
+
+    public int getRequestId(){
+        return requestId;
+    }
+
+    public byte[] getPayload(){
+        return payload;
+    }
+
+    public boolean isCompressed(){
+        return compressed;
+    }
+
+    public boolean isPush(){
+        return push;
+    }
+
+    /**
+     * Restituisce il contenuto del messaggio, decomprimendolo se necessario
+     *
+     * @param inflater Inflater da utilizzare, viene reimpostato e può essere riutilizzato per i messaggi successivi
+     * @return Il contenuto originale del messaggio
+     * @throws IOException Se il contenuto compresso non è valido
+     */
+    public byte[] getPayload(Inflater inflater)
+    throws IOException {
+        if ( !compressed )
+            return payload;
+
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        if ( buffer.remaining() < Integer.BYTES )
+            throw new IOException("Messaggio compresso non valido");
+        int length = buffer.getInt();
+        if ( length < 0 || length > MAX_PAYLOAD )
+            throw new IOException("Lunghezza del messaggio non valida: " + length);
+
+        byte[] original = new byte[length];
+        inflater.reset();
+        inflater.setInput(payload, Integer.BYTES, payload.length - Integer.BYTES);
+        try{
+            int read = 0;
+            while ( read < length && !inflater.finished() ){
+                int n = inflater.inflate(original, read, length - read);
+                if ( n == 0 && ( inflater.needsInput() || inflater.needsDictionary() ) )
+                    break;
+                read += n;
+            }
+            if ( read != length || !inflater.finished() )
+                throw new IOException("Messaggio compresso non valido");
+        } catch ( DataFormatException e ){
+            throw new IOException("Messaggio compresso non valido", e);
+        }
+
+        return original;
+    }
+
+    /**
+     * Invia un messaggio sullo stream
+     *
+     * @param out Stream su cui scrivere
+     * @param requestId Identificativo della richiesta
+     * @param payload Contenuto del messaggio
+     * @throws IOException Se si verificano errori di scrittura o il messaggio è troppo grande
+     */
+    public static void write(DataOutputStream out, int requestId, byte[] payload)
+    throws IOException {
+        write(out, requestId, payload, false);
+    }
+
+    /**
+     * Invia un messaggio sullo stream, indicando se il contenuto è compresso
+     *
+     * @param out Stream su cui scrivere
+     * @param requestId Identificativo della richiesta
+     * @param payload Contenuto del messaggio, già compresso se compressed è true
+     * @param compressed true se il contenuto è compresso
+     * @throws IOException Se si verificano errori di scrittura o il messaggio è troppo grande
+     */
+    public static void write(DataOutputStream out, int requestId, byte[] payload, boolean compressed)
+    throws IOException {
+        write(out, requestId, payload, compressed, false);
+    }
+
+    /**
+     * Invia un messaggio sullo stream, indicando se il contenuto è compresso e se è una notifica
+     *
+     * @param out Stream su cui scrivere
+     * @param requestId Identificativo della richiesta, ignorato per le notifiche
+     * @param payload Contenuto del messaggio, già compresso se compressed è true
+     * @param compressed true se il contenuto è compresso
+     * @param push true se il messaggio è una notifica del server
+     * @throws IOException Se si verificano errori di scrittura o il messaggio è troppo grande
+     */
+    public static void write(DataOutputStream out, int requestId, byte[] payload, boolean compressed, boolean push)
+    throws IOException {
+        if ( payload.length > MAX_PAYLOAD )
+            throw new IOException("Messaggio troppo grande: " + payload.length + " byte");
+
+        int length = payload.length;
+        if ( compressed )
+            length |= COMPRESSED;
+        if ( push )
+            length |= PUSH;
+        out.writeInt(length);
+        out.writeInt(requestId);
+        out.write(payload);
+        out.flush();
+    }
+
+    /**
+     * Legge un messaggio dallo stream, bloccandosi finché non è arrivato per intero
+     *
+     * @param in Stream da cui leggere
+     * @return Il messaggio letto
+     * @throws IOException Se si verificano errori di lettura o l'intestazione non è valida
+     */
+    public static Frame read(DataInputStream in)
+    throws IOException {
+        int length = in.readInt();
+        boolean compressed = ( length & COMPRESSED ) != 0;
+        boolean push = ( length & PUSH ) != 0;
+        length &= ~( COMPRESSED | PUSH );
+        if ( length > MAX_PAYLOAD )
+            throw new IOException("Lunghezza del messaggio non valida: " + length);
+
+        int requestId = in.readInt();
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return new Frame(requestId, payload, compressed, push);
+    }
+}
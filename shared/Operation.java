@@ -19,5 +19,7 @@ public enum Operation {
     FOLLOW_USER,
     UNFOLLOW_USER,
     REWIN_POST,
-    RATE_POST;
+    RATE_POST,
+    BATCH, // Insieme di richieste elaborate una dopo l'altra con un solo scambio di messaggi
+    HELLO; // Negoziazione delle funzionalità opzionali del protocollo, come la compressione delle risposte
 }
@@ -21,6 +21,18 @@ public interface RMIServiceInterface extends Remote {
     public abstract Set<String> registerForCallback( ClientNotifyInterface user)
     throws RemoteException;
 
+    /**
+     * Al momento del login, il client si registra al servizio di callback e allinea i follower già noti
+     * 
+     * @param user L'utente che effettua il login
+     * @param epoch Epoca in cui il client ha ricevuto i follower, ignorata se version è FollowerSync.UNKNOWN
+     * @param version Versione dei follower nota al client, FollowerSync.UNKNOWN se non li conosce
+     * @return Le modifiche successive alla versione del client o l'elenco completo dei follower, null se l'utente non esiste
+     * @throws RemoteException
+     */
+    public abstract FollowerSync registerForCallback(ClientNotifyInterface user, long epoch, long version)
+    throws RemoteException;
+
     /**
      * Al momento del logout, il client cancella l'utente dal servizio di callback
      * 
@@ -0,0 +1,239 @@
+package shared;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Classe che descrive il contenuto binario delle richieste e delle risposte scambiate sulla connessione TCP.
+ *
+ * Una richiesta è formata dall'operazione (un byte, l'ordinale di Operation) seguita dai campi
+ * previsti dall'operazione: i numeri occupano quattro byte, le stringhe sono precedute dalla loro lunghezza in byte.
+ * Il server legge i campi direttamente dal buffer, nell'ordine in cui il client li ha scritti,
+ * quindi le stringhe possono contenere qualsiasi carattere, compresi ';' e '\n'.
+ *
+ * Una risposta è una sequenza di stringhe preceduta dal loro numero: normalmente l'esito dell'operazione
+ * e gli attributi restituiti dal server.
+ *
+ * Una richiesta BATCH contiene il numero di richieste seguito dalle richieste stesse, ognuna preceduta dalla sua lunghezza;
+ * la risposta contiene l'esito complessivo seguito da esito e attributi di ogni richiesta, nello stesso ordine.
+ * Le operazioni paginate e il login non sono ammessi in una richiesta BATCH: la risposta non riporta il cursore
+ * delle prime, e il secondo calcola BCrypt
+ */
+public final class RequestCodec {
+    private static final Operation[] OPERATIONS = Operation.values(); // Operazioni indicizzate per ordinale
+
+    private RequestCodec(){}
+
+    /**
+     * Classe per comporre una richiesta campo per campo
+     */
+    public static final class Builder {
+        private final ByteArrayOutputStream bytes;
+        private final DataOutputStream out;
+
+        private Builder(Operation operation){
+            bytes = new ByteArrayOutputStream();
+            out = new DataOutputStream(bytes);
+            try{
+                out.writeByte(operation.ordinal());
+            } catch ( IOException e ){
+                // Non si verifica scrivendo su un array in memoria
+                throw new IllegalStateException(e);
+            }
+        }
+
+        public Builder putInt(int value){
+            try{
+                out.writeInt(value);
+            } catch ( IOException e ){
+                throw new IllegalStateException(e);
+            }
+            return this;
+        }
+
+        public Builder putString(String value){
+            byte[] encoded = value.getBytes(StandardCharsets.UTF_8);
+            try{
+                out.writeInt(encoded.length);
+                out.write(encoded);
+            } catch ( IOException e ){
+                throw new IllegalStateException(e);
+            }
+            return this;
+        }
+
+        /**
+         * Aggiunge una richiesta completa come campo, usato per comporre una richiesta BATCH
+         *
+         * @param request Richiesta già codificata
+         * @return Il builder stesso
+         */
+        public Builder putRequest(byte[] request){
+            try{
+                out.writeInt(request.length);
+                out.write(request);
+            } catch ( IOException e ){
+                throw new IllegalStateException(e);
+            }
+            return this;
+        }
+
+        public byte[] toByteArray(){
+            return bytes.toByteArray();
+        }
+    }
+
+    /**
+     * Inizia la composizione di una richiesta
+     *
+     * @param operation Operazione richiesta
+     * @return Il builder su cui aggiungere i campi dell'operazione
+     */
+    public static Builder request(Operation operation){
+        if ( operation == null )
+            throw new NullPointerException();
+
+        return new Builder(operation);
+    }
+
+    /**
+     * Legge l'operazione all'inizio di una richiesta
+     *
+     * @param request Buffer posizionato all'inizio della richiesta
+     * @return L'operazione richiesta, null se il codice non corrisponde a nessuna operazione
+     * @throws IllegalArgumentException Se la richiesta è vuota
+     */
+    public static Operation readOperation(ByteBuffer request)
+    throws IllegalArgumentException {
+        if ( !request.hasRemaining() )
+            throw new IllegalArgumentException("Richiesta vuota");
+
+        int code = request.get() & 0xFF;
+        return code < OPERATIONS.length ? OPERATIONS[code] : null;
+    }
+
+    /**
+     * Restituisce l'operazione all'inizio di una richiesta senza consumarla
+     *
+     * @param request Buffer posizionato all'inizio della richiesta
+     * @return L'operazione richiesta, null se la richiesta è vuota o il codice non corrisponde a nessuna operazione
+     */
+    public static Operation peekOperation(ByteBuffer request){
+        if ( !request.hasRemaining() )
+            return null;
+
+        int code = request.get(request.position()) & 0xFF;
+        return code < OPERATIONS.length ? OPERATIONS[code] : null;
+    }
+
+    /**
+     * Legge il prossimo campo numerico di una richiesta
+     *
+     * @param request Buffer posizionato sul campo
+     * @return Il valore del campo
+     * @throws IllegalArgumentException Se la richiesta non contiene il campo
+     */
+    public static int readInt(ByteBuffer request)
+    throws IllegalArgumentException {
+        try{
+            return request.getInt();
+        } catch ( BufferUnderflowException e ){
+            throw new IllegalArgumentException("Campo numerico mancante");
+        }
+    }
+
+    /**
+     * Legge il prossimo campo stringa di una richiesta, decodificandolo direttamente dal buffer
+     *
+     * @param request Buffer posizionato sul campo
+     * @return Il valore del campo
+     * @throws IllegalArgumentException Se la richiesta non contiene il campo o la lunghezza non è valida
+     */
+    public static String readString(ByteBuffer request)
+    throws IllegalArgumentException {
+        int length = readInt(request);
+        if ( length < 0 || length > request.remaining() )
+            throw new IllegalArgumentException("Lunghezza del campo non valida: " + length);
+
+        String value;
+        if ( request.hasArray() ){
+            // Decodifico direttamente dall'array del buffer, senza copie intermedie
+            value = new String(request.array(), request.arrayOffset() + request.position(), length, StandardCharsets.UTF_8);
+            request.position(request.position() + length);
+        }
+        else {
+            byte[] bytes = new byte[length];
+            request.get(bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        return value;
+    }
+
+    /**
+     * Legge la prossima richiesta contenuta in una richiesta BATCH, senza copiarla
+     *
+     * @param request Buffer posizionato sul campo
+     * @return Un buffer che condivide il contenuto della richiesta e termina dove termina la richiesta contenuta
+     * @throws IllegalArgumentException Se la richiesta non contiene il campo o la lunghezza non è valida
+     */
+    public static ByteBuffer readRequest(ByteBuffer request)
+    throws IllegalArgumentException {
+        int length = readInt(request);
+        if ( length < 0 || length > request.remaining() )
+            throw new IllegalArgumentException("Lunghezza della richiesta non valida: " + length);
+
+        ByteBuffer inner = request.slice();
+        inner.limit(length);
+        request.position(request.position() + length);
+        return inner;
+    }
+
+    /**
+     * Codifica una risposta del server
+     *
+     * @param reply Stringhe che compongono la risposta
+     * @return Il contenuto del messaggio di risposta
+     */
+    public static byte[] encodeReply(String[] reply){
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try{
+            out.writeInt(reply.length);
+            for ( String part : reply ){
+                byte[] encoded = part.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(encoded.length);
+                out.write(encoded);
+            }
+        } catch ( IOException e ){
+            // Non si verifica scrivendo su un array in memoria
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decodifica una risposta del server
+     *
+     * @param reply Contenuto del messaggio di risposta
+     * @return Le stringhe che compongono la risposta
+     * @throws IllegalArgumentException Se la risposta non è ben formata
+     */
+    public static String[] decodeReply(byte[] reply)
+    throws IllegalArgumentException {
+        ByteBuffer buffer = ByteBuffer.wrap(reply);
+        int count = readInt(buffer);
+        if ( count < 0 || count > buffer.remaining() / Integer.BYTES )
+            throw new IllegalArgumentException("Numero di campi non valido: " + count);
+
+        String[] parts = new String[count];
+        for ( int i = 0; i < count; i++ )
+            parts[i] = readString(buffer);
+
+        return parts;
+    }
+}
@@ -0,0 +1,212 @@
+package server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.rmi.RemoteException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import shared.ClientNotifyInterface;
+import shared.FollowerSync;
+
+/**
+ * Test della coda delle notifiche RMI: raccolta nella finestra, annullamento degli eventi opposti rispetto
+ * ai follower inviati alla registrazione, nuovi tentativi e limite della coda.
+ * Il servizio RMI è sostituito da uno che restituisce uno stub locale, senza esportare oggetti
+ */
+public class CallbackDispatcherTest {
+    private final static long WINDOW = 100; // Millisecondi di raccolta, abbastanza perché gli eventi del test finiscano insieme
+    private final static long WAIT = 5000; // Millisecondi massimi di attesa di una consegna
+
+    private static final String FOLLOW = ClientNotifyInterface.FOLLOW;
+    private static final String UNFOLLOW = ClientNotifyInterface.UNFOLLOW;
+
+    /**
+     * Stub locale che registra i gruppi di notifiche ricevuti e fallisce un numero stabilito di volte
+     */
+    private static class RecordingStub implements ClientNotifyInterface {
+        private final BlockingQueue<List<String>> batches = new LinkedBlockingQueue<List<String>>();
+        private final AtomicInteger failures = new AtomicInteger(0);
+
+        public String getUser(){
+            return "alice";
+        }
+
+        public boolean notify(String notify){
+            return notifyBatch(Arrays.asList(notify));
+        }
+
+        public boolean notifyBatch(List<String> notifications){
+            if ( failures.getAndDecrement() > 0 )
+                throw new IllegalStateException("client non raggiungibile");
+            batches.add(notifications);
+            return true;
+        }
+    }
+
+    /**
+     * Servizio che restituisce lo stub di prova e una versione dei follower impostata dal test
+     */
+    private static class FakeService extends WinsomeRMIService {
+        private static final long serialVersionUID = 1L;
+
+        private volatile ClientNotifyInterface stub;
+        private volatile long snapshot = FollowerSync.UNKNOWN;
+
+        private FakeService(ClientNotifyInterface stub){
+            super(null, null);
+            this.stub = stub;
+        }
+
+        @Override
+        protected ClientNotifyInterface getCallback(String username){
+            return stub;
+        }
+
+        @Override
+        protected long getSnapshotVersion(String username){
+            return snapshot;
+        }
+
+        @Override
+        protected boolean removeCallback(String username, ClientNotifyInterface removed){
+            stub = null;
+            return true;
+        }
+    }
+
+    private RecordingStub stub = new RecordingStub();
+    private FakeService service = new FakeService(stub);
+    private CallbackDispatcher dispatcher;
+
+    private CallbackDispatcher dispatcher(int capacity, int attempts){
+        dispatcher = new CallbackDispatcher(service, 2, capacity, attempts, 10, WINDOW, 100);
+        return dispatcher;
+    }
+
+    private List<String> nextBatch()
+    throws InterruptedException {
+        return stub.batches.poll(WAIT, TimeUnit.MILLISECONDS);
+    }
+
+    private void awaitEmpty()
+    throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WAIT;
+        while ( dispatcher.getQueued() != 0 && System.currentTimeMillis() < deadline )
+            Thread.sleep(5);
+        assertEquals(0, dispatcher.getQueued());
+    }
+
+    @After
+    public void terminate()
+    throws InterruptedException {
+        if ( dispatcher != null )
+            dispatcher.terminate(1000);
+    }
+
+    @Test
+    public void eventsWithinWindowAreDeliveredTogether()
+    throws InterruptedException {
+        dispatcher(100, 1);
+        dispatcher.submit("alice", FOLLOW, "bob", 1);
+        dispatcher.submit("alice", FOLLOW, "carol", 2);
+
+        assertEquals(Arrays.asList("FOLLOW;bob;", "FOLLOW;carol;"), nextBatch());
+        awaitEmpty();
+    }
+
+    @Test
+    public void oppositeEventsAfterSnapshotCancel()
+    throws InterruptedException {
+        dispatcher(100, 1);
+        service.snapshot = 0;
+        dispatcher.submit("alice", FOLLOW, "bob", 1);
+        dispatcher.submit("alice", UNFOLLOW, "bob", 2);
+        dispatcher.submit("alice", FOLLOW, "carol", 3);
+
+        assertEquals(Arrays.asList("FOLLOW;carol;"), nextBatch());
+        awaitEmpty();
+    }
+
+    @Test
+    public void eventCoveredBySnapshotIsNotCancelled()
+    throws InterruptedException {
+        dispatcher(100, 1);
+        service.snapshot = 0;
+        dispatcher.submit("alice", FOLLOW, "bob", 1);
+        // Il client si registra e riceve i follower alla versione 1, che comprendono già bob
+        service.snapshot = 1;
+        dispatcher.submit("alice", UNFOLLOW, "bob", 2);
+
+        assertEquals(Arrays.asList("UNFOLLOW;bob;"), nextBatch());
+        awaitEmpty();
+    }
+
+    @Test
+    public void registrationInProgressPreventsCancelling()
+    throws InterruptedException {
+        dispatcher(100, 1);
+        service.snapshot = Long.MAX_VALUE;
+        dispatcher.submit("alice", FOLLOW, "bob", 1);
+        dispatcher.submit("alice", UNFOLLOW, "bob", 2);
+
+        assertEquals(Arrays.asList("UNFOLLOW;bob;"), nextBatch());
+        awaitEmpty();
+    }
+
+    @Test
+    public void repeatedEventIsDeliveredOnce()
+    throws InterruptedException {
+        dispatcher(100, 1);
+        dispatcher.submit("alice", FOLLOW, "bob", 1);
+        dispatcher.submit("alice", FOLLOW, "bob", 1);
+
+        assertEquals(Arrays.asList("FOLLOW;bob;"), nextBatch());
+        awaitEmpty();
+    }
+
+    @Test
+    public void failedDeliveryIsRetried()
+    throws InterruptedException {
+        dispatcher(100, 3);
+        stub.failures.set(2);
+        dispatcher.submit("alice", FOLLOW, "bob", 1);
+
+        assertEquals(Arrays.asList("FOLLOW;bob;"), nextBatch());
+        awaitEmpty();
+    }
+
+    @Test
+    public void unreachableClientIsRemoved()
+    throws InterruptedException {
+        dispatcher(100, 2);
+        stub.failures.set(Integer.MAX_VALUE);
+        dispatcher.submit("alice", FOLLOW, "bob", 1);
+
+        awaitEmpty();
+        assertNull(service.stub);
+        assertNull(stub.batches.poll());
+    }
+
+    @Test
+    public void fullQueueRejectsNewEvents()
+    throws InterruptedException {
+        dispatcher(2, 1);
+        assertTrue(dispatcher.submit("alice", FOLLOW, "bob", 1));
+        assertTrue(dispatcher.submit("alice", FOLLOW, "carol", 2));
+        assertFalse(dispatcher.submit("alice", FOLLOW, "dave", 3));
+
+        assertEquals(Arrays.asList("FOLLOW;bob;", "FOLLOW;carol;"), nextBatch());
+        awaitEmpty();
+    }
+}
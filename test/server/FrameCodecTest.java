@@ -0,0 +1,160 @@
+package server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.zip.Inflater;
+
+import org.junit.Test;
+
+import shared.Frame;
+import shared.RequestCodec;
+
+/**
+ * Test di andata e ritorno dei messaggi codificati dal worker e letti dal client, con i bit di compressione e di notifica
+ */
+public class FrameCodecTest {
+    private final static int BUFFER_SIZE = 64; // Buffer piccoli, così le risposte occupano più buffer del pool
+
+    /**
+     * Codifica una risposta con FrameCodec e la rilegge come farebbe il client
+     */
+    private static Frame encodeAndRead(FrameCodec codec, int requestId, String[] reply, boolean compress, boolean push)
+    throws IOException {
+        Queue<ByteBuffer> output = new ArrayDeque<ByteBuffer>();
+        int sent = codec.encode(requestId, reply, output, compress, push);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for ( ByteBuffer buffer : output ){
+            byte[] chunk = new byte[buffer.remaining()];
+            buffer.get(chunk);
+            bytes.write(chunk);
+        }
+        assertEquals(sent, bytes.size());
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        Frame frame = Frame.read(in);
+        assertEquals(-1, in.read());
+        return frame;
+    }
+
+    private static String repeat(String value, int times){
+        StringBuilder builder = new StringBuilder();
+        for ( int i = 0; i < times; i++ )
+            builder.append(value);
+        return builder.toString();
+    }
+
+    @Test
+    public void smallReplyIsSentAsIs()
+    throws IOException {
+        FrameCodec codec = new FrameCodec(new BufferPool(BUFFER_SIZE, 16), 1024);
+        String[] reply = { "200 OK", "attributi" };
+        Frame frame = encodeAndRead(codec, 17, reply, true, false);
+
+        assertEquals(17, frame.getRequestId());
+        assertFalse(frame.isCompressed());
+        assertFalse(frame.isPush());
+        assertArrayEquals(reply, RequestCodec.decodeReply(frame.getPayload(new Inflater())));
+    }
+
+    @Test
+    public void replySpanningBuffersKeepsMultibyteCharacters()
+    throws IOException {
+        FrameCodec codec = new FrameCodec(new BufferPool(BUFFER_SIZE, 16), 0);
+        String[] reply = { "200 OK", repeat("è€パ", 50), "", repeat(";", 100) };
+        Frame frame = encodeAndRead(codec, 3, reply, false, false);
+
+        assertFalse(frame.isCompressed());
+        assertArrayEquals(reply, RequestCodec.decodeReply(frame.getPayload(new Inflater())));
+    }
+
+    @Test
+    public void largeReplyIsCompressedWhenRequested()
+    throws IOException {
+        FrameCodec codec = new FrameCodec(new BufferPool(BUFFER_SIZE, 16), 256);
+        String[] reply = { "200 OK", repeat("post ripetuto; ", 200) };
+        Frame frame = encodeAndRead(codec, 5, reply, true, false);
+
+        assertTrue(frame.isCompressed());
+        assertFalse(frame.isPush());
+        assertTrue(frame.getPayload().length < RequestCodec.encodeReply(reply).length);
+        assertArrayEquals(reply, RequestCodec.decodeReply(frame.getPayload(new Inflater())));
+    }
+
+    @Test
+    public void largeReplyIsNotCompressedUnlessRequested()
+    throws IOException {
+        FrameCodec codec = new FrameCodec(new BufferPool(BUFFER_SIZE, 16), 256);
+        String[] reply = { "200 OK", repeat("post ripetuto; ", 200) };
+        Frame frame = encodeAndRead(codec, 5, reply, false, false);
+
+        assertFalse(frame.isCompressed());
+        assertArrayEquals(RequestCodec.encodeReply(reply), frame.getPayload());
+    }
+
+    @Test
+    public void incompressibleReplyFallsBackToOriginal()
+    throws IOException {
+        FrameCodec codec = new FrameCodec(new BufferPool(BUFFER_SIZE, 16), 16);
+        // Pochi byte tutti diversi: la versione compressa, con la lunghezza originale, è più lunga
+        String[] reply = { "abcdefghijklmnopqrstuvwxyz0123456789" };
+        Frame frame = encodeAndRead(codec, 8, reply, true, false);
+
+        assertFalse(frame.isCompressed());
+        assertArrayEquals(reply, RequestCodec.decodeReply(frame.getPayload(new Inflater())));
+    }
+
+    @Test
+    public void pushBitSurvivesWithAndWithoutCompression()
+    throws IOException {
+        FrameCodec codec = new FrameCodec(new BufferPool(BUFFER_SIZE, 16), 256);
+        String[] notification = { "FOLLOW;alice;" };
+        Frame frame = encodeAndRead(codec, 0, notification, true, true);
+        assertTrue(frame.isPush());
+        assertFalse(frame.isCompressed());
+        assertArrayEquals(notification, RequestCodec.decodeReply(frame.getPayload(new Inflater())));
+
+        String[] followers = { "FOLLOWERS;" + repeat("follower;", 100) };
+        frame = encodeAndRead(codec, 0, followers, true, true);
+        assertTrue(frame.isPush());
+        assertTrue(frame.isCompressed());
+        assertArrayEquals(followers, RequestCodec.decodeReply(frame.getPayload(new Inflater())));
+    }
+
+    @Test
+    public void blockingWriteMatchesFrameRead()
+    throws IOException {
+        byte[] payload = RequestCodec.encodeReply(new String[]{ "UNFOLLOW;bob;" });
+        for ( int flags = 0; flags < 4; flags++ ){
+            boolean compressed = ( flags & 1 ) != 0;
+            boolean push = ( flags & 2 ) != 0;
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            Frame.write(new DataOutputStream(bytes), 99, payload, compressed, push);
+
+            Frame frame = Frame.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+            assertEquals(99, frame.getRequestId());
+            assertEquals(compressed, frame.isCompressed());
+            assertEquals(push, frame.isPush());
+            assertArrayEquals(payload, frame.getPayload());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void corruptCompressedPayloadIsRejected()
+    throws IOException {
+        ByteBuffer payload = ByteBuffer.allocate(Integer.BYTES + 3);
+        payload.putInt(100).put(new byte[]{ 1, 2, 3 });
+        new Frame(1, payload.array(), true, false).getPayload(new Inflater());
+    }
+}
@@ -0,0 +1,86 @@
+package server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Test degli intervalli dell'istogramma e dei percentili calcolati sulle istantanee
+ */
+public class LatencyHistogramTest {
+    private final static long MAX_VALUE = 1L << 40; // Come in LatencyHistogram
+    private final static int LAST = LatencyHistogram.index(MAX_VALUE); // Ultimo intervallo
+
+    @Test
+    public void smallValuesAreExact(){
+        for ( long value = 0; value < 32; value++ ){
+            assertEquals(value, LatencyHistogram.index(value));
+            assertEquals(value, LatencyHistogram.highest(( int ) value));
+        }
+    }
+
+    @Test
+    public void highestIsTheLastValueOfEachInterval(){
+        for ( int i = 0; i < LAST; i++ ){
+            long highest = LatencyHistogram.highest(i);
+            assertEquals("highest(" + i + ")", i, LatencyHistogram.index(highest));
+            assertEquals("highest(" + i + ") + 1", i + 1, LatencyHistogram.index(highest + 1));
+        }
+    }
+
+    @Test
+    public void powersOfTwoStartANewInterval(){
+        for ( int bit = 5; bit <= 40; bit++ ){
+            long power = 1L << bit;
+            assertEquals(LatencyHistogram.index(power - 1) + 1, LatencyHistogram.index(power));
+        }
+    }
+
+    @Test
+    public void relativeErrorIsBounded(){
+        for ( long value = 1; value < MAX_VALUE; value = value * 3 / 2 + 1 ){
+            long highest = LatencyHistogram.highest(LatencyHistogram.index(value));
+            assertTrue(value + " -> " + highest, highest >= value);
+            assertTrue(value + " -> " + highest, ( highest - value ) * 16 < value);
+        }
+    }
+
+    @Test
+    public void valuesAboveMaximumShareTheLastInterval(){
+        assertEquals(LAST, LatencyHistogram.index(MAX_VALUE + 1));
+        assertEquals(LAST, LatencyHistogram.index(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void emptySnapshotHasNoPercentiles(){
+        LatencyHistogram.Snapshot snapshot = new LatencyHistogram().snapshot();
+        assertEquals(0, snapshot.getCount());
+        assertEquals(0, snapshot.getPercentile(50));
+    }
+
+    @Test
+    public void percentilesFallInTheRightInterval(){
+        LatencyHistogram histogram = new LatencyHistogram();
+        for ( long value = 1; value <= 1000; value++ )
+            histogram.record(value * 1000);
+
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(1000, snapshot.getCount());
+        assertEquals(1_000_000, snapshot.getMax());
+        long median = snapshot.getPercentile(50);
+        assertTrue(String.valueOf(median), median >= 500_000 && median < 500_000 * 17 / 16);
+        // Il percentile non supera il massimo registrato anche se l'intervallo va oltre
+        assertEquals(1_000_000, snapshot.getPercentile(100));
+        assertEquals(LatencyHistogram.highest(LatencyHistogram.index(1000)), snapshot.getPercentile(0));
+    }
+
+    @Test
+    public void negativeValuesAreRecordedAsZero(){
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(1, snapshot.getCount());
+        assertEquals(0, snapshot.getPercentile(100));
+    }
+}
@@ -0,0 +1,108 @@
+package server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import shared.Operation;
+import shared.RequestCodec;
+
+/**
+ * Test del limite di frequenza. La ricarica è così lenta che durante un test non torna nessun gettone,
+ * tranne dove serve un secchio che torni subito pieno
+ */
+public class RateLimiterTest {
+    private final static double SLOW = 0.001; // Gettoni al secondo, praticamente nessuna ricarica durante il test
+
+    private static RateLimiter limiter(int userCapacity, int addressCapacity, int maxBuckets){
+        return new RateLimiter(userCapacity, SLOW, addressCapacity, SLOW, maxBuckets, RateLimiter.defaultCosts());
+    }
+
+    private static byte[] batch(Operation... operations){
+        RequestCodec.Builder batch = RequestCodec.request(Operation.BATCH).putInt(operations.length);
+        for ( Operation operation : operations )
+            batch.putRequest(RequestCodec.request(operation).toByteArray());
+        return batch.toByteArray();
+    }
+
+    @Test
+    public void simpleRequestCostsItsOperation(){
+        RateLimiter limiter = limiter(100, 100, 10);
+        assertEquals(10, limiter.getCost(RequestCodec.request(Operation.LOGIN).putString("u").putString("p").toByteArray()));
+        assertEquals(1, limiter.getCost(RequestCodec.request(Operation.FOLLOW_USER).putString("u").toByteArray()));
+        assertEquals(0, limiter.getCost(RequestCodec.request(Operation.HELLO).putInt(0).toByteArray()));
+    }
+
+    @Test
+    public void batchCostsTheSumOfItsRequests(){
+        RateLimiter limiter = limiter(100, 100, 10);
+        assertEquals(1 + 1 + 3, limiter.getCost(batch(Operation.FOLLOW_USER, Operation.RATE_POST, Operation.LIST_USERS)));
+    }
+
+    @Test
+    public void requestsRejectedInsideBatchCostOne(){
+        RateLimiter limiter = limiter(100, 100, 10);
+        assertEquals(4, limiter.getCost(batch(Operation.LOGIN, Operation.SHOW_FEED, Operation.VIEW_BLOG, Operation.BATCH)));
+    }
+
+    @Test
+    public void malformedRequestCostsOne(){
+        RateLimiter limiter = limiter(100, 100, 10);
+        assertEquals(1, limiter.getCost(new byte[0]));
+        // BATCH che dichiara più richieste di quelle presenti
+        assertEquals(1, limiter.getCost(RequestCodec.request(Operation.BATCH).putInt(3).toByteArray()));
+    }
+
+    @Test
+    public void rejectsOnceAddressBucketIsEmpty(){
+        RateLimiter limiter = limiter(0, 10, 10);
+        assertTrue(limiter.tryAcquire("10.0.0.1", null, 10));
+        assertFalse(limiter.tryAcquire("10.0.0.1", null, 1));
+        // Gli altri indirizzi hanno il proprio secchio
+        assertTrue(limiter.tryAcquire("10.0.0.2", null, 10));
+    }
+
+    @Test
+    public void costAboveCapacityIsRejectedNotClamped(){
+        RateLimiter limiter = limiter(100, 100, 10);
+        assertFalse(limiter.tryAcquire("10.0.0.1", "alice", 101));
+        // Il rifiuto non ha consumato gettoni
+        assertTrue(limiter.tryAcquire("10.0.0.1", "alice", 100));
+    }
+
+    @Test
+    public void userRejectionRefundsAddress(){
+        RateLimiter limiter = limiter(5, 10, 10);
+        assertTrue(limiter.tryAcquire("10.0.0.1", "alice", 5));
+        // alice ha esaurito i suoi gettoni, il rifiuto non deve consumare quelli dell'indirizzo
+        assertFalse(limiter.tryAcquire("10.0.0.1", "alice", 5));
+        assertFalse(limiter.tryAcquire("10.0.0.1", "alice", 5));
+        assertTrue(limiter.tryAcquire("10.0.0.1", "bob", 5));
+        assertFalse(limiter.tryAcquire("10.0.0.1", "carol", 1));
+    }
+
+    @Test
+    public void zeroCostIsAlwaysAccepted(){
+        RateLimiter limiter = limiter(1, 1, 1);
+        assertTrue(limiter.tryAcquire("10.0.0.1", "alice", 1));
+        assertTrue(limiter.tryAcquire("10.0.0.1", "alice", 0));
+    }
+
+    @Test
+    public void newClientsRejectedWhenBucketsAreFullAndBusy(){
+        RateLimiter limiter = limiter(0, 10, 1);
+        assertTrue(limiter.tryAcquire("10.0.0.1", null, 1));
+        // L'unico secchio è in uso e non può essere scartato
+        assertFalse(limiter.tryAcquire("10.0.0.2", null, 1));
+    }
+
+    @Test
+    public void refilledBucketsAreEvictedForNewClients(){
+        // Ricarica istantanea: il secchio torna pieno subito e può essere scartato
+        RateLimiter limiter = new RateLimiter(0, 1, 10, 1e9, 1, RateLimiter.defaultCosts());
+        assertTrue(limiter.tryAcquire("10.0.0.1", null, 1));
+        assertTrue(limiter.tryAcquire("10.0.0.2", null, 1));
+    }
+}
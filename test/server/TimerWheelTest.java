@@ -0,0 +1,86 @@
+package server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Test della ruota temporizzata: l'istante corrente viene passato esplicitamente
+ */
+public class TimerWheelTest {
+
+    @Test
+    public void itemsExpireOnlyAfterTheirDeadline(){
+        TimerWheel<String> wheel = new TimerWheel<String>(8, 10, 0);
+        wheel.schedule("a", 25);
+        wheel.schedule("b", 45);
+        List<String> expired = new ArrayList<String>();
+
+        wheel.advance(20, expired::add);
+        assertTrue(expired.isEmpty());
+        wheel.advance(30, expired::add);
+        assertEquals(Arrays.asList("a"), expired);
+        wheel.advance(50, expired::add);
+        assertEquals(Arrays.asList("a", "b"), expired);
+    }
+
+    @Test
+    public void deadlinesSeveralRoundsAheadWaitForTheirRound(){
+        TimerWheel<String> wheel = new TimerWheel<String>(4, 10, 0);
+        // Stessa posizione di una scadenza a 15, ma tre giri dopo
+        wheel.schedule("late", 135);
+        List<String> expired = new ArrayList<String>();
+
+        for ( long now = 10; now < 130; now += 10 )
+            wheel.advance(now, expired::add);
+        assertTrue(expired.isEmpty());
+        wheel.advance(140, expired::add);
+        assertEquals(Arrays.asList("late"), expired);
+    }
+
+    @Test
+    public void longPauseExpiresEverythingOnce(){
+        TimerWheel<Integer> wheel = new TimerWheel<Integer>(4, 10, 0);
+        for ( int i = 0; i < 20; i++ )
+            wheel.schedule(i, i * 10 + 5);
+        List<Integer> expired = new ArrayList<Integer>();
+
+        wheel.advance(10_000, expired::add);
+        assertEquals(20, expired.size());
+    }
+
+    @Test
+    public void pastDeadlineExpiresAtNextTick(){
+        TimerWheel<String> wheel = new TimerWheel<String>(8, 10, 100);
+        wheel.schedule("past", 50);
+        List<String> expired = new ArrayList<String>();
+
+        wheel.advance(110, expired::add);
+        assertEquals(Arrays.asList("past"), expired);
+    }
+
+    @Test
+    public void expiredItemCanBeRescheduled(){
+        TimerWheel<String> wheel = new TimerWheel<String>(8, 10, 0);
+        wheel.schedule("idle", 15);
+        List<String> expired = new ArrayList<String>();
+
+        // La connessione era attiva: l'azione la reinserisce con una nuova scadenza
+        wheel.advance(20, item -> { expired.add(item); wheel.schedule(item, 55); });
+        assertEquals(1, expired.size());
+        wheel.advance(50, expired::add);
+        assertEquals(1, expired.size());
+        wheel.advance(60, expired::add);
+        assertEquals(2, expired.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsZeroSlots(){
+        new TimerWheel<String>(0, 10, 0);
+    }
+}
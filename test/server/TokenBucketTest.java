@@ -0,0 +1,79 @@
+package server;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Test del secchio di gettoni: l'istante corrente viene passato esplicitamente, quindi i test non dipendono dall'orologio
+ */
+public class TokenBucketTest {
+    private final static long SECOND = 1_000_000_000L;
+
+    @Test
+    public void fullBucketServesCapacityThenRejects(){
+        TokenBucket bucket = new TokenBucket(10, 1, 0);
+        assertTrue(bucket.tryConsume(4, 0));
+        assertTrue(bucket.tryConsume(6, 0));
+        assertFalse(bucket.tryConsume(1, 0));
+    }
+
+    @Test
+    public void refillsAtConfiguredRate(){
+        TokenBucket bucket = new TokenBucket(10, 2, 0);
+        assertTrue(bucket.tryConsume(10, 0));
+        // Dopo un secondo sono tornati esattamente due gettoni
+        assertFalse(bucket.tryConsume(3, SECOND));
+        assertTrue(bucket.tryConsume(2, SECOND));
+        assertFalse(bucket.tryConsume(1, SECOND));
+    }
+
+    @Test
+    public void idleBucketDoesNotExceedCapacity(){
+        TokenBucket bucket = new TokenBucket(5, 1, 0);
+        long later = 3600 * SECOND;
+        assertTrue(bucket.tryConsume(5, later));
+        assertFalse(bucket.tryConsume(1, later));
+    }
+
+    @Test
+    public void costAboveCapacityIsAlwaysRejected(){
+        TokenBucket bucket = new TokenBucket(5, 1, 0);
+        assertFalse(bucket.tryConsume(6, 0));
+        assertFalse(bucket.tryConsume(6, 3600 * SECOND));
+        // Il tentativo rifiutato non consuma gettoni
+        assertTrue(bucket.tryConsume(5, 3600 * SECOND));
+    }
+
+    @Test
+    public void refundGivesTokensBack(){
+        TokenBucket bucket = new TokenBucket(10, 1, 0);
+        assertTrue(bucket.tryConsume(10, 0));
+        bucket.refund(4);
+        assertTrue(bucket.tryConsume(4, 0));
+        assertFalse(bucket.tryConsume(1, 0));
+    }
+
+    @Test
+    public void refundNeverExceedsCapacity(){
+        TokenBucket bucket = new TokenBucket(10, 1, 0);
+        bucket.refund(5);
+        assertFalse(bucket.tryConsume(11, 0));
+        assertTrue(bucket.tryConsume(10, 0));
+    }
+
+    @Test
+    public void isFullOnlyWhenRefilled(){
+        TokenBucket bucket = new TokenBucket(10, 1, 0);
+        assertTrue(bucket.isFull(0));
+        assertTrue(bucket.tryConsume(2, 0));
+        assertFalse(bucket.isFull(SECOND));
+        assertTrue(bucket.isFull(2 * SECOND));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsZeroCapacity(){
+        new TokenBucket(0, 1, 0);
+    }
+}
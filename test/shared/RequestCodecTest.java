@@ -0,0 +1,111 @@
+package shared;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * Test di andata e ritorno del formato delle richieste e delle risposte, comprese le richieste BATCH
+ */
+public class RequestCodecTest {
+
+    @Test
+    public void requestFieldsRoundTrip(){
+        byte[] request = RequestCodec.request(Operation.ADD_COMMENT).putInt(42).putString("ciao; a tutti\nè così").putString("").toByteArray();
+
+        ByteBuffer buffer = ByteBuffer.wrap(request);
+        assertEquals(Operation.ADD_COMMENT, RequestCodec.peekOperation(buffer));
+        assertEquals(Operation.ADD_COMMENT, RequestCodec.readOperation(buffer));
+        assertEquals(42, RequestCodec.readInt(buffer));
+        assertEquals("ciao; a tutti\nè così", RequestCodec.readString(buffer));
+        assertEquals("", RequestCodec.readString(buffer));
+        assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    public void stringsDecodeFromDirectBuffers(){
+        byte[] request = RequestCodec.request(Operation.FOLLOW_USER).putString("パスワード").toByteArray();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(request.length);
+        buffer.put(request).flip();
+
+        assertEquals(Operation.FOLLOW_USER, RequestCodec.readOperation(buffer));
+        assertEquals("パスワード", RequestCodec.readString(buffer));
+    }
+
+    @Test
+    public void replyRoundTrip(){
+        String[] reply = { Communication.Success.toString(), "", "riga 1\nriga 2;", "€" };
+        assertArrayEquals(reply, RequestCodec.decodeReply(RequestCodec.encodeReply(reply)));
+        assertArrayEquals(new String[0], RequestCodec.decodeReply(RequestCodec.encodeReply(new String[0])));
+    }
+
+    @Test
+    public void batchRequestsAreSlicedInOrder(){
+        byte[] first = RequestCodec.request(Operation.RATE_POST).putInt(7).putInt(-1).toByteArray();
+        byte[] second = RequestCodec.request(Operation.SHOW_POST).putInt(9).toByteArray();
+        byte[] batch = RequestCodec.request(Operation.BATCH).putInt(2).putRequest(first).putRequest(second).toByteArray();
+
+        ByteBuffer buffer = ByteBuffer.wrap(batch);
+        assertEquals(Operation.BATCH, RequestCodec.readOperation(buffer));
+        assertEquals(2, RequestCodec.readInt(buffer));
+
+        ByteBuffer inner = RequestCodec.readRequest(buffer);
+        assertEquals(first.length, inner.remaining());
+        assertEquals(Operation.RATE_POST, RequestCodec.readOperation(inner));
+        assertEquals(7, RequestCodec.readInt(inner));
+        assertEquals(-1, RequestCodec.readInt(inner));
+        assertFalse(inner.hasRemaining());
+
+        inner = RequestCodec.readRequest(buffer);
+        assertEquals(Operation.SHOW_POST, RequestCodec.readOperation(inner));
+        assertEquals(9, RequestCodec.readInt(inner));
+        assertFalse(buffer.hasRemaining());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void truncatedBatchRequestIsRejected(){
+        byte[] inner = RequestCodec.request(Operation.SHOW_POST).putInt(9).toByteArray();
+        byte[] batch = RequestCodec.request(Operation.BATCH).putInt(1).putRequest(inner).toByteArray();
+        ByteBuffer buffer = ByteBuffer.wrap(batch, 0, batch.length - 1);
+        RequestCodec.readOperation(buffer);
+        RequestCodec.readInt(buffer);
+        RequestCodec.readRequest(buffer);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void stringLongerThanRequestIsRejected(){
+        ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + 2);
+        buffer.putInt(10).put(( byte ) 'a').put(( byte ) 'b').flip();
+        RequestCodec.readString(buffer);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void missingIntIsRejected(){
+        RequestCodec.readInt(ByteBuffer.wrap(new byte[]{ 1, 2 }));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void emptyRequestIsRejected(){
+        RequestCodec.readOperation(ByteBuffer.allocate(0));
+    }
+
+    @Test
+    public void unknownOperationIsNull(){
+        ByteBuffer buffer = ByteBuffer.wrap(new byte[]{ ( byte ) 0xFF });
+        assertNull(RequestCodec.peekOperation(buffer));
+        assertNull(RequestCodec.readOperation(buffer));
+        assertNull(RequestCodec.peekOperation(ByteBuffer.allocate(0)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void replyWithTooManyFieldsIsRejected(){
+        ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES);
+        buffer.putInt(1000);
+        RequestCodec.decodeReply(buffer.array());
+    }
+}